@@ -1,42 +1,170 @@
 package com.example.android.pets;
 
 
+import android.annotation.TargetApi;
 import android.app.AlertDialog;
 import android.app.LoaderManager;
+import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
-import android.content.CursorLoader;
+import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.Loader;
+import android.content.res.AssetFileDescriptor;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
 import android.support.design.widget.FloatingActionButton;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.support.v7.widget.SearchView;
+import android.text.TextUtils;
+import android.text.format.Formatter;
+import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
-import android.widget.AdapterView;
-import android.widget.ListView;
+import android.view.ViewTreeObserver;
+import android.widget.ArrayAdapter;
+import android.widget.EditText;
+import android.widget.Spinner;
 import android.widget.Toast;
 
 
+import com.example.android.pets.data.PetContract;
 import com.example.android.pets.data.PetContract.PetEntry;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Set;
+
 
 /**
  * Displays list of pets that were entered and stored in the app.
  */
 public class CatalogActivity extends AppCompatActivity implements LoaderManager.LoaderCallbacks<Cursor> {
 
+    //Tag for log statements
+    private static final String LOG_TAG = CatalogActivity.class.getSimpleName();
+
+    //Page k of the list is loaded by the loader PET_LOADER + k
     private static final int PET_LOADER = 0;
 
+    //Number of rows in each page of the list
+    static final int PAGE_SIZE = 100;
+
+    //Columns of the list, the weight is the sort key of the weight order. The gender is not
+    //shown, but with it a row holds the whole pet the editor opens with
+    static final String[] LIST_PROJECTION = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT
+    };
+
+    //Start loading the next page when the user is this many rows away from the end of the list
+    private static final int PREFETCH_DISTANCE = 40;
+
+    //Keys to keep the requested pages across configuration changes
+    private static final String STATE_PAGE_AFTER_IDS = "page_after_ids";
+    private static final String STATE_PAGE_AFTER_KEYS = "page_after_keys";
+
+    //Key to keep the search text across configuration changes
+    private static final String STATE_SEARCH_QUERY = "search_query";
+
+    //Keys to keep the sort order and the filters across configuration changes
+    private static final String STATE_SORT_COLUMN = "sort_column";
+    private static final String STATE_FILTER_GENDER = "filter_gender";
+    private static final String STATE_FILTER_MIN_WEIGHT = "filter_min_weight";
+    private static final String STATE_FILTER_MAX_WEIGHT = "filter_max_weight";
+
+    //Request codes of the document pickers for the roster import and export
+    private static final int REQUEST_EXPORT_CSV = 1;
+    private static final int REQUEST_EXPORT_JSON = 2;
+    private static final int REQUEST_IMPORT_ROSTER = 3;
+
+    /** Number of pets and seed the generator dialog starts with */
+    private static final int DEFAULT_GENERATE_COUNT = 1000;
+    private static final long DEFAULT_GENERATE_SEED = 1;
+
+    //Set once the first catalog of the process started warming up the database
+    private static boolean sPrewarmStarted;
+
     PetCursorAdapter mCursorAdapter;
 
+    //Latest version of each page of the list, null while a page is still loading
+    private final ArrayList<PetPageCursor> mPages = new ArrayList<>();
+
+    //Pages shown by the adapter, and the ones it is about to show once the diff is done
+    private ArrayList<PetPageCursor> mShownPages = new ArrayList<>();
+    private ArrayList<PetPageCursor> mPendingPages = new ArrayList<>();
+
+    //Every page cursor delivered by the loaders that is not closed yet
+    private final Set<Cursor> mOpenPages = new HashSet<>();
+
+    //_id and sort key of the row each page starts after, null for the first page
+    private final ArrayList<Long> mPageAfterIds = new ArrayList<>();
+    private final ArrayList<String> mPageAfterKeys = new ArrayList<>();
+
+    //Text the list is filtered by, empty when the user is not searching
+    private String mSearchQuery = "";
+
+    //Column the user sorts the list by, see getSortColumn for the one actually used
+    private String mSortColumn = PetEntry._ID;
+
+    //Gender and weight range the list is filtered by, PetEntry.NO_FILTER when not filtering
+    private int mFilterGender = PetEntry.NO_FILTER;
+    private int mFilterMinWeight = PetEntry.NO_FILTER;
+    private int mFilterMaxWeight = PetEntry.NO_FILTER;
+
+    //Number of pets and seed last asked for in the generator dialog
+    private int mGenerateCount = DEFAULT_GENERATE_COUNT;
+    private long mGenerateSeed = DEFAULT_GENERATE_SEED;
+
+    //Reloads only the pages touched by each change to the pets
+    private final ContentObserver mPetsObserver = new ContentObserver(new Handler()) {
+        @Override
+        public void onChange(boolean selfChange) {
+            //Older versions do not say which Uri changed
+            onChange(selfChange, null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            onPetsChanged(uri);
+        }
+    };
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        StartupTrace.mark(StartupTrace.CATALOG_CREATED);
+
+        //Open the database and read the first page while the views inflate, the loader then
+        //finds them ready. Only the first catalog of the process has to wait for them
+        if (!sPrewarmStarted) {
+            sPrewarmStarted = true;
+            final ContentResolver resolver = getContentResolver();
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    prewarm(resolver);
+                }
+            });
+        }
         setContentView(R.layout.activity_catalog);
 
         // Setup FAB to open EditorActivity
@@ -49,31 +177,135 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
             }
         });
 
-        //Find the ListView and Empty view
-        ListView listView = (ListView) findViewById(R.id.list_view);
-        View emptyView = findViewById(R.id.empty_view);
+        //Keep the database in shape while the device is not in use
+        PetMaintenanceService.schedule(this);
 
-        //Attach the empty view to the ListView
-        listView.setEmptyView(emptyView);
+        //Find the RecyclerView and Empty view
+        RecyclerView recyclerView = (RecyclerView) findViewById(R.id.list_view);
+        final View emptyView = findViewById(R.id.empty_view);
+        final LinearLayoutManager layoutManager = new LinearLayoutManager(this);
+        recyclerView.setLayoutManager(layoutManager);
 
-        //Setup the items on the list to open the editor activity
-        listView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+        //Create a new PetCursorAdapter, the items on the list open the editor activity
+        mCursorAdapter = new PetCursorAdapter(this, new PetCursorAdapter.OnPetClickListener() {
             @Override
-            public void onItemClick(AdapterView<?> adapterView, View view, int position, long id) {
+            public void onPetClick(long id, ContentValues row) {
                 Intent intent = new Intent(CatalogActivity.this, EditorActivity.class);
                 Uri petUri = ContentUris.withAppendedId(PetEntry.CONTENT_URI, id);
                 intent.setData(petUri);
+                //The editor shows the row right away, then checks it against the provider
+                intent.putExtra(EditorActivity.EXTRA_PET, row);
                 startActivity(intent);
             }
         });
 
-        //Create a new PetCursorAdapter
-        mCursorAdapter = new PetCursorAdapter(this, null);
+        //Close the pages the list stopped showing
+        mCursorAdapter.setOnCursorSwappedListener(new PetCursorAdapter.OnCursorSwappedListener() {
+            @Override
+            public void onCursorSwapped() {
+                mShownPages = mPendingPages;
+                closeUnusedPages();
+            }
+        });
 
-        //Populate the Listview with the Adapter
-        listView.setAdapter(mCursorAdapter);
+        //Show the empty view while the list has no pets
+        mCursorAdapter.registerAdapterDataObserver(new RecyclerView.AdapterDataObserver() {
+            @Override
+            public void onChanged() {
+                updateEmptyView();
+            }
 
-        getLoaderManager().initLoader(PET_LOADER, null, this);
+            @Override
+            public void onItemRangeInserted(int positionStart, int itemCount) {
+                updateEmptyView();
+            }
+
+            @Override
+            public void onItemRangeRemoved(int positionStart, int itemCount) {
+                updateEmptyView();
+            }
+
+            private void updateEmptyView() {
+                emptyView.setVisibility(
+                        mCursorAdapter.getItemCount() == 0 ? View.VISIBLE : View.GONE);
+            }
+        });
+
+        //Populate the RecyclerView with the Adapter
+        recyclerView.setAdapter(mCursorAdapter);
+
+        //Load the next page before the user reaches the end of the list
+        recyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                int totalItemCount = mCursorAdapter.getItemCount();
+                if (totalItemCount > 0 && layoutManager.findLastVisibleItemPosition() +
+                        PREFETCH_DISTANCE >= totalItemCount) {
+                    requestNextPage();
+                }
+            }
+        });
+
+        //Start with the first page, plus the pages that were loaded before a configuration change
+        mPages.add(null);
+        mPageAfterIds.add(null);
+        mPageAfterKeys.add(null);
+        if (savedInstanceState != null) {
+            mSearchQuery = savedInstanceState.getString(STATE_SEARCH_QUERY, "");
+            mSortColumn = savedInstanceState.getString(STATE_SORT_COLUMN, PetEntry._ID);
+            mFilterGender = savedInstanceState.getInt(STATE_FILTER_GENDER, PetEntry.NO_FILTER);
+            mFilterMinWeight = savedInstanceState.getInt(STATE_FILTER_MIN_WEIGHT,
+                    PetEntry.NO_FILTER);
+            mFilterMaxWeight = savedInstanceState.getInt(STATE_FILTER_MAX_WEIGHT,
+                    PetEntry.NO_FILTER);
+            long[] afterIds = savedInstanceState.getLongArray(STATE_PAGE_AFTER_IDS);
+            String[] afterKeys = savedInstanceState.getStringArray(STATE_PAGE_AFTER_KEYS);
+            if (afterIds != null && afterKeys != null) {
+                for (int i = 0; i < afterIds.length; i++) {
+                    mPages.add(null);
+                    mPageAfterIds.add(afterIds[i]);
+                    mPageAfterKeys.add(afterKeys[i]);
+                }
+            }
+        }
+        for (int page = 0; page < mPages.size(); page++) {
+            getLoaderManager().initLoader(PET_LOADER + page, null, this);
+        }
+
+        //The page loaders do not watch the pets themselves, see onPetsChanged
+        getContentResolver().registerContentObserver(PetEntry.CONTENT_URI, true, mPetsObserver);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        getContentResolver().unregisterContentObserver(mPetsObserver);
+        //On a configuration change the loaders hand their latest pages to the new activity
+        for (Cursor cursor : mOpenPages) {
+            if (!isChangingConfigurations() || !mPages.contains(cursor)) {
+                cursor.close();
+            }
+        }
+        mOpenPages.clear();
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        //Save where every page after the first one starts
+        long[] afterIds = new long[mPageAfterIds.size() - 1];
+        String[] afterKeys = new String[afterIds.length];
+        for (int page = 1; page < mPageAfterIds.size(); page++) {
+            afterIds[page - 1] = mPageAfterIds.get(page);
+            afterKeys[page - 1] = mPageAfterKeys.get(page);
+        }
+        outState.putLongArray(STATE_PAGE_AFTER_IDS, afterIds);
+        outState.putStringArray(STATE_PAGE_AFTER_KEYS, afterKeys);
+        outState.putString(STATE_SEARCH_QUERY, mSearchQuery);
+        outState.putString(STATE_SORT_COLUMN, mSortColumn);
+        outState.putInt(STATE_FILTER_GENDER, mFilterGender);
+        outState.putInt(STATE_FILTER_MIN_WEIGHT, mFilterMinWeight);
+        outState.putInt(STATE_FILTER_MAX_WEIGHT, mFilterMaxWeight);
     }
 
     @Override
@@ -81,48 +313,588 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
         // Inflate the menu options from the res/menu/menu_catalog.xml file.
         // This adds menu items to the app bar.
         getMenuInflater().inflate(R.menu.menu_catalog, menu);
+
+        //Setup the search field to filter the list as the user types
+        MenuItem searchItem = menu.findItem(R.id.action_search);
+        SearchView searchView = (SearchView) searchItem.getActionView();
+        searchView.setQueryHint(getString(R.string.search_hint));
+        if (!TextUtils.isEmpty(mSearchQuery)) {
+            searchItem.expandActionView();
+            searchView.setQuery(mSearchQuery, false);
+        }
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                search(query);
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                search(newText);
+                return true;
+            }
+        });
+
+        //Rosters are picked with the document pickers, which came with KitKat
+        boolean canPickDocuments = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+        menu.findItem(R.id.action_import_roster).setVisible(canPickDocuments);
+        menu.findItem(R.id.action_export_csv).setVisible(canPickDocuments);
+        menu.findItem(R.id.action_export_json).setVisible(canPickDocuments);
         return true;
     }
 
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        //Check the order the list is sorted by, a weight range forces the weight order
+        String sortColumn = getSortColumn();
+        int sortItem = sortColumn.equals(PetEntry.COLUMN_PET_NAME) ? R.id.action_sort_name :
+                sortColumn.equals(PetEntry.COLUMN_PET_WEIGHT) ? R.id.action_sort_weight :
+                        R.id.action_sort_added;
+        menu.findItem(sortItem).setChecked(true);
+        return super.onPrepareOptionsMenu(menu);
+    }
+
+    /**
+     * Return the column the list is sorted by. Pages filtered by weight can only be sorted by
+     * weight, so the weight index finds both the range and the order.
+     */
+    private String getSortColumn() {
+        if (mFilterMinWeight != PetEntry.NO_FILTER || mFilterMaxWeight != PetEntry.NO_FILTER) {
+            return PetEntry.COLUMN_PET_WEIGHT;
+        }
+        return mSortColumn;
+    }
+
+    /**
+     * Sort the list by the given column, starting again from the first page.
+     */
+    private void sortBy(String sortColumn) {
+        if (sortColumn.equals(mSortColumn)) {
+            return;
+        }
+        mSortColumn = sortColumn;
+        //Picking another order drops the weight range, which only works in the weight order
+        if (!sortColumn.equals(PetEntry.COLUMN_PET_WEIGHT)) {
+            mFilterMinWeight = PetEntry.NO_FILTER;
+            mFilterMaxWeight = PetEntry.NO_FILTER;
+        }
+        reloadList();
+    }
+
+    /**
+     * Filter the list by the given gender and weight range, starting again from the first page.
+     */
+    private void filterBy(int gender, int minWeight, int maxWeight) {
+        if (gender == mFilterGender && minWeight == mFilterMinWeight &&
+                maxWeight == mFilterMaxWeight) {
+            return;
+        }
+        mFilterGender = gender;
+        mFilterMinWeight = minWeight;
+        mFilterMaxWeight = maxWeight;
+        reloadList();
+    }
+
+    /**
+     * Load the list again from the first page, after the search, sort or filters changed.
+     */
+    private void reloadList() {
+        //Keep showing the current first page until the new one is loaded
+        dropPagesAfter(0);
+        getLoaderManager().restartLoader(PET_LOADER, null, this);
+    }
+
+    /**
+     * Filter the list by the given text, starting again from the first page.
+     */
+    private void search(String query) {
+        query = query.trim();
+        if (query.equals(mSearchQuery)) {
+            return;
+        }
+        mSearchQuery = query;
+        reloadList();
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         // User clicked on a menu option in the app bar overflow menu
         switch (item.getItemId()) {
+            // Respond to a click on the "Date Added" sort option
+            case R.id.action_sort_added:
+                sortBy(PetEntry._ID);
+                return true;
+            // Respond to a click on the "Name" sort option
+            case R.id.action_sort_name:
+                sortBy(PetEntry.COLUMN_PET_NAME);
+                return true;
+            // Respond to a click on the "Weight" sort option
+            case R.id.action_sort_weight:
+                sortBy(PetEntry.COLUMN_PET_WEIGHT);
+                return true;
+            // Respond to a click on the "Filter" menu option
+            case R.id.action_filter:
+                showFilterDialog();
+                return true;
             // Respond to a click on the "Insert dummy data" menu option
             case R.id.action_insert_dummy_data:
-                insertPet();
+                showGeneratePetsDialog();
                 return true;
                 // Respond to a click on the "Delete all entries" menu option
             case R.id.action_delete_all_entries:
                 //Delete all pets
                 showDeleteConfirmationDialog();
                 return true;
+            // Respond to a click on the roster menu options by picking the file
+            case R.id.action_import_roster:
+                pickRosterToImport();
+                return true;
+            case R.id.action_export_csv:
+                pickRosterToExport(PetEntry.ROSTER_CSV_TYPE, "pets.csv", REQUEST_EXPORT_CSV);
+                return true;
+            case R.id.action_export_json:
+                pickRosterToExport(PetEntry.ROSTER_JSON_TYPE, "pets.json", REQUEST_EXPORT_JSON);
+                return true;
+            // Respond to a click on the "Sync Now" menu option
+            case R.id.action_sync:
+                showSyncDialog();
+                return true;
         }
         return super.onOptionsItemSelected(item);
     }
 
-    private void insertPet() {
-        //Create the ContentValues Object to fill with the data to put in the database
-        ContentValues values = new ContentValues();
-        values.put(PetEntry.COLUMN_PET_NAME, "Toto");
-        values.put(PetEntry.COLUMN_PET_BREED, "Terrier");
-        values.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_MALE);
-        values.put(PetEntry.COLUMN_PET_WEIGHT, 7);
+    /**
+     * Let the user pick the roster file to import.
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private void pickRosterToImport() {
+        Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        intent.setType("*/*");
+        intent.putExtra(Intent.EXTRA_MIME_TYPES, new String[]{
+                PetEntry.ROSTER_CSV_TYPE, PetEntry.ROSTER_JSON_TYPE, "text/*"});
+        startActivityForResult(intent, REQUEST_IMPORT_ROSTER);
+    }
 
-        //Insert values into the database and store the result of the process in a long
-        Uri newUri = getContentResolver().insert(PetEntry.CONTENT_URI, values);
+    /**
+     * Let the user pick where to write a roster of the given type.
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private void pickRosterToExport(String mimeType, String fileName, int requestCode) {
+        Intent intent = new Intent(Intent.ACTION_CREATE_DOCUMENT);
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        intent.setType(mimeType);
+        intent.putExtra(Intent.EXTRA_TITLE, fileName);
+        startActivityForResult(intent, requestCode);
+    }
 
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (resultCode != RESULT_OK || data == null || data.getData() == null) {
+            return;
+        }
+        switch (requestCode) {
+            case REQUEST_IMPORT_ROSTER:
+                new RosterTask(this, data.getData(), null).execute();
+                break;
+            case REQUEST_EXPORT_CSV:
+                new RosterTask(this, data.getData(), PetEntry.ROSTER_CSV_TYPE).execute();
+                break;
+            case REQUEST_EXPORT_JSON:
+                new RosterTask(this, data.getData(), PetEntry.ROSTER_JSON_TYPE).execute();
+                break;
+        }
     }
 
-    private void deleteAllPets(){
+    /**
+     * Show the progress of a long operation, like a roster import or export, under the title,
+     * or clear it when the given text is null.
+     */
+    private void showProgress(String progress) {
+        if (getSupportActionBar() != null) {
+            getSupportActionBar().setSubtitle(progress);
+        }
+    }
+
+    /**
+     * Imports a roster file, or exports the pets to one, in the background. The progress is
+     * shown under the title and the outcome in a toast, as long as the activity is still around.
+     */
+    private static class RosterTask extends AsyncTask<Void, Long, String>
+            implements PetRoster.ProgressListener {
+
+        private final WeakReference<CatalogActivity> mActivity;
+        private final Context mContext;
+        private final Uri mFileUri;
+        //Type to export, null to import
+        private final String mExportType;
+
+        RosterTask(CatalogActivity activity, Uri fileUri, String exportType) {
+            mActivity = new WeakReference<>(activity);
+            mContext = activity.getApplicationContext();
+            mFileUri = fileUri;
+            mExportType = exportType;
+        }
+
+        @Override
+        protected String doInBackground(Void... params) {
+            ContentResolver resolver = mContext.getContentResolver();
+            try {
+                if (mExportType != null) {
+                    OutputStream output = resolver.openOutputStream(mFileUri, "w");
+                    if (output == null) {
+                        return mContext.getString(R.string.roster_export_failed);
+                    }
+                    try {
+                        PetRoster.exportRoster(resolver, mExportType, output, this);
+                    } finally {
+                        output.close();
+                    }
+                    return mContext.getString(R.string.roster_exported);
+                }
 
-        int rowsDeleted = getContentResolver().delete(PetEntry.CONTENT_URI, null, null);
+                AssetFileDescriptor file = resolver.openAssetFileDescriptor(mFileUri, "r");
+                if (file == null) {
+                    return mContext.getString(R.string.roster_import_failed);
+                }
+                InputStream input = file.createInputStream();
+                try {
+                    PetRoster.ImportResult result = PetRoster.importRoster(resolver,
+                            getImportType(resolver), input, file.getLength(), this);
+                    return mContext.getString(R.string.roster_imported,
+                            result.imported, result.skipped);
+                } finally {
+                    input.close();
+                }
+            } catch (IOException | RuntimeException e) {
+                Log.e(LOG_TAG, "Roster transfer failed for " + mFileUri, e);
+                return mContext.getString(mExportType != null ?
+                        R.string.roster_export_failed : R.string.roster_import_failed);
+            }
+        }
+
+        /**
+         * Return the roster type of the file to import, guessed from its name when the
+         * document provider does not know it.
+         */
+        private String getImportType(ContentResolver resolver) {
+            String type = resolver.getType(mFileUri);
+            if (PetEntry.ROSTER_JSON_TYPE.equals(type)) {
+                return PetEntry.ROSTER_JSON_TYPE;
+            }
+            String path = mFileUri.getLastPathSegment();
+            if (path != null && path.toLowerCase(Locale.US).endsWith(".json")) {
+                return PetEntry.ROSTER_JSON_TYPE;
+            }
+            return PetEntry.ROSTER_CSV_TYPE;
+        }
 
-        if(!(rowsDeleted==0)){
-            Toast.makeText(this, R.string.catalog_delete_pets_successful, Toast.LENGTH_SHORT).show();
+        @Override
+        public void onProgress(long bytes, long totalBytes) {
+            publishProgress(bytes, totalBytes);
+        }
+
+        @Override
+        protected void onProgressUpdate(Long... values) {
+            CatalogActivity activity = mActivity.get();
+            if (activity == null) {
+                return;
+            }
+            long bytes = values[0];
+            long totalBytes = values[1];
+            String done = Formatter.formatShortFileSize(mContext, bytes);
+            if (mExportType != null) {
+                activity.showProgress(mContext.getString(R.string.roster_exporting, done));
+            } else if (totalBytes > 0) {
+                activity.showProgress(mContext.getString(R.string.roster_importing_percent,
+                        (int) (bytes * 100 / totalBytes)));
+            } else {
+                activity.showProgress(mContext.getString(R.string.roster_importing, done));
+            }
+        }
+
+        @Override
+        protected void onPostExecute(String result) {
+            CatalogActivity activity = mActivity.get();
+            if (activity != null) {
+                activity.showProgress(null);
+            }
+            Toast.makeText(mContext, result, Toast.LENGTH_LONG).show();
         }
     }
 
+    /**
+     * Syncs the pets with the headquarters server in the background and shows the outcome in
+     * a toast. The list follows on its own, the provider notifies the pulled changes.
+     */
+    private static class SyncTask extends AsyncTask<Void, Void, String> {
+
+        private final WeakReference<CatalogActivity> mActivity;
+        private final Context mContext;
+        private final String mServerUrl;
+
+        SyncTask(CatalogActivity activity, String serverUrl) {
+            mActivity = new WeakReference<>(activity);
+            mContext = activity.getApplicationContext();
+            mServerUrl = serverUrl;
+        }
+
+        @Override
+        protected String doInBackground(Void... params) {
+            try {
+                PetSyncClient.Result result = new PetSyncClient(mContext.getContentResolver(),
+                        mServerUrl).sync();
+                return mContext.getString(R.string.sync_finished, result.pushed, result.pulled,
+                        result.skipped);
+            } catch (IOException | RuntimeException e) {
+                Log.e(LOG_TAG, "Sync with " + mServerUrl + " failed", e);
+                return mContext.getString(R.string.sync_failed);
+            }
+        }
+
+        @Override
+        protected void onPostExecute(String result) {
+            CatalogActivity activity = mActivity.get();
+            if (activity != null) {
+                activity.showProgress(null);
+            }
+            Toast.makeText(mContext, result, Toast.LENGTH_LONG).show();
+        }
+    }
+
+    private void showFilterDialog() {
+        //Show the current filter, any gender is the first option and then the gender values
+        final View dialogView = getLayoutInflater().inflate(R.layout.dialog_filter_pets, null);
+        final Spinner genderSpinner = (Spinner) dialogView.findViewById(R.id.spinner_filter_gender);
+        final EditText minWeightEditText =
+                (EditText) dialogView.findViewById(R.id.edit_filter_min_weight);
+        final EditText maxWeightEditText =
+                (EditText) dialogView.findViewById(R.id.edit_filter_max_weight);
+        ArrayAdapter<CharSequence> genderSpinnerAdapter = ArrayAdapter.createFromResource(this,
+                R.array.array_gender_filter_options, android.R.layout.simple_spinner_item);
+        genderSpinnerAdapter.setDropDownViewResource(
+                android.R.layout.simple_dropdown_item_1line);
+        genderSpinner.setAdapter(genderSpinnerAdapter);
+        genderSpinner.setSelection(mFilterGender + 1);
+        if (mFilterMinWeight != PetEntry.NO_FILTER) {
+            minWeightEditText.setText(String.valueOf(mFilterMinWeight));
+        }
+        if (mFilterMaxWeight != PetEntry.NO_FILTER) {
+            maxWeightEditText.setText(String.valueOf(mFilterMaxWeight));
+        }
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.filter_dialog_title);
+        builder.setView(dialogView);
+        builder.setPositiveButton(R.string.filter, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialogInterface, int i) {
+                int minWeight = parseWeight(minWeightEditText.getText().toString());
+                int maxWeight = parseWeight(maxWeightEditText.getText().toString());
+                //Swap a range entered the wrong way around
+                if (minWeight != PetEntry.NO_FILTER && maxWeight != PetEntry.NO_FILTER &&
+                        minWeight > maxWeight) {
+                    int lowest = maxWeight;
+                    maxWeight = minWeight;
+                    minWeight = lowest;
+                }
+                filterBy(genderSpinner.getSelectedItemPosition() - 1, minWeight, maxWeight);
+                supportInvalidateOptionsMenu();
+            }
+        });
+        builder.setNeutralButton(R.string.clear, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialogInterface, int i) {
+                filterBy(PetEntry.NO_FILTER, PetEntry.NO_FILTER, PetEntry.NO_FILTER);
+                supportInvalidateOptionsMenu();
+            }
+        });
+        builder.setNegativeButton(R.string.cancel, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialogInterface, int i) {
+                dialogInterface.dismiss();
+            }
+        });
+        builder.create().show();
+    }
+
+    /**
+     * Open the database, then run the query of the first page the catalog shows when it starts.
+     * A failure only costs the head start, the loader opens the database again anyway.
+     */
+    private static void prewarm(ContentResolver resolver) {
+        try {
+            resolver.call(PetContract.BASE_CONTENT_URI, PetContract.METHOD_PREWARM, null, null);
+            StartupTrace.mark(StartupTrace.DATABASE_PREWARMED);
+
+            Cursor cursor = resolver.query(PetEntry.buildFirstPageUri(PetEntry.CONTENT_URI,
+                    PetEntry._ID, PAGE_SIZE), LIST_PROJECTION, null, null, null);
+            if (cursor != null) {
+                try {
+                    //Counting reads the whole page, like the loader will
+                    cursor.getCount();
+                } finally {
+                    cursor.close();
+                }
+            }
+            StartupTrace.mark(StartupTrace.LIST_PREWARMED);
+        } catch (RuntimeException e) {
+            Log.w(LOG_TAG, "Could not prewarm the pets database", e);
+        }
+    }
+
+    /**
+     * Return the weight typed in a filter field, or {@link PetEntry#NO_FILTER} if it is empty
+     * or not a number.
+     */
+    private static int parseWeight(String text) {
+        try {
+            return Integer.parseInt(text.trim());
+        } catch (NumberFormatException e) {
+            return PetEntry.NO_FILTER;
+        }
+    }
+
+    private void showSyncDialog() {
+        //Ask for the server, filled in with the last one used or the one of this build
+        final View dialogView = getLayoutInflater().inflate(R.layout.dialog_sync, null);
+        final EditText serverUrlEditText =
+                (EditText) dialogView.findViewById(R.id.edit_sync_server_url);
+        serverUrlEditText.setText(PetSyncClient.getServerUrl(this));
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.sync_dialog_title);
+        builder.setView(dialogView);
+        builder.setPositiveButton(R.string.sync, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialogInterface, int i) {
+                //Nothing to sync with on an empty field
+                String serverUrl = serverUrlEditText.getText().toString().trim();
+                if (TextUtils.isEmpty(serverUrl)) {
+                    return;
+                }
+                PetSyncClient.setServerUrl(CatalogActivity.this, serverUrl);
+                showProgress(getString(R.string.sync_running));
+                new SyncTask(CatalogActivity.this, serverUrl).execute();
+            }
+        });
+        builder.setNegativeButton(R.string.cancel, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialogInterface, int i) {
+                dialogInterface.dismiss();
+            }
+        });
+        builder.create().show();
+    }
+
+    private void showGeneratePetsDialog() {
+        //Ask for the number of pets and the seed, filled in with the last ones used
+        final View dialogView = getLayoutInflater().inflate(R.layout.dialog_generate_pets, null);
+        final EditText countEditText = (EditText) dialogView.findViewById(R.id.edit_generate_count);
+        final EditText seedEditText = (EditText) dialogView.findViewById(R.id.edit_generate_seed);
+        countEditText.setText(String.valueOf(mGenerateCount));
+        seedEditText.setText(String.valueOf(mGenerateSeed));
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.generate_pets_dialog_title);
+        builder.setView(dialogView);
+        builder.setPositiveButton(R.string.generate, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialogInterface, int i) {
+                //Nothing to do on an empty or out of range field
+                try {
+                    mGenerateCount = Integer.parseInt(countEditText.getText().toString().trim());
+                    mGenerateSeed = Long.parseLong(seedEditText.getText().toString().trim());
+                } catch (NumberFormatException e) {
+                    return;
+                }
+                if (mGenerateCount > 0) {
+                    generatePets(mGenerateCount, mGenerateSeed);
+                }
+            }
+        });
+        builder.setNegativeButton(R.string.cancel, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialogInterface, int i) {
+                dialogInterface.dismiss();
+            }
+        });
+        builder.create().show();
+    }
+
+    private void generatePets(int count, long seed) {
+
+        //Insert the pets in batches in the background, showing the progress under the title.
+        //The callbacks only hold a weak reference, so they never keep the activity around.
+        final Context appContext = getApplicationContext();
+        final WeakReference<CatalogActivity> activityReference = new WeakReference<>(this);
+        PetWriteQueue.ProgressListener progressListener = new PetWriteQueue.ProgressListener() {
+            @Override
+            public void onWriteProgress(int rowsDone, int rowsTotal) {
+                CatalogActivity activity = activityReference.get();
+                if (activity != null) {
+                    activity.showProgress(appContext.getString(R.string.catalog_generating_pets,
+                            (int) (rowsDone * 100L / rowsTotal)));
+                }
+            }
+        };
+        PetWriteQueue.getInstance(this).insertGeneratedPets(new PetDataGenerator(seed), count,
+                progressListener, new PetWriteQueue.Callback() {
+            @Override
+            public void onWriteFinished(Uri uri, int rowsInserted) {
+                CatalogActivity activity = activityReference.get();
+                if (activity != null) {
+                    activity.showProgress(null);
+                }
+                if (rowsInserted == PetWriteQueue.FAILED) {
+                    Toast.makeText(appContext, R.string.catalog_generate_pets_failed,
+                            Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                Toast.makeText(appContext, appContext.getString(
+                        R.string.catalog_generate_pets_successful, rowsInserted),
+                        Toast.LENGTH_SHORT).show();
+            }
+        });
+    }
+
+    private void deleteAllPets(){
+
+        //Delete in batches in the background, showing the progress under the title. The
+        //callbacks only hold a weak reference, so they never keep the activity around.
+        final Context appContext = getApplicationContext();
+        final WeakReference<CatalogActivity> activityReference = new WeakReference<>(this);
+        PetWriteQueue.ProgressListener progressListener = new PetWriteQueue.ProgressListener() {
+            @Override
+            public void onWriteProgress(int rowsDone, int rowsTotal) {
+                CatalogActivity activity = activityReference.get();
+                if (activity != null) {
+                    activity.showProgress(appContext.getString(R.string.catalog_deleting_pets,
+                            rowsDone * 100 / rowsTotal));
+                }
+            }
+        };
+        PetWriteQueue.getInstance(this).deleteAllPets(progressListener,
+                new PetWriteQueue.Callback() {
+            @Override
+            public void onWriteFinished(Uri uri, int rowsDeleted) {
+                CatalogActivity activity = activityReference.get();
+                if (activity != null) {
+                    activity.showProgress(null);
+                }
+                if (rowsDeleted == PetWriteQueue.FAILED) {
+                    Toast.makeText(appContext, R.string.catalog_delete_pets_failed,
+                            Toast.LENGTH_SHORT).show();
+                } else if(!(rowsDeleted==0)){
+                    Toast.makeText(appContext, R.string.catalog_delete_pets_successful,
+                            Toast.LENGTH_SHORT).show();
+                }
+            }
+        });
+    }
+
     private void showDeleteConfirmationDialog(){
         //Definde the Builder.
         AlertDialog.Builder builder = new AlertDialog.Builder(this);
@@ -151,39 +923,205 @@ public class CatalogActivity extends AppCompatActivity implements LoaderManager.
     @Override
     public Loader<Cursor> onCreateLoader(int loaderID, Bundle bundle) {
 
-        switch (loaderID) {
-            case PET_LOADER:
-                String[] projection = {
-                        PetEntry._ID,
-                        PetEntry.COLUMN_PET_NAME,
-                        PetEntry.COLUMN_PET_BREED };
+        int page = loaderID - PET_LOADER;
+        if (page < 0 || page >= mPageAfterIds.size()) {
+            //An invalid ID is passed
+            return null;
+        }
+
+        //List all the pets, or only the ones found by the search, that pass the filters
+        Uri listUri = TextUtils.isEmpty(mSearchQuery) ?
+                PetEntry.CONTENT_URI : PetEntry.buildSearchUri(mSearchQuery);
+        listUri = PetEntry.buildFilterUri(listUri, mFilterGender, mFilterMinWeight,
+                mFilterMaxWeight);
 
-                //Returns new CursorLoader
-                return new CursorLoader(
-                        this,
-                        PetEntry.CONTENT_URI,
-                        projection,
-                        null,
-                        null,
-                        null
-                );
-            default:
-                //An invalid ID is passed
-                return null;
+        //Every page after the first one starts after the last row of the previous page
+        String sortColumn = getSortColumn();
+        Uri pageUri = PetEntry.buildFirstPageUri(listUri, sortColumn, PAGE_SIZE);
+        Long afterId = mPageAfterIds.get(page);
+        if (afterId != null) {
+            pageUri = PetEntry.buildNextPageUri(pageUri, mPageAfterKeys.get(page), afterId);
         }
+
+        //Returns new PetPageLoader
+        return new PetPageLoader(this, pageUri, LIST_PROJECTION, sortColumn);
     }
 
     @Override
     public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
+        int page = loader.getId() - PET_LOADER;
+        PetPageCursor pageCursor = (PetPageCursor) cursor;
+        mOpenPages.add(pageCursor);
+        if (page >= mPages.size()) {
+            //The page was dropped while it was loading
+            closeUnusedPages();
+            return;
+        }
+        if (mPages.get(page) == pageCursor) {
+            //The loader delivered the same page again after a restart of the activity
+            return;
+        }
+        mPages.set(page, pageCursor);
+        swapPages();
+        if (page == 0 && StartupTrace.isFirstListPending()) {
+            reportFirstListFrame(pageCursor.getCount());
+        }
 
-        mCursorAdapter.swapCursor(cursor);
+        if (pageCursor.getCount() < PAGE_SIZE) {
+            //This is the end of the list, so the pages after it are not needed anymore
+            dropPagesAfter(page);
+        } else if (page + 1 < mPages.size()) {
+            //If the last row of this page changed, the next page has to start after the new one
+            long lastId = pageCursor.getLastId();
+            String lastKey = pageCursor.getLastKey();
+            if (lastId != mPageAfterIds.get(page + 1) ||
+                    !TextUtils.equals(lastKey, mPageAfterKeys.get(page + 1))) {
+                mPageAfterIds.set(page + 1, lastId);
+                mPageAfterKeys.set(page + 1, lastKey);
+                getLoaderManager().restartLoader(PET_LOADER + page + 1, null, this);
+            }
+        }
+    }
 
+    /**
+     * Report the startup times once the frame with the first page of the list is drawn.
+     */
+    private void reportFirstListFrame(final int rowCount) {
+        final View listView = findViewById(R.id.list_view);
+        listView.getViewTreeObserver().addOnPreDrawListener(
+                new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                listView.getViewTreeObserver().removeOnPreDrawListener(this);
+                StartupTrace.reportFirstListFrame(rowCount);
+                return true;
+            }
+        });
     }
 
     @Override
     public void onLoaderReset(Loader<Cursor> loader) {
+        int page = loader.getId() - PET_LOADER;
+        if (page < mPages.size()) {
+            mPages.set(page, null);
+            swapPages();
+        }
+    }
+
+    /**
+     * Reload the pages that a change to the given Uri can touch. In the _id order the pages
+     * split the _id range between them, so a change to a single pet only reloads the page
+     * whose range holds it. A change to the whole table, an unknown one, or any change in
+     * another order, where an edit can move the pet to any page, reloads every page.
+     */
+    private void onPetsChanged(Uri uri) {
+        int firstPage = 0;
+        int lastPage = mPages.size() - 1;
+        if (uri != null && getSortColumn().equals(PetEntry._ID) &&
+                uri.getPathSegments().size() == 2 &&
+                TextUtils.isDigitsOnly(uri.getLastPathSegment())) {
+            long id = ContentUris.parseId(uri);
+            //Find the last page that starts before the pet
+            while (lastPage > 0 && mPageAfterIds.get(lastPage) >= id) {
+                lastPage--;
+            }
+            firstPage = lastPage;
+        }
+        //If the reloaded page ends somewhere else, onLoadFinished moves the next page too
+        for (int page = firstPage; page <= lastPage; page++) {
+            Loader<Cursor> loader = getLoaderManager().getLoader(PET_LOADER + page);
+            if (loader != null) {
+                loader.onContentChanged();
+            }
+        }
+    }
+
+    /**
+     * Start loading the page after the last one, unless it is already loading or the last
+     * page reached the end of the list.
+     */
+    private void requestNextPage() {
+        int lastPage = mPages.size() - 1;
+        PetPageCursor cursor = mPages.get(lastPage);
+        if (cursor == null || cursor.getCount() < PAGE_SIZE) {
+            return;
+        }
+        mPages.add(null);
+        mPageAfterIds.add(cursor.getLastId());
+        mPageAfterKeys.add(cursor.getLastKey());
+        getLoaderManager().initLoader(PET_LOADER + lastPage + 1, null, this);
+    }
 
-        mCursorAdapter.swapCursor(null);
+    /**
+     * Forget the pages after the given one and stop their loaders.
+     */
+    private void dropPagesAfter(int page) {
+        int lastPage = mPages.size() - 1;
+        if (lastPage <= page) {
+            return;
+        }
+        //Take the pages out of the adapter, they are closed once the list stops showing them
+        for (int i = lastPage; i > page; i--) {
+            mPages.remove(i);
+            mPageAfterIds.remove(i);
+            mPageAfterKeys.remove(i);
+        }
+        swapPages();
+        for (int i = lastPage; i > page; i--) {
+            getLoaderManager().destroyLoader(PET_LOADER + i);
+        }
+    }
 
+    /**
+     * Show the loaded pages in the list, up to the first page that is still loading.
+     */
+    private void swapPages() {
+        ArrayList<PetPageCursor> loadedPages = new ArrayList<>();
+        int rowCount = 0;
+        for (PetPageCursor cursor : mPages) {
+            if (cursor == null) {
+                break;
+            }
+            loadedPages.add(cursor);
+            rowCount += cursor.getIds().length;
+        }
+        mPendingPages = loadedPages;
+
+        if (loadedPages.isEmpty()) {
+            mCursorAdapter.swapCursor(null, null, null);
+            return;
+        }
+
+        //Join the keys of the pages so the adapter can diff the whole list
+        long[] ids = new long[rowCount];
+        int[] contentHashes = new int[rowCount];
+        int offset = 0;
+        for (PetPageCursor cursor : loadedPages) {
+            int count = cursor.getIds().length;
+            System.arraycopy(cursor.getIds(), 0, ids, offset, count);
+            System.arraycopy(cursor.getContentHashes(), 0, contentHashes, offset, count);
+            offset += count;
+        }
+
+        //The merged cursor is never closed, closing it would close the pages it shows
+        Cursor cursor = loadedPages.size() == 1 ? loadedPages.get(0) :
+                new PetPagesCursor(loadedPages.toArray(new PetPageCursor[loadedPages.size()]));
+        mCursorAdapter.swapCursor(cursor, ids, contentHashes);
+    }
+
+    /**
+     * Close the page cursors that are not the latest version of a page and that the list
+     * neither shows nor is about to show.
+     */
+    private void closeUnusedPages() {
+        Iterator<Cursor> iterator = mOpenPages.iterator();
+        while (iterator.hasNext()) {
+            Cursor cursor = iterator.next();
+            if (!mPages.contains(cursor) && !mShownPages.contains(cursor) &&
+                    !mPendingPages.contains(cursor)) {
+                cursor.close();
+                iterator.remove();
+            }
+        }
     }
 }
\ No newline at end of file
@@ -19,11 +19,13 @@ import android.app.AlertDialog;
 import android.app.LoaderManager;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.Context;
 import android.content.CursorLoader;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.Loader;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.net.Uri;
 import android.os.Bundle;
 import android.support.v4.app.NavUtils;
@@ -52,8 +54,20 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
     //Loader ID
     public static final int PET_LOADER = 0;
 
+    /**
+     * Extra with the columns of the pet as the catalog last read them, a ContentValues. The
+     * editor shows them right away instead of waiting for its loader.
+     */
+    public static final String EXTRA_PET = "pet";
+
+    //Key to keep the shown pet across configuration changes
+    private static final String STATE_SHOWN_PET = "shown_pet";
+
     Uri mCurrentPetUri;
 
+    //Columns of the pet the fields were last filled with, null until they are
+    private ContentValues mShownPet;
+
     /**
      * EditText field to enter the pet's name
      */
@@ -122,6 +136,23 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         //Set up the spinner
         setupSpinner();
 
+        //Show the pet the catalog handed over right away, the loader only fills the fields
+        //again if the pet changed since. After a configuration change the fields keep what
+        //the user typed
+        if (savedInstanceState != null) {
+            mShownPet = savedInstanceState.getParcelable(STATE_SHOWN_PET);
+        } else if (mCurrentPetUri != null) {
+            ContentValues pet = intent.getParcelableExtra(EXTRA_PET);
+            if (pet != null) {
+                showPet(pet);
+            }
+        }
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putParcelable(STATE_SHOWN_PET, mShownPet);
     }
 
     private View.OnTouchListener mTouchListener = new View.OnTouchListener() {
@@ -203,30 +234,27 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         values.put(PetEntry.COLUMN_PET_GENDER, mGender);
         values.put(PetEntry.COLUMN_PET_WEIGHT, weight);
 
+        //The activity finishes right away, so the toast is shown with the application context
+        final Context appContext = getApplicationContext();
+        PetWriteQueue.Callback callback = new PetWriteQueue.Callback() {
+            @Override
+            public void onWriteFinished(Uri uri, int rowsChanged) {
+                //Toast message indicating the result, nothing saved when the write failed
+                if (rowsChanged <= 0) {
+                    Toast.makeText(appContext, R.string.pet_not_saved, Toast.LENGTH_SHORT).show();
+                } else {
+                    Toast.makeText(appContext, R.string.pet_saved, Toast.LENGTH_SHORT).show();
+                }
+            }
+        };
+
         //Insert or saved a new pet whether the user is creating a new pet or
-        // editing an existing one
+        // editing an existing one, in the background
         if (mCurrentPetUri == null) {
-            // Insert a new pet in the database, returning a new Uri for the row
-            Uri newUri = getContentResolver().insert(PetEntry.CONTENT_URI, values);
-
-            //Toast message indicating the result
-            if (newUri == null) {
-                Toast.makeText(this, R.string.pet_not_saved, Toast.LENGTH_SHORT).show();
-            } else {
-                Toast.makeText(this, R.string.pet_saved, Toast.LENGTH_SHORT).show();
-            }
+            // Insert a new pet in the database
+            PetWriteQueue.getInstance(this).insert(PetEntry.CONTENT_URI, values, callback);
         } else {
-            int petsChanged = getContentResolver().update(
-                    mCurrentPetUri,
-                    values,
-                    null,
-                    null);
-            //Toast message indicating the result
-            if (petsChanged == 0) {
-                Toast.makeText(this, R.string.pet_not_saved, Toast.LENGTH_SHORT).show();
-            } else {
-                Toast.makeText(this, R.string.pet_saved, Toast.LENGTH_SHORT).show();
-            }
+            PetWriteQueue.getInstance(this).update(mCurrentPetUri, values, callback);
         }
 
     }
@@ -238,17 +266,20 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         //Only delete if it's an existing pet.
         if (mCurrentPetUri != null) {
 
-            int rowsDeleted = getContentResolver().delete(
-                    mCurrentPetUri,
-                    null,
-                    null
-            );
-
-            if (rowsDeleted == 0) {
-                Toast.makeText(this, R.string.editor_delete_pet_failed, Toast.LENGTH_SHORT).show();
-            } else {
-                Toast.makeText(this, R.string.editor_delete_pet_successful, Toast.LENGTH_SHORT).show();
-            }
+            //Delete in the background and show the result once the activity is gone
+            final Context appContext = getApplicationContext();
+            PetWriteQueue.getInstance(this).delete(mCurrentPetUri, new PetWriteQueue.Callback() {
+                @Override
+                public void onWriteFinished(Uri uri, int rowsDeleted) {
+                    if (rowsDeleted <= 0) {
+                        Toast.makeText(appContext, R.string.editor_delete_pet_failed,
+                                Toast.LENGTH_SHORT).show();
+                    } else {
+                        Toast.makeText(appContext, R.string.editor_delete_pet_successful,
+                                Toast.LENGTH_SHORT).show();
+                    }
+                }
+            });
         }
 
         //Close the activity.
@@ -429,21 +460,42 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         }
         //Move the cursor to the next position
         cursor.moveToNext();
-        //Get the index of the cursor's columns
-        int nameIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_NAME);
-        int breedIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_BREED);
-        int genderIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_GENDER);
-        int weightIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_WEIGHT);
         //Get the values of the columns
-        String currentPetName = cursor.getString(nameIndex);
-        String currentPetBreed = cursor.getString(breedIndex);
-        int currentPetGender = cursor.getInt(genderIndex);
-        int currentPetWeight = cursor.getInt(weightIndex);
+        ContentValues pet = new ContentValues();
+        DatabaseUtils.cursorRowToContentValues(cursor, pet);
+        //The fields already show this pet when nothing changed since it was handed over
+        if (mShownPet == null || !isSamePet(pet, mShownPet)) {
+            showPet(pet);
+        }
+    }
+
+    /**
+     * Fill the fields with the columns of the given pet.
+     */
+    private void showPet(ContentValues pet) {
+        Integer gender = pet.getAsInteger(PetEntry.COLUMN_PET_GENDER);
+        Integer weight = pet.getAsInteger(PetEntry.COLUMN_PET_WEIGHT);
         //Assign the values to the corresponding fields
-        mNameEditText.setText(currentPetName);
-        mBreedEditText.setText(currentPetBreed);
-        mGenderSpinner.setSelection(currentPetGender);
-        mWeightEditText.setText(String.format("%d", currentPetWeight));
+        mNameEditText.setText(pet.getAsString(PetEntry.COLUMN_PET_NAME));
+        mBreedEditText.setText(pet.getAsString(PetEntry.COLUMN_PET_BREED));
+        mGenderSpinner.setSelection(gender != null ? gender : PetEntry.GENDER_UNKNOWN);
+        mWeightEditText.setText(String.format("%d", weight != null ? weight : 0));
+        mShownPet = pet;
+    }
+
+    /**
+     * Return true if both hold the same name, breed, gender and weight. The values may be
+     * text or numbers, depending on the cursor they were read from.
+     */
+    private static boolean isSamePet(ContentValues pet, ContentValues other) {
+        return TextUtils.equals(pet.getAsString(PetEntry.COLUMN_PET_NAME),
+                other.getAsString(PetEntry.COLUMN_PET_NAME)) &&
+                TextUtils.equals(pet.getAsString(PetEntry.COLUMN_PET_BREED),
+                        other.getAsString(PetEntry.COLUMN_PET_BREED)) &&
+                TextUtils.equals(pet.getAsString(PetEntry.COLUMN_PET_GENDER),
+                        other.getAsString(PetEntry.COLUMN_PET_GENDER)) &&
+                TextUtils.equals(pet.getAsString(PetEntry.COLUMN_PET_WEIGHT),
+                        other.getAsString(PetEntry.COLUMN_PET_WEIGHT));
     }
 
     @Override
@@ -453,5 +505,6 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         mBreedEditText.getText().clear();
         mGenderSpinner.setSelection(0);
         mWeightEditText.getText().clear();
+        mShownPet = null;
     }
 }
\ No newline at end of file
@@ -1,71 +1,255 @@
 package com.example.android.pets;
 
+import android.content.ContentValues;
 import android.content.Context;
+import android.database.CharArrayBuffer;
 import android.database.Cursor;
-import android.text.TextUtils;
+import android.database.DatabaseUtils;
+import android.os.AsyncTask;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.CursorAdapter;
 import android.widget.TextView;
 
 import com.example.android.pets.data.PetContract.PetEntry;
 
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
 /**
- * {@link PetCursorAdapter} is an adapter for a list or grid view
+ * {@link PetCursorAdapter} is an adapter for a {@link RecyclerView}
  * that uses a {@link Cursor} of pet data as its data source. This adapter knows
  * how to create list items for each row of pet data in the {@link Cursor}.
+ *
+ * When the cursor is swapped, the rows of the old and the new cursor are compared by _id and
+ * content on a background thread, and only the rows that were added, removed or changed are
+ * bound and animated again.
+ *
+ * Binding a row allocates nothing once the view holders exist: the column indices are looked
+ * up once per cursor, the text is copied into buffers owned by each view holder, and the
+ * unknown breed label is read once.
  */
-public class PetCursorAdapter extends CursorAdapter {
+public class PetCursorAdapter extends RecyclerView.Adapter<PetCursorAdapter.PetViewHolder> {
+
+    /**
+     * Listener for clicks on the pets of the list, given the columns of the clicked row.
+     */
+    public interface OnPetClickListener {
+        void onPetClick(long id, ContentValues row);
+    }
+
+    /**
+     * Listener told when a swapped cursor is finally shown, so the old one can be closed.
+     */
+    public interface OnCursorSwappedListener {
+        void onCursorSwapped();
+    }
+
+    //Computes the differences one at a time, in the order the cursors were swapped
+    private static final Executor DIFF_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    //Initial size of the text buffers of each view holder, enough for most names and breeds
+    private static final int TEXT_BUFFER_SIZE = 32;
+
+    private static final long[] NO_IDS = new long[0];
+    private static final int[] NO_HASHES = new int[0];
+
+    private final Context mContext;
+    private final OnPetClickListener mClickListener;
+    private OnCursorSwappedListener mSwappedListener;
+
+    //Shown instead of a blank breed
+    private final String mUnknownBreed;
+
+    //Cursor being shown, the columns of the name and breed in it, and the _id and content
+    //hash of each of its rows
+    private Cursor mCursor;
+    private int mNameColumn;
+    private int mBreedColumn;
+    private long[] mIds = NO_IDS;
+    private int[] mContentHashes = NO_HASHES;
+
+    //Increased on every swap, so the result of an older swap is never shown after a newer one
+    private int mSwapGeneration;
 
     /**
      * Constructs a new {@link PetCursorAdapter}.
      *
-     * @param context The context
-     * @param c       The cursor from which to get the data.
+     * @param context       The context
+     * @param clickListener Listener for clicks on the pets
      */
-    public PetCursorAdapter(Context context, Cursor c) {
-        super(context, c, 0 /* flags */);
+    public PetCursorAdapter(Context context, OnPetClickListener clickListener) {
+        mContext = context;
+        mClickListener = clickListener;
+        mUnknownBreed = context.getString(R.string.unknown_breed);
+        setHasStableIds(true);
+    }
+
+    public void setOnCursorSwappedListener(OnCursorSwappedListener listener) {
+        mSwappedListener = listener;
+    }
+
+    @Override
+    public int getItemCount() {
+        return mIds.length;
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return mIds[position];
     }
 
     /**
      * Makes a new blank list item view. No data is set (or bound) to the views yet.
-     *
-     * @param context app context
-     * @param cursor  The cursor from which to get the data. The cursor is already
-     *                moved to the correct position.
-     * @param parent  The parent to which the new view is attached to
-     * @return the newly created list item view.
      */
     @Override
-    public View newView(Context context, Cursor cursor, ViewGroup parent) {
-        //Return the list item view (instead of null)
-        return LayoutInflater.from(context).inflate(R.layout.list_item, parent, false);
+    public PetViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(mContext).inflate(R.layout.list_item, parent, false);
+        return new PetViewHolder(view);
     }
 
     /**
-     * This method binds the pet data (in the current row pointed to by cursor) to the given
-     * list item layout. For example, the name for the current pet can be set on the name TextView
-     * in the list item layout.
-     *
-     * @param view    Existing view, returned earlier by newView() method
-     * @param context app context
-     * @param cursor  The cursor from which to get the data. The cursor is already moved to the
-     *                correct row.
+     * This method binds the pet data in the given row of the cursor to the list item layout.
+     * For example, the name for the current pet can be set on the name TextView in the list
+     * item layout.
      */
     @Override
-    public void bindView(View view, Context context, Cursor cursor) {
-        //Find the fields to populate
-        TextView name = (TextView) view.findViewById(R.id.name);
-        TextView summary = (TextView) view.findViewById(R.id.summary);
-        //Extract the properties from the Cursor
-        String petName = cursor.getString(cursor.getColumnIndex(PetEntry.COLUMN_PET_NAME));
-        String petBreed = cursor.getString(cursor.getColumnIndex(PetEntry.COLUMN_PET_BREED));
-        if (TextUtils.isEmpty(petBreed)){
-            petBreed = context.getString(R.string.unknown_breed);
-        }
+    public void onBindViewHolder(PetViewHolder holder, int position) {
+        mCursor.moveToPosition(position);
+        //Copy the properties from the Cursor into the buffers of the holder, the text views
+        //show the buffers until the holder is bound again
+        mCursor.copyStringToBuffer(mNameColumn, holder.nameBuffer);
+        mCursor.copyStringToBuffer(mBreedColumn, holder.breedBuffer);
         //Populate the fields with the data from the Cursor
-        name.setText(petName);
-        summary.setText(petBreed);
+        holder.nameTextView.setText(holder.nameBuffer.data, 0, holder.nameBuffer.sizeCopied);
+        if (holder.breedBuffer.sizeCopied == 0) {
+            holder.summaryTextView.setText(mUnknownBreed);
+        } else {
+            holder.summaryTextView.setText(holder.breedBuffer.data, 0,
+                    holder.breedBuffer.sizeCopied);
+        }
+    }
+
+    /**
+     * Show a new cursor. The given arrays hold the _id and a hash of the shown columns of each
+     * row of the cursor. The differences with the current cursor are computed in the
+     * background, and the current cursor stays in use until they are applied, so it must not
+     * be closed before the {@link OnCursorSwappedListener} is called.
+     */
+    public void swapCursor(final Cursor newCursor, final long[] newIds,
+                           final int[] newContentHashes) {
+        final int generation = ++mSwapGeneration;
+        if (newCursor == null) {
+            //Nothing to compare, clear the list right away
+            mCursor = null;
+            mIds = NO_IDS;
+            mContentHashes = NO_HASHES;
+            notifyDataSetChanged();
+            if (mSwappedListener != null) {
+                mSwappedListener.onCursorSwapped();
+            }
+            return;
+        }
+
+        final long[] oldIds = mIds;
+        final int[] oldContentHashes = mContentHashes;
+        new AsyncTask<Void, Void, DiffUtil.DiffResult>() {
+            @Override
+            protected DiffUtil.DiffResult doInBackground(Void... params) {
+                return DiffUtil.calculateDiff(new RowDiffCallback(oldIds, oldContentHashes,
+                        newIds, newContentHashes), false);
+            }
+
+            @Override
+            protected void onPostExecute(DiffUtil.DiffResult diffResult) {
+                if (generation != mSwapGeneration) {
+                    //A newer cursor was swapped in the meantime
+                    return;
+                }
+                mCursor = newCursor;
+                mNameColumn = newCursor.getColumnIndex(PetEntry.COLUMN_PET_NAME);
+                mBreedColumn = newCursor.getColumnIndex(PetEntry.COLUMN_PET_BREED);
+                mIds = newIds;
+                mContentHashes = newContentHashes;
+                diffResult.dispatchUpdatesTo(PetCursorAdapter.this);
+                if (mSwappedListener != null) {
+                    mSwappedListener.onCursorSwapped();
+                }
+            }
+        }.executeOnExecutor(DIFF_EXECUTOR);
+    }
+
+    /**
+     * Compares two versions of the list: rows are the same pet when they have the same _id,
+     * and need to be bound again when the hash of their shown columns changed.
+     */
+    private static class RowDiffCallback extends DiffUtil.Callback {
+
+        private final long[] mOldIds;
+        private final int[] mOldContentHashes;
+        private final long[] mNewIds;
+        private final int[] mNewContentHashes;
+
+        RowDiffCallback(long[] oldIds, int[] oldContentHashes, long[] newIds,
+                        int[] newContentHashes) {
+            mOldIds = oldIds;
+            mOldContentHashes = oldContentHashes;
+            mNewIds = newIds;
+            mNewContentHashes = newContentHashes;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return mOldIds.length;
+        }
+
+        @Override
+        public int getNewListSize() {
+            return mNewIds.length;
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+            return mOldIds[oldItemPosition] == mNewIds[newItemPosition];
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+            return mOldContentHashes[oldItemPosition] == mNewContentHashes[newItemPosition];
+        }
+    }
+
+    /**
+     * Holds the views of a list item so they are only looked up once.
+     */
+    class PetViewHolder extends RecyclerView.ViewHolder {
+
+        final TextView nameTextView;
+        final TextView summaryTextView;
+
+        //Text of the bound row, grown by the cursor when a longer one comes along
+        final CharArrayBuffer nameBuffer = new CharArrayBuffer(TEXT_BUFFER_SIZE);
+        final CharArrayBuffer breedBuffer = new CharArrayBuffer(TEXT_BUFFER_SIZE);
+
+        PetViewHolder(View itemView) {
+            super(itemView);
+            nameTextView = (TextView) itemView.findViewById(R.id.name);
+            summaryTextView = (TextView) itemView.findViewById(R.id.summary);
+            //Open the pet when the item is clicked
+            itemView.setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View view) {
+                    int position = getAdapterPosition();
+                    if (position != RecyclerView.NO_POSITION) {
+                        ContentValues row = new ContentValues();
+                        mCursor.moveToPosition(position);
+                        DatabaseUtils.cursorRowToContentValues(mCursor, row);
+                        mClickListener.onPetClick(getItemId(), row);
+                    }
+                }
+            });
+        }
     }
-}
\ No newline at end of file
+}
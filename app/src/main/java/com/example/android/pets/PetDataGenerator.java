@@ -0,0 +1,110 @@
+package com.example.android.pets;
+
+import android.content.ContentValues;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.Random;
+
+/**
+ * Makes up shelter pets for load testing. The names, breeds, genders and weights follow the
+ * rough shape of a real shelter: a few names and breeds are very common and most are rare, some
+ * pets have no known breed or weight, and the weights depend on the breed. The same seed always
+ * makes the same pets, so a run can be reproduced on another build.
+ */
+public final class PetDataGenerator {
+
+    //Names, the first ones are picked the most often
+    private static final String[] NAMES = {
+            "Bella", "Max", "Luna", "Charlie", "Lucy", "Cooper", "Daisy", "Buddy", "Milo",
+            "Bailey", "Sadie", "Rocky", "Molly", "Bear", "Lola", "Duke", "Stella", "Tucker",
+            "Zoe", "Oliver", "Chloe", "Jack", "Penny", "Toby", "Coco", "Leo", "Rosie", "Teddy",
+            "Nala", "Winston", "Ruby", "Bentley", "Gracie", "Zeus", "Lily", "Oscar", "Pepper",
+            "Simba", "Maggie", "Louie", "Willow", "Murphy", "Roxy", "Gus", "Ginger", "Loki",
+            "Hazel", "Bruno", "Mia", "Jasper", "Olive", "Finn", "Cleo", "Ollie", "Millie",
+            "Shadow", "Pumpkin", "Oreo", "Smokey", "Toto"
+    };
+
+    //Breeds with how many pets in a thousand have them, and their mean and spread of weight
+    private static final String[] BREEDS = {
+            "Mixed", "Labrador", "Pit Bull", "Chihuahua", "German Shepherd", "Tabby",
+            "Domestic Shorthair", "Siamese", "Beagle", "Terrier", "Boxer", "Husky", "Maine Coon",
+            "Dachshund", "Persian", "Poodle", "Border Collie", "Rabbit"
+    };
+    private static final int[] BREED_PER_THOUSAND = {
+            180, 90, 85, 70, 55, 60, 120, 25, 35, 40, 25, 25, 15, 20, 10, 15, 15, 15
+    };
+    private static final int[] BREED_MEAN_WEIGHT = {
+            15, 30, 25, 2, 32, 5, 4, 4, 10, 8, 28, 23, 7, 9, 5, 12, 18, 2
+    };
+    private static final int[] BREED_WEIGHT_SPREAD = {
+            10, 5, 6, 1, 6, 1, 1, 1, 2, 3, 4, 4, 2, 3, 1, 6, 3, 1
+    };
+
+    //Pets in a thousand with an unknown gender, and with an unknown weight
+    private static final int UNKNOWN_GENDER_PER_THOUSAND = 50;
+    private static final int UNKNOWN_WEIGHT_PER_THOUSAND = 60;
+
+    private final Random mRandom;
+
+    //Running total of BREED_PER_THOUSAND, the pets past the last one have no breed
+    private final int[] mBreedThresholds = new int[BREED_PER_THOUSAND.length];
+
+    /**
+     * Create a generator that makes the pets of the given seed.
+     */
+    public PetDataGenerator(long seed) {
+        mRandom = new Random(seed);
+        int total = 0;
+        for (int i = 0; i < BREED_PER_THOUSAND.length; i++) {
+            total += BREED_PER_THOUSAND[i];
+            mBreedThresholds[i] = total;
+        }
+    }
+
+    /**
+     * Fill the values with the next pet and return them.
+     */
+    public ContentValues next(ContentValues values) {
+        values.clear();
+
+        //Squaring a uniform number favours the first names without ever excluding the last
+        double skew = mRandom.nextDouble();
+        values.put(PetEntry.COLUMN_PET_NAME, NAMES[(int) (skew * skew * NAMES.length)]);
+
+        int breed = pickBreed();
+        values.put(PetEntry.COLUMN_PET_BREED, breed < 0 ? null : BREEDS[breed]);
+
+        int gender = mRandom.nextInt(1000);
+        if (gender < UNKNOWN_GENDER_PER_THOUSAND) {
+            values.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_UNKNOWN);
+        } else {
+            values.put(PetEntry.COLUMN_PET_GENDER, gender % 2 == 0 ?
+                    PetEntry.GENDER_MALE : PetEntry.GENDER_FEMALE);
+        }
+
+        if (mRandom.nextInt(1000) < UNKNOWN_WEIGHT_PER_THOUSAND) {
+            values.putNull(PetEntry.COLUMN_PET_WEIGHT);
+        } else {
+            int mean = breed < 0 ? BREED_MEAN_WEIGHT[0] : BREED_MEAN_WEIGHT[breed];
+            int spread = breed < 0 ? BREED_WEIGHT_SPREAD[0] : BREED_WEIGHT_SPREAD[breed];
+            long weight = Math.round(mean + mRandom.nextGaussian() * spread);
+            values.put(PetEntry.COLUMN_PET_WEIGHT, Math.max(1, weight));
+        }
+        return values;
+    }
+
+    /**
+     * Return the index of a breed picked with the weights of BREED_PER_THOUSAND, or -1 for an
+     * unknown breed.
+     */
+    private int pickBreed() {
+        int pick = mRandom.nextInt(1000);
+        for (int i = 0; i < mBreedThresholds.length; i++) {
+            if (pick < mBreedThresholds[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,106 @@
+package com.example.android.pets;
+
+import android.annotation.TargetApi;
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.os.AsyncTask;
+import android.os.Build;
+
+import com.example.android.pets.data.PetContract;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the database maintenance of the pets provider about once a day, while the device is
+ * idle and charging so it never competes with the user. The work happens in the provider, on a
+ * background thread of this service. When the device stops being idle the maintenance is
+ * cancelled at its next step, or before it starts, and tried again later.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class PetMaintenanceService extends JobService {
+
+    private static final int JOB_ID = 1;
+
+    //How often the maintenance runs at most
+    private static final long INTERVAL_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    private AsyncTask<Void, Void, Void> mTask;
+
+    //Names the run of the current job to the provider, so a cancel that gets there before
+    //the run still stops it
+    private String mRunToken;
+
+    /**
+     * Schedule the maintenance, unless it already is. Does nothing before Lollipop, which has
+     * no job scheduler.
+     */
+    public static void schedule(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
+        JobScheduler scheduler =
+                (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        //Scheduling again would restart the interval every time the app opens
+        for (JobInfo job : scheduler.getAllPendingJobs()) {
+            if (job.getId() == JOB_ID) {
+                return;
+            }
+        }
+        scheduler.schedule(new JobInfo.Builder(JOB_ID,
+                new ComponentName(context, PetMaintenanceService.class))
+                .setRequiresDeviceIdle(true)
+                .setRequiresCharging(true)
+                .setPeriodic(INTERVAL_MILLIS)
+                .build());
+    }
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        final String token = UUID.randomUUID().toString();
+        mRunToken = token;
+        mTask = new AsyncTask<Void, Void, Void>() {
+            @Override
+            protected Void doInBackground(Void... voids) {
+                getContentResolver().call(PetContract.BASE_CONTENT_URI,
+                        PetContract.METHOD_RUN_MAINTENANCE, token, null);
+                return null;
+            }
+
+            @Override
+            protected void onPostExecute(Void result) {
+                jobFinished(params, false);
+            }
+        };
+        mTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        //The device is in use again, stop the maintenance and try again later. Cancelling the
+        //task only keeps it from finishing the job, the provider stops the run itself
+        if (mTask != null) {
+            mTask.cancel(false);
+            mTask = null;
+        }
+        //This runs on the main thread, so tell the provider from the background. The token
+        //stops the run even when this call gets to the provider first
+        final String token = mRunToken;
+        mRunToken = null;
+        final ContentResolver resolver = getContentResolver();
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                resolver.call(PetContract.BASE_CONTENT_URI,
+                        PetContract.METHOD_CANCEL_MAINTENANCE, token, null);
+            }
+        });
+        return true;
+    }
+}
@@ -0,0 +1,78 @@
+package com.example.android.pets;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * One page of the catalog list, together with the _id and a hash of the shown columns of each
+ * row. The keys are read on the loader thread, so {@link PetCursorAdapter} can find the rows
+ * that changed between two versions of the list without touching a cursor.
+ */
+class PetPageCursor extends CursorWrapper {
+
+    private final long[] mIds;
+    private final int[] mContentHashes;
+
+    //Sort key of the last row, null when the page is sorted by _id or the key is unknown
+    private final String mLastKey;
+
+    /**
+     * Wrap the given cursor, sorted by the given column, and read its keys. Call this on a
+     * background thread.
+     */
+    PetPageCursor(Cursor cursor, String sortColumn) {
+        super(cursor);
+        int count = cursor.getCount();
+        mIds = new long[count];
+        mContentHashes = new int[count];
+
+        int idIndex = cursor.getColumnIndex(PetEntry._ID);
+        int nameIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_NAME);
+        int breedIndex = cursor.getColumnIndex(PetEntry.COLUMN_PET_BREED);
+        for (int i = 0; cursor.moveToPosition(i); i++) {
+            mIds[i] = cursor.getLong(idIndex);
+            mContentHashes[i] = 31 * hashString(cursor.getString(nameIndex)) +
+                    hashString(cursor.getString(breedIndex));
+        }
+        if (count > 0 && !sortColumn.equals(PetEntry._ID) && cursor.moveToLast()) {
+            mLastKey = cursor.getString(cursor.getColumnIndexOrThrow(sortColumn));
+        } else {
+            mLastKey = null;
+        }
+        cursor.moveToPosition(-1);
+    }
+
+    private static int hashString(String value) {
+        return value == null ? 0 : value.hashCode();
+    }
+
+    /**
+     * Return the _id of every row, in order.
+     */
+    long[] getIds() {
+        return mIds;
+    }
+
+    /**
+     * Return a hash of the columns shown for every row, in order.
+     */
+    int[] getContentHashes() {
+        return mContentHashes;
+    }
+
+    /**
+     * Return the _id of the last row, or -1 if the page is empty.
+     */
+    long getLastId() {
+        return mIds.length == 0 ? -1 : mIds[mIds.length - 1];
+    }
+
+    /**
+     * Return the sort key of the last row, to continue the next page after it.
+     */
+    String getLastKey() {
+        return mLastKey;
+    }
+}
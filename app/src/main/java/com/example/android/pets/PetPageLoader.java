@@ -0,0 +1,87 @@
+package com.example.android.pets;
+
+import android.content.AsyncTaskLoader;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+
+/**
+ * Loads one page of the catalog list. It works like {@link android.content.CursorLoader}, except
+ * that it does not reload by itself whenever a pet changes. {@link CatalogActivity} watches the
+ * changes and calls {@link #onContentChanged()} only on the pages that a change can touch.
+ *
+ * The list keeps showing a page for a moment after a newer one is delivered, while the
+ * differences are computed, so the cursors this loader delivers belong to the caller, which
+ * must close them when it does not need them anymore.
+ */
+class PetPageLoader extends AsyncTaskLoader<Cursor> {
+
+    private final Uri mUri;
+    private final String[] mProjection;
+    private final String mSortColumn;
+
+    //Cursor that was last delivered
+    private Cursor mCursor;
+
+    PetPageLoader(Context context, Uri uri, String[] projection, String sortColumn) {
+        super(context);
+        mUri = uri;
+        mProjection = projection;
+        mSortColumn = sortColumn;
+    }
+
+    @Override
+    public Cursor loadInBackground() {
+        Cursor cursor = getContext().getContentResolver().query(mUri, mProjection, null, null, null);
+        if (cursor == null) {
+            return null;
+        }
+        //Fill the window and read the row keys here instead of on the main thread
+        return new PetPageCursor(cursor, mSortColumn);
+    }
+
+    @Override
+    public void deliverResult(Cursor cursor) {
+        if (isReset()) {
+            //The loader was reset while loading, nobody wants the cursor anymore
+            if (cursor != null) {
+                cursor.close();
+            }
+            return;
+        }
+        mCursor = cursor;
+        if (isStarted()) {
+            super.deliverResult(cursor);
+        }
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (mCursor != null) {
+            deliverResult(mCursor);
+        }
+        if (takeContentChanged() || mCursor == null) {
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+    }
+
+    @Override
+    public void onCanceled(Cursor cursor) {
+        if (cursor != null && !cursor.isClosed()) {
+            cursor.close();
+        }
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        onStopLoading();
+        //The delivered cursor belongs to the caller
+        mCursor = null;
+    }
+}
@@ -0,0 +1,39 @@
+package com.example.android.pets;
+
+import android.database.CharArrayBuffer;
+import android.database.MergeCursor;
+
+/**
+ * The pages of the catalog list shown as one cursor. Unlike a plain {@link MergeCursor} it
+ * copies strings straight from the page under the current row, so binding a row through
+ * {@link #copyStringToBuffer} never allocates a String.
+ */
+class PetPagesCursor extends MergeCursor {
+
+    private final PetPageCursor[] mPages;
+
+    //Position of the first row of each page
+    private final int[] mPageStarts;
+
+    PetPagesCursor(PetPageCursor[] pages) {
+        super(pages);
+        mPages = pages;
+        mPageStarts = new int[pages.length];
+        int start = 0;
+        for (int i = 0; i < pages.length; i++) {
+            mPageStarts[i] = start;
+            start += pages[i].getIds().length;
+        }
+    }
+
+    @Override
+    public void copyStringToBuffer(int columnIndex, CharArrayBuffer buffer) {
+        //The merged cursor already moved the page to the row, find which page that is
+        int position = getPosition();
+        int page = mPages.length - 1;
+        while (page > 0 && mPageStarts[page] > position) {
+            page--;
+        }
+        mPages[page].copyStringToBuffer(columnIndex, buffer);
+    }
+}
@@ -0,0 +1,358 @@
+package com.example.android.pets;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.res.AssetFileDescriptor;
+import android.net.Uri;
+import android.text.TextUtils;
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.BufferedReader;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Moves whole shelter rosters in and out of the pets table as CSV or JSON files, in the formats
+ * of {@link PetEntry#ROSTER_CSV_TYPE} and {@link PetEntry#ROSTER_JSON_TYPE}.
+ *
+ * Both directions stream: an export copies the pipe the provider writes into, and an import
+ * parses the file as it reads it and inserts every {@link #CHUNK_SIZE} pets with one bulk insert,
+ * which is one transaction. Only one chunk is ever held in memory, whatever the size of the file.
+ * Run them on a background thread.
+ */
+public final class PetRoster {
+
+    /**
+     * Receives the progress of an import or export, on the thread doing it.
+     */
+    public interface ProgressListener {
+        /**
+         * Called as the roster is copied, with the bytes done so far and the size of the file,
+         * or -1 when the size is not known.
+         */
+        void onProgress(long bytes, long totalBytes);
+    }
+
+    /**
+     * Number of pets an import inserts in one transaction.
+     */
+    public static final int CHUNK_SIZE = 500;
+
+    //Bytes copied between two progress reports of an export
+    private static final int EXPORT_PROGRESS_BYTES = 64 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private PetRoster() {
+    }
+
+    /**
+     * Write every pet to the output as a roster of the given type. Return the number of bytes
+     * written. The output is not closed.
+     */
+    public static long exportRoster(ContentResolver resolver, String mimeType, OutputStream output,
+                                    ProgressListener listener) throws IOException {
+        AssetFileDescriptor roster = resolver.openTypedAssetFileDescriptor(
+                PetEntry.CONTENT_URI, mimeType, null);
+        if (roster == null) {
+            throw new IOException("Pets cannot be exported as " + mimeType);
+        }
+        InputStream input = roster.createInputStream();
+        try {
+            byte[] buffer = new byte[8192];
+            long bytes = 0;
+            long reported = 0;
+            int count;
+            while ((count = input.read(buffer)) != -1) {
+                output.write(buffer, 0, count);
+                bytes += count;
+                if (listener != null && bytes - reported >= EXPORT_PROGRESS_BYTES) {
+                    listener.onProgress(bytes, -1);
+                    reported = bytes;
+                }
+            }
+            output.flush();
+            if (listener != null) {
+                listener.onProgress(bytes, -1);
+            }
+            return bytes;
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Insert every valid pet of a roster of the given type read from the input, which is
+     * totalBytes long or -1 if not known. Rows without a name or with a gender or weight that
+     * is not valid are skipped. The pets of the chunks inserted before an error stay inserted.
+     * The input is not closed.
+     */
+    public static ImportResult importRoster(ContentResolver resolver, String mimeType,
+                                            InputStream input, long totalBytes,
+                                            ProgressListener listener) throws IOException {
+        CountingInputStream counter = new CountingInputStream(input);
+        Reader reader = new BufferedReader(new InputStreamReader(counter, UTF_8));
+        ChunkInserter inserter = new ChunkInserter(resolver, counter, totalBytes, listener);
+        try {
+            if (PetEntry.ROSTER_JSON_TYPE.equals(mimeType)) {
+                readJson(reader, inserter);
+            } else {
+                readCsv(reader, inserter);
+            }
+            inserter.flush();
+        } finally {
+            //The chunks do not notify, so send the one notification for all of them, also for
+            //the chunks inserted before an error
+            if (inserter.mImported != 0) {
+                resolver.notifyChange(PetEntry.CONTENT_URI, null);
+            }
+        }
+        return new ImportResult(inserter.mImported, inserter.mSkipped);
+    }
+
+    /**
+     * Read a CSV roster. The header row says which column is which, columns that are not pet
+     * columns are ignored.
+     */
+    private static void readCsv(Reader reader, ChunkInserter inserter) throws IOException {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        if (!readCsvRecord(reader, fields, field)) {
+            return;
+        }
+        int[] columns = new int[PetEntry.ROSTER_COLUMNS.length];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = fields.indexOf(PetEntry.ROSTER_COLUMNS[i]);
+        }
+
+        while (readCsvRecord(reader, fields, field)) {
+            //Skip blank lines
+            if (fields.size() == 1 && fields.get(0).isEmpty()) {
+                continue;
+            }
+            String[] values = new String[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                int column = columns[i];
+                values[i] = column >= 0 && column < fields.size() ? fields.get(column) : null;
+            }
+            inserter.add(values[0], values[1], values[2], values[3]);
+        }
+    }
+
+    /**
+     * Read the next CSV record into the list of fields, handling quoted fields with commas,
+     * quotes and line breaks inside. Return false at the end of the file.
+     */
+    private static boolean readCsvRecord(Reader reader, List<String> fields, StringBuilder field)
+            throws IOException {
+        fields.clear();
+        field.setLength(0);
+        boolean quoted = false;
+        int c = reader.read();
+        if (c == -1) {
+            return false;
+        }
+        while (c != -1) {
+            if (quoted) {
+                if (c == '"') {
+                    reader.mark(1);
+                    int next = reader.read();
+                    if (next == '"') {
+                        field.append('"');
+                    } else {
+                        quoted = false;
+                        reader.reset();
+                    }
+                } else {
+                    field.append((char) c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else if (c == '\n') {
+                break;
+            } else if (c != '\r') {
+                field.append((char) c);
+            }
+            c = reader.read();
+        }
+        fields.add(field.toString());
+        return true;
+    }
+
+    /**
+     * Read a JSON roster, an array of pet objects. Names that are not pet columns are ignored.
+     */
+    private static void readJson(Reader reader, ChunkInserter inserter) throws IOException {
+        JsonReader json = new JsonReader(reader);
+        json.beginArray();
+        while (json.hasNext()) {
+            String name = null;
+            String breed = null;
+            String gender = null;
+            String weight = null;
+            json.beginObject();
+            while (json.hasNext()) {
+                String key = json.nextName();
+                JsonToken token = json.peek();
+                if (token != JsonToken.STRING && token != JsonToken.NUMBER) {
+                    //Nulls, and values no pet column can hold
+                    json.skipValue();
+                } else if (PetEntry.COLUMN_PET_NAME.equals(key)) {
+                    name = json.nextString();
+                } else if (PetEntry.COLUMN_PET_BREED.equals(key)) {
+                    breed = json.nextString();
+                } else if (PetEntry.COLUMN_PET_GENDER.equals(key)) {
+                    gender = json.nextString();
+                } else if (PetEntry.COLUMN_PET_WEIGHT.equals(key)) {
+                    weight = json.nextString();
+                } else {
+                    json.skipValue();
+                }
+            }
+            json.endObject();
+            inserter.add(name, breed, gender, weight);
+        }
+        json.endArray();
+    }
+
+    /**
+     * The outcome of an import.
+     */
+    public static final class ImportResult {
+        /** Number of pets inserted */
+        public final int imported;
+        /** Number of rows skipped because they were not valid pets */
+        public final int skipped;
+
+        ImportResult(int imported, int skipped) {
+            this.imported = imported;
+            this.skipped = skipped;
+        }
+    }
+
+    /**
+     * Collects the parsed pets and inserts them a chunk at a time, without notifying the
+     * observers of the pets.
+     */
+    private static final class ChunkInserter {
+        private final ContentResolver mResolver;
+        private final CountingInputStream mCounter;
+        private final long mTotalBytes;
+        private final ProgressListener mListener;
+        private final Uri mBatchUri = PetEntry.buildInsertBatchUri();
+        private final ContentValues[] mChunk = new ContentValues[CHUNK_SIZE];
+        private int mChunkSize;
+        private int mImported;
+        private int mSkipped;
+
+        ChunkInserter(ContentResolver resolver, CountingInputStream counter, long totalBytes,
+                      ProgressListener listener) {
+            mResolver = resolver;
+            mCounter = counter;
+            mTotalBytes = totalBytes;
+            mListener = listener;
+        }
+
+        /**
+         * Add a pet to the chunk with the values as read from the file, or skip it if they do
+         * not make a valid pet. Insert the chunk when it is full.
+         */
+        void add(String name, String breed, String gender, String weight) {
+            if (name == null || TextUtils.isEmpty(gender)) {
+                mSkipped++;
+                return;
+            }
+            int genderValue;
+            Integer weightValue;
+            try {
+                genderValue = Integer.parseInt(gender.trim());
+                weightValue = TextUtils.isEmpty(weight) ? null : Integer.valueOf(weight.trim());
+            } catch (NumberFormatException e) {
+                //A gender or weight that is not a number
+                mSkipped++;
+                return;
+            }
+            if (!PetEntry.isValidGender(genderValue) || (weightValue != null && weightValue < 0)) {
+                mSkipped++;
+                return;
+            }
+
+            ContentValues values = new ContentValues(4);
+            values.put(PetEntry.COLUMN_PET_NAME, name);
+            values.put(PetEntry.COLUMN_PET_BREED, TextUtils.isEmpty(breed) ? null : breed);
+            values.put(PetEntry.COLUMN_PET_GENDER, genderValue);
+            values.put(PetEntry.COLUMN_PET_WEIGHT, weightValue);
+
+            mChunk[mChunkSize++] = values;
+            if (mChunkSize == CHUNK_SIZE) {
+                flush();
+            }
+        }
+
+        /**
+         * Insert the pets of the chunk in one transaction and report the progress.
+         */
+        void flush() {
+            if (mChunkSize != 0) {
+                ContentValues[] chunk = mChunkSize == CHUNK_SIZE ? mChunk :
+                        Arrays.copyOf(mChunk, mChunkSize);
+                mImported += mResolver.bulkInsert(mBatchUri, chunk);
+                Arrays.fill(mChunk, null);
+                mChunkSize = 0;
+            }
+            if (mListener != null) {
+                mListener.onProgress(mCounter.mCount, mTotalBytes);
+            }
+        }
+    }
+
+    /**
+     * Input stream that counts the bytes read through it.
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+        long mCount;
+
+        CountingInputStream(InputStream input) {
+            super(input);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                mCount++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int count = super.read(buffer, offset, length);
+            if (count > 0) {
+                mCount += count;
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            mCount += skipped;
+            return skipped;
+        }
+    }
+}
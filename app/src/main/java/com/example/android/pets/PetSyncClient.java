@@ -0,0 +1,374 @@
+package com.example.android.pets;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.JsonWriter;
+
+import com.example.android.pets.data.PetContract;
+import com.example.android.pets.data.PetContract.ChangeEntry;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Sends the local changes to the pets to the headquarters server and applies the changes it
+ * has for this shelter. Only what changed since the last acknowledged token travels, in
+ * gzipped JSON batches of {@link #BATCH_SIZE} pets, so a sync costs the same for a shelter of
+ * ten pets or a million with the same number of changes. Run it on a background thread.
+ *
+ * The server is anything that answers at its base Url, which makes a local stand-in easy:
+ * <ul>
+ * <li>POST changes, gzipped: {"after": 12, "changes": [change, ...]}, answered with
+ * {"ack": 40}, the last change sequence number it stored.</li>
+ * <li>GET changes?limit=500&amp;after=token, the token left out on the first pull, answered,
+ * gzipped or not, with {"changes": [change, ...], "token": "...", "more": false}.</li>
+ * </ul>
+ * A change is {"sync_id": "9b1d...", "id": 3, "seq": 40, "deleted": false, "name": "Toto",
+ * "breed": "Terrier", "gender": 1, "weight": 7}, only the sync_id and deleted are needed for
+ * a deleted pet. The sync_id names the pet in every shelter, the id and seq are the _id and
+ * change sequence of this device and only sent in pushes. A pulled change to a pet changed
+ * here since the last acknowledged push is skipped, the push of the next sync sends the local
+ * change instead.
+ *
+ * The base Url comes from {@link #getServerUrl}, which the catalog lets the user change.
+ */
+public final class PetSyncClient {
+
+    /**
+     * Number of pets sent or received in one request.
+     */
+    public static final int BATCH_SIZE = 500;
+
+    private static final int TIMEOUT_MILLIS = 30000;
+
+    //Names of the JSON fields
+    private static final String FIELD_AFTER = "after";
+    private static final String FIELD_CHANGES = "changes";
+    private static final String FIELD_ACK = "ack";
+    private static final String FIELD_TOKEN = "token";
+    private static final String FIELD_MORE = "more";
+    private static final String FIELD_SYNC_ID = "sync_id";
+    private static final String FIELD_ID = "id";
+    private static final String FIELD_SEQ = "seq";
+    private static final String FIELD_DELETED = "deleted";
+
+    //Shared preferences with the server Url entered on this device
+    static final String PREFS_NAME = "pet_sync";
+    private static final String PREF_SERVER_URL = "server_url";
+
+    /**
+     * The number of pets sent and received by a sync, and of the received ones skipped since
+     * they changed here too.
+     */
+    public static final class Result {
+        public final int pushed;
+        public final int pulled;
+        public final int skipped;
+
+        Result(int pushed, int pulled, int skipped) {
+            this.pushed = pushed;
+            this.pulled = pulled;
+            this.skipped = skipped;
+        }
+    }
+
+    private final ContentResolver mResolver;
+    private final String mChangesUrl;
+
+    //Remote changes skipped by the pull that is running
+    private int mSkipped;
+
+    /**
+     * Create a client for the server at the given base Url, like https://hq.example.org/sync.
+     */
+    public PetSyncClient(ContentResolver resolver, String serverUrl) {
+        mResolver = resolver;
+        mChangesUrl = (serverUrl.endsWith("/") ? serverUrl : serverUrl + "/") + FIELD_CHANGES;
+    }
+
+    /**
+     * Push the local changes, then pull the remote ones, which include how headquarters
+     * settled any conflict with the pushed ones.
+     */
+    public Result sync() throws IOException {
+        Bundle state = mResolver.call(PetContract.BASE_CONTENT_URI,
+                PetContract.METHOD_GET_SYNC_STATE, null, null);
+        int pushed = push(state.getLong(PetContract.KEY_PUSH_TOKEN));
+        mSkipped = 0;
+        int pulled = pull(state.getString(PetContract.KEY_PULL_TOKEN));
+        return new Result(pushed, pulled, mSkipped);
+    }
+
+    /**
+     * Return the base Url of the headquarters server: the one set on this device, or else the
+     * one this build came with. Empty when there is neither.
+     */
+    public static String getServerUrl(Context context) {
+        String serverUrl = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+                .getString(PREF_SERVER_URL, null);
+        return serverUrl != null ? serverUrl : context.getString(R.string.config_sync_server_url);
+    }
+
+    /**
+     * Set the base Url of the headquarters server for this device.
+     */
+    public static void setServerUrl(Context context, String serverUrl) {
+        context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit()
+                .putString(PREF_SERVER_URL, serverUrl)
+                .apply();
+    }
+
+    /**
+     * Send the changes after the given token a batch at a time, moving the token forward as
+     * the server acknowledges them. Return the number of pets sent.
+     */
+    private int push(long token) throws IOException {
+        int pushed = 0;
+        while (true) {
+            Cursor cursor = mResolver.query(ChangeEntry.buildChangesUri(token, BATCH_SIZE),
+                    null, null, null, null);
+            if (cursor == null) {
+                throw new IOException("Changes are not available");
+            }
+            long lastSeq;
+            long ack;
+            int count;
+            try {
+                count = cursor.getCount();
+                if (count == 0) {
+                    return pushed;
+                }
+                cursor.moveToLast();
+                lastSeq = cursor.getLong(cursor.getColumnIndexOrThrow(
+                        ChangeEntry.COLUMN_CHANGE_SEQ));
+                ack = postChanges(token, cursor);
+            } finally {
+                cursor.close();
+            }
+
+            mResolver.call(PetContract.BASE_CONTENT_URI, PetContract.METHOD_ACKNOWLEDGE_CHANGES,
+                    String.valueOf(ack), null);
+            pushed += count;
+            //Sending the same batch again would never end
+            if (ack < lastSeq) {
+                throw new IOException("Server stored changes up to " + ack + " of " + lastSeq);
+            }
+            token = ack;
+        }
+    }
+
+    /**
+     * Post the changes of the cursor, which come after the given token, and return the
+     * sequence number the server acknowledged.
+     */
+    private long postChanges(long token, Cursor cursor) throws IOException {
+        HttpURLConnection connection = open(new URL(mChangesUrl));
+        try {
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setChunkedStreamingMode(0);
+            connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+            connection.setRequestProperty("Content-Encoding", "gzip");
+
+            JsonWriter json = new JsonWriter(new OutputStreamWriter(new GZIPOutputStream(
+                    new BufferedOutputStream(connection.getOutputStream())), "UTF-8"));
+            try {
+                json.beginObject();
+                json.name(FIELD_AFTER).value(token);
+                json.name(FIELD_CHANGES).beginArray();
+                for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+                    writeChange(json, cursor);
+                }
+                json.endArray();
+                json.endObject();
+            } finally {
+                json.close();
+            }
+
+            JsonReader reader = openResponse(connection);
+            try {
+                long ack = -1;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if (FIELD_ACK.equals(reader.nextName())) {
+                        ack = reader.nextLong();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+                if (ack < 0) {
+                    throw new IOException("Server did not acknowledge the changes");
+                }
+                return ack;
+            } finally {
+                reader.close();
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Write the change in the current row of the cursor as a JSON object.
+     */
+    private static void writeChange(JsonWriter json, Cursor cursor) throws IOException {
+        boolean deleted = cursor.getInt(cursor.getColumnIndexOrThrow(
+                ChangeEntry.COLUMN_DELETED)) != 0;
+        json.beginObject();
+        json.name(FIELD_SYNC_ID).value(cursor.getString(cursor.getColumnIndexOrThrow(
+                ChangeEntry.COLUMN_SYNC_ID)));
+        json.name(FIELD_ID).value(cursor.getLong(cursor.getColumnIndexOrThrow(ChangeEntry._ID)));
+        json.name(FIELD_SEQ).value(cursor.getLong(cursor.getColumnIndexOrThrow(
+                ChangeEntry.COLUMN_CHANGE_SEQ)));
+        json.name(FIELD_DELETED).value(deleted);
+        if (!deleted) {
+            json.name(ChangeEntry.COLUMN_PET_NAME).value(cursor.getString(
+                    cursor.getColumnIndexOrThrow(ChangeEntry.COLUMN_PET_NAME)));
+            json.name(ChangeEntry.COLUMN_PET_BREED).value(cursor.getString(
+                    cursor.getColumnIndexOrThrow(ChangeEntry.COLUMN_PET_BREED)));
+            json.name(ChangeEntry.COLUMN_PET_GENDER).value(cursor.getInt(
+                    cursor.getColumnIndexOrThrow(ChangeEntry.COLUMN_PET_GENDER)));
+            int weightIndex = cursor.getColumnIndexOrThrow(ChangeEntry.COLUMN_PET_WEIGHT);
+            json.name(ChangeEntry.COLUMN_PET_WEIGHT);
+            if (cursor.isNull(weightIndex)) {
+                json.nullValue();
+            } else {
+                json.value(cursor.getInt(weightIndex));
+            }
+        }
+        json.endObject();
+    }
+
+    /**
+     * Get the remote changes after the given token a batch at a time and apply every batch
+     * together with its token. Return the number of pets received.
+     */
+    private int pull(String token) throws IOException {
+        int pulled = 0;
+        boolean more = true;
+        while (more) {
+            String url = mChangesUrl + "?limit=" + BATCH_SIZE;
+            if (token != null) {
+                url += "&" + FIELD_AFTER + "=" + URLEncoder.encode(token, "UTF-8");
+            }
+            ArrayList<ContentValues> changes = new ArrayList<>();
+            HttpURLConnection connection = open(new URL(url));
+            try {
+                JsonReader reader = openResponse(connection);
+                try {
+                    more = false;
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String name = reader.nextName();
+                        if (FIELD_CHANGES.equals(name)) {
+                            reader.beginArray();
+                            while (reader.hasNext()) {
+                                changes.add(readChange(reader));
+                            }
+                            reader.endArray();
+                        } else if (FIELD_TOKEN.equals(name)) {
+                            token = reader.nextString();
+                        } else if (FIELD_MORE.equals(name)) {
+                            more = reader.nextBoolean();
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                } finally {
+                    reader.close();
+                }
+            } finally {
+                connection.disconnect();
+            }
+
+            //The token is stored with the changes, so a failed sync starts again from there
+            Bundle extras = new Bundle();
+            extras.putParcelableArrayList(PetContract.KEY_CHANGES, changes);
+            extras.putString(PetContract.KEY_PULL_TOKEN, token);
+            Bundle applied = mResolver.call(PetContract.BASE_CONTENT_URI,
+                    PetContract.METHOD_APPLY_REMOTE_CHANGES, null, extras);
+            mSkipped += applied.getInt(PetContract.KEY_SKIPPED_COUNT);
+            pulled += changes.size();
+            if (changes.isEmpty()) {
+                break;
+            }
+        }
+        return pulled;
+    }
+
+    /**
+     * Read a change object into the columns of {@link ChangeEntry}. The id of the sending
+     * device means nothing here and is left out.
+     */
+    private static ContentValues readChange(JsonReader reader) throws IOException {
+        ContentValues values = new ContentValues();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                if (ChangeEntry.COLUMN_PET_BREED.equals(name) ||
+                        ChangeEntry.COLUMN_PET_WEIGHT.equals(name)) {
+                    values.putNull(name);
+                }
+            } else if (FIELD_SYNC_ID.equals(name)) {
+                values.put(ChangeEntry.COLUMN_SYNC_ID, reader.nextString());
+            } else if (FIELD_DELETED.equals(name)) {
+                values.put(ChangeEntry.COLUMN_DELETED, reader.nextBoolean() ? 1 : 0);
+            } else if (ChangeEntry.COLUMN_PET_NAME.equals(name) ||
+                    ChangeEntry.COLUMN_PET_BREED.equals(name)) {
+                values.put(name, reader.nextString());
+            } else if (ChangeEntry.COLUMN_PET_GENDER.equals(name) ||
+                    ChangeEntry.COLUMN_PET_WEIGHT.equals(name)) {
+                values.put(name, reader.nextInt());
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return values;
+    }
+
+    private static HttpURLConnection open(URL url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(TIMEOUT_MILLIS);
+        connection.setReadTimeout(TIMEOUT_MILLIS);
+        connection.setRequestProperty("Accept", "application/json");
+        //Asked for explicitly, so the response is unzipped below whatever the platform does
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        return connection;
+    }
+
+    /**
+     * Check the status of the response and return a reader over its body.
+     */
+    private static JsonReader openResponse(HttpURLConnection connection) throws IOException {
+        int status = connection.getResponseCode();
+        if (status != HttpURLConnection.HTTP_OK) {
+            throw new IOException("Server answered " + status + " " +
+                    connection.getResponseMessage());
+        }
+        InputStream input = new BufferedInputStream(connection.getInputStream());
+        if ("gzip".equalsIgnoreCase(connection.getContentEncoding())) {
+            input = new GZIPInputStream(input);
+        }
+        return new JsonReader(new InputStreamReader(input, "UTF-8"));
+    }
+}
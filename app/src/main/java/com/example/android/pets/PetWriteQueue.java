@@ -0,0 +1,406 @@
+package com.example.android.pets;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract;
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.StatsEntry;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs the pet writes of the activities on a background thread, one after the other in the
+ * order they were submitted, and reports every result on the main thread.
+ *
+ * Writes to the same pet that are still waiting are merged: an update submitted while another
+ * update of the same Uri has not started yet is folded into it, with the newer values winning,
+ * and a repeated delete of the same Uri joins the waiting one. A write is only merged into the
+ * last one waiting for its Uri, never past a write that could touch the same rows, so the
+ * database always ends up as if every write had run in order. Every merged write still gets
+ * its callback, with the result of the single database operation.
+ */
+public final class PetWriteQueue {
+
+    /**
+     * Receives the result of a write on the main thread.
+     */
+    public interface Callback {
+        /**
+         * Called when the write is done. For an insert the Uri is the one of the new pet, or
+         * null if it was not inserted, and the row count is 1 or 0. For an update or delete the
+         * Uri is the one that was written and the row count is the number of rows changed. If
+         * the provider threw, the row count is {@link #FAILED}.
+         */
+        void onWriteFinished(Uri uri, int rowsChanged);
+    }
+
+    /**
+     * Receives the progress of a long write on the main thread.
+     */
+    public interface ProgressListener {
+        /**
+         * Called after every batch with the rows done so far and the rows there are in total.
+         */
+        void onWriteProgress(int rowsDone, int rowsTotal);
+    }
+
+    /** Row count given to the callbacks of a write the provider threw on. */
+    public static final int FAILED = -1;
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = PetWriteQueue.class.getSimpleName();
+
+    //Rows deleted by each statement of deleteAllPets
+    private static final int DELETE_BATCH_SIZE = 500;
+
+    //Rows inserted by each bulk insert of insertGeneratedPets
+    private static final int INSERT_BATCH_SIZE = 1000;
+
+    private static PetWriteQueue sInstance;
+
+    private final ContentResolver mResolver;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    //Update or delete that has not started yet and was the last write queued for its Uri, by
+    //that Uri. Only these can take in a newer write of the same Uri.
+    private final Map<Uri, PendingWrite> mLastWrites = new HashMap<>();
+
+    /**
+     * Return the queue of the app.
+     */
+    public static synchronized PetWriteQueue getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PetWriteQueue(context.getApplicationContext().getContentResolver());
+        }
+        return sInstance;
+    }
+
+    private PetWriteQueue(ContentResolver resolver) {
+        mResolver = resolver;
+    }
+
+    /**
+     * Insert a pet with the given values into the table of the given Uri.
+     */
+    public void insert(final Uri uri, ContentValues values, Callback callback) {
+        final ContentValues copy = new ContentValues(values);
+        final PendingWrite write = new PendingWrite(PendingWrite.INSERT, callback);
+        synchronized (this) {
+            onQueued(uri, null);
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Uri newUri;
+                try {
+                    newUri = mResolver.insert(uri, copy);
+                } catch (RuntimeException e) {
+                    write.fail(null, e);
+                    return;
+                }
+                write.finish(newUri, newUri == null ? 0 : 1);
+            }
+        });
+    }
+
+    /**
+     * Update the rows of the given Uri with the given values. Merged with an update of the same
+     * Uri that has not started yet, if it is the last write queued for the Uri.
+     */
+    public void update(final Uri uri, ContentValues values, Callback callback) {
+        final PendingWrite write;
+        synchronized (this) {
+            PendingWrite pending = mLastWrites.get(uri);
+            if (pending != null && pending.kind == PendingWrite.UPDATE) {
+                pending.values.putAll(values);
+                pending.addCallback(callback);
+                return;
+            }
+            write = new PendingWrite(PendingWrite.UPDATE, callback);
+            write.values.putAll(values);
+            onQueued(uri, write);
+        }
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                //From here on a new update of the Uri is a separate write
+                onStarted(uri, write);
+                int rowsUpdated;
+                try {
+                    rowsUpdated = mResolver.update(uri, write.values, null, null);
+                } catch (RuntimeException e) {
+                    write.fail(uri, e);
+                    return;
+                }
+                write.finish(uri, rowsUpdated);
+            }
+        });
+    }
+
+    /**
+     * Delete the rows of the given Uri. Merged with a delete of the same Uri that has not
+     * started yet, if it is the last write queued for the Uri.
+     */
+    public void delete(final Uri uri, Callback callback) {
+        final PendingWrite write;
+        synchronized (this) {
+            PendingWrite pending = mLastWrites.get(uri);
+            if (pending != null && pending.kind == PendingWrite.DELETE) {
+                pending.addCallback(callback);
+                return;
+            }
+            write = new PendingWrite(PendingWrite.DELETE, callback);
+            onQueued(uri, write);
+        }
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                onStarted(uri, write);
+                int rowsDeleted;
+                try {
+                    rowsDeleted = mResolver.delete(uri, null, null);
+                } catch (RuntimeException e) {
+                    write.fail(uri, e);
+                    return;
+                }
+                write.finish(uri, rowsDeleted);
+            }
+        });
+    }
+
+    /**
+     * Record that a write of the given Uri was queued behind every waiting write. The waiting
+     * writes that may touch the same rows can no longer take in newer writes, which would then
+     * run before this one. The write is kept as the last one of its Uri, unless it is null.
+     * Call with the lock held.
+     */
+    private void onQueued(Uri uri, PendingWrite write) {
+        if (isSinglePet(uri)) {
+            //Writes of other single pets never touch this one, writes of many pets might
+            Iterator<Uri> iterator = mLastWrites.keySet().iterator();
+            while (iterator.hasNext()) {
+                Uri pendingUri = iterator.next();
+                if (pendingUri.equals(uri) || !isSinglePet(pendingUri)) {
+                    iterator.remove();
+                }
+            }
+        } else {
+            mLastWrites.clear();
+        }
+        if (write != null) {
+            mLastWrites.put(uri, write);
+        }
+    }
+
+    /**
+     * Record that the given write of the Uri has started, so it takes in no more writes.
+     */
+    private synchronized void onStarted(Uri uri, PendingWrite write) {
+        if (mLastWrites.get(uri) == write) {
+            mLastWrites.remove(uri);
+        }
+    }
+
+    /**
+     * Return true if the Uri is the one of a single pet.
+     */
+    private static boolean isSinglePet(Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        return segments.size() == 2 && PetContract.PATH_PETS.equals(segments.get(0)) &&
+                TextUtils.isDigitsOnly(segments.get(1));
+    }
+
+    /**
+     * Delete every pet a batch at a time, so readers get to the database in between the
+     * batches instead of waiting for one long delete. The observers of the pets are notified
+     * once at the end. Other writes submitted meanwhile wait until all the pets are deleted.
+     * If a batch fails the callback gets {@link #FAILED}, and the pets deleted by the batches
+     * before it stay deleted.
+     */
+    public void deleteAllPets(final ProgressListener listener, Callback callback) {
+        final PendingWrite write = new PendingWrite(PendingWrite.DELETE, callback);
+        synchronized (this) {
+            onQueued(PetEntry.CONTENT_URI, null);
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Uri batchUri = PetEntry.buildDeleteBatchUri(DELETE_BATCH_SIZE);
+                int deleted = 0;
+                try {
+                    int total = countPets();
+                    int rows;
+                    while ((rows = mResolver.delete(batchUri, null, null)) > 0) {
+                        deleted += rows;
+                        postProgress(listener, deleted, Math.max(total, deleted));
+                    }
+                } catch (RuntimeException e) {
+                    //The batches already deleted stay deleted
+                    write.fail(PetEntry.CONTENT_URI, e);
+                    return;
+                } finally {
+                    //The batches do not notify, so send the one notification for all of them
+                    if (deleted != 0) {
+                        mResolver.notifyChange(PetEntry.CONTENT_URI, null);
+                    }
+                }
+                write.finish(PetEntry.CONTENT_URI, deleted);
+            }
+        });
+    }
+
+    /**
+     * Insert the given number of pets made up by the generator, a bulk insert of a batch at a
+     * time. The observers of the pets are notified once at the end. Other writes submitted
+     * meanwhile wait until all the pets are inserted. If a batch fails the callback gets
+     * {@link #FAILED}, and the pets inserted by the batches before it stay inserted.
+     */
+    public void insertGeneratedPets(final PetDataGenerator generator, final int count,
+                                    final ProgressListener listener, Callback callback) {
+        final PendingWrite write = new PendingWrite(PendingWrite.INSERT, callback);
+        synchronized (this) {
+            onQueued(PetEntry.CONTENT_URI, null);
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Uri batchUri = PetEntry.buildInsertBatchUri();
+                ContentValues[] batch = new ContentValues[Math.min(count, INSERT_BATCH_SIZE)];
+                for (int i = 0; i < batch.length; i++) {
+                    batch[i] = new ContentValues();
+                }
+                int generated = 0;
+                int inserted = 0;
+                try {
+                    while (generated < count) {
+                        int size = Math.min(batch.length, count - generated);
+                        if (size != batch.length) {
+                            ContentValues[] last = new ContentValues[size];
+                            System.arraycopy(batch, 0, last, 0, size);
+                            batch = last;
+                        }
+                        for (ContentValues values : batch) {
+                            generator.next(values);
+                        }
+                        generated += size;
+                        inserted += mResolver.bulkInsert(batchUri, batch);
+                        postProgress(listener, generated, count);
+                    }
+                } catch (RuntimeException e) {
+                    //The batches already inserted stay inserted
+                    write.fail(PetEntry.CONTENT_URI, e);
+                    return;
+                } finally {
+                    //The batches do not notify, so send the one notification for all of them
+                    if (inserted != 0) {
+                        mResolver.notifyChange(PetEntry.CONTENT_URI, null);
+                    }
+                }
+                write.finish(PetEntry.CONTENT_URI, inserted);
+            }
+        });
+    }
+
+    /**
+     * Return the number of pets, read from the totals row of the statistics.
+     */
+    private int countPets() {
+        Cursor cursor = mResolver.query(StatsEntry.CONTENT_URI,
+                new String[]{StatsEntry.COLUMN_PET_COUNT},
+                StatsEntry.COLUMN_GENDER + " IS NULL", null, null);
+        if (cursor == null) {
+            return 0;
+        }
+        try {
+            return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Report the progress of a write to the listener on the main thread.
+     */
+    private void postProgress(final ProgressListener listener, final int rowsDone,
+                              final int rowsTotal) {
+        if (listener == null) {
+            return;
+        }
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onWriteProgress(rowsDone, rowsTotal);
+            }
+        });
+    }
+
+    /**
+     * A write waiting to run, with the values it will write and everyone waiting for it.
+     * The values and callbacks are only touched while holding the queue's lock, until the write
+     * has been taken out of the last writes.
+     */
+    private final class PendingWrite {
+
+        //Kinds of writes
+        static final int INSERT = 0;
+        static final int UPDATE = 1;
+        static final int DELETE = 2;
+
+        final int kind;
+        final ContentValues values = new ContentValues();
+        private final List<Callback> mCallbacks = new ArrayList<>(1);
+
+        PendingWrite(int kind, Callback callback) {
+            this.kind = kind;
+            addCallback(callback);
+        }
+
+        void addCallback(Callback callback) {
+            if (callback != null) {
+                mCallbacks.add(callback);
+            }
+        }
+
+        /**
+         * Report the result to the callbacks on the main thread.
+         */
+        void finish(final Uri uri, final int rowsChanged) {
+            if (mCallbacks.isEmpty()) {
+                return;
+            }
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (Callback callback : mCallbacks) {
+                        callback.onWriteFinished(uri, rowsChanged);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Log the exception the provider threw and report the failure to the callbacks.
+         */
+        void fail(Uri uri, RuntimeException e) {
+            Log.e(LOG_TAG, "Write failed for " + (uri != null ? uri : "new pet"), e);
+            finish(uri, FAILED);
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.example.android.pets;
+
+import android.app.Application;
+
+/**
+ * Marks the start of the app for the {@link StartupTrace}. The pets database is not touched
+ * here, since the process also starts for the maintenance job and the sync, which have no use
+ * for the first page of the list. The catalog warms the database up itself when it is the
+ * reason the process started.
+ */
+public class ShelterApplication extends Application {
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        StartupTrace.mark(StartupTrace.APPLICATION_CREATED);
+    }
+}
@@ -0,0 +1,90 @@
+package com.example.android.pets;
+
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Times the cold start of the app, from the start of the process to the first frame of the
+ * catalog list with its first page of pets. The steps are logged once per process in one line
+ * under the {@link #LOG_TAG} tag, with the version of the app, so the time to the first list can
+ * be compared across releases with adb logcat -s ShelterStartup.
+ *
+ * Before Nougat the start of the process is not known, so the times start when the app class
+ * loads, which leaves out the time Android took to fork the process.
+ */
+final class StartupTrace {
+
+    static final String LOG_TAG = "ShelterStartup";
+
+    //Steps of a cold start, in the order they are usually reached
+    static final int APPLICATION_CREATED = 0;
+    static final int DATABASE_PREWARMED = 1;
+    static final int LIST_PREWARMED = 2;
+    static final int CATALOG_CREATED = 3;
+    static final int FIRST_LIST_FRAME = 4;
+
+    private static final String[] STEP_NAMES = {
+            "application", "database", "list_query", "catalog", "first_list_frame"
+    };
+
+    //A catalog created this long after the app is not part of a cold start, the process was
+    //started for something else, like the maintenance job
+    private static final long MAX_COLD_START_MILLIS = 5000;
+
+    //Elapsed realtime of the start of the process and of every step, 0 for the steps not
+    //reached yet
+    private static final long sProcessStart = Build.VERSION.SDK_INT >= Build.VERSION_CODES.N ?
+            Process.getStartElapsedRealtime() : SystemClock.elapsedRealtime();
+    private static final long[] sSteps = new long[STEP_NAMES.length];
+
+    private static boolean sReported;
+
+    private StartupTrace() {
+    }
+
+    /**
+     * Record that the given step was reached now, unless it already was.
+     */
+    static synchronized void mark(int step) {
+        if (sSteps[step] == 0) {
+            sSteps[step] = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * Return true while the first frame of the list is still to be reported.
+     */
+    static synchronized boolean isFirstListPending() {
+        return !sReported;
+    }
+
+    /**
+     * Record the first frame that shows the list, with the given number of pets in its first
+     * page, and log the times of the cold start. Only the first call does anything.
+     */
+    static synchronized void reportFirstListFrame(int rowCount) {
+        if (sReported) {
+            return;
+        }
+        sReported = true;
+        mark(FIRST_LIST_FRAME);
+        if (sSteps[CATALOG_CREATED] == 0 || sSteps[APPLICATION_CREATED] == 0 ||
+                sSteps[CATALOG_CREATED] - sSteps[APPLICATION_CREATED] > MAX_COLD_START_MILLIS) {
+            return;
+        }
+
+        StringBuilder line = new StringBuilder("version=").append(BuildConfig.VERSION_NAME)
+                .append(" rows=").append(rowCount);
+        for (int step = 0; step < sSteps.length; step++) {
+            line.append(' ').append(STEP_NAMES[step]).append('=');
+            if (sSteps[step] == 0) {
+                line.append('-');
+            } else {
+                line.append(sSteps[step] - sProcessStart).append("ms");
+            }
+        }
+        Log.i(LOG_TAG, line.toString());
+    }
+}
@@ -0,0 +1,165 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteTransactionListener;
+
+import com.example.android.pets.data.PetContract.BreedEntry;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory copy of the breeds table for {@link PetProvider}, which turns the breed names it is
+ * given into the breed_id stored with each pet. Shelters have a few dozen breeds, so after the
+ * first write every lookup is a map hit, and a new name costs one insert into the table.
+ *
+ * Breeds are never deleted, so a cached id stays right for the life of the database. An id is
+ * only cached once it is committed, because a rollback would give it to another name. The
+ * transactions begun with {@link #beginTransaction} keep the ids they read or add until they
+ * commit, so a batch looks up each new name once. In any other transaction the names that are
+ * not cached are looked up in the table every time.
+ */
+final class PetBreeds {
+
+    private static final String ID_QUERY = "SELECT " + BreedEntry._ID + " FROM " +
+            BreedEntry.TABLE_NAME + " WHERE " + BreedEntry.COLUMN_BREED_NAME + " = ?";
+
+    private static final String INSERT_SQL = "INSERT OR IGNORE INTO " + BreedEntry.TABLE_NAME +
+            " (" + BreedEntry.COLUMN_BREED_NAME + ") VALUES (?)";
+
+    //breed_id of every breed name read so far
+    private final ConcurrentHashMap<String, Long> mIds = new ConcurrentHashMap<>();
+
+    //Whether the whole table has been read into mIds
+    private volatile boolean mLoaded;
+
+    //Ids read or added by the transaction of each thread begun with beginTransaction
+    private final ThreadLocal<HashMap<String, Long>> mPendingIds = new ThreadLocal<>();
+
+    /**
+     * Read the whole breeds table into memory, unless it already is. Does nothing inside a
+     * transaction, where the table may hold breeds that are not committed yet.
+     */
+    void load(SQLiteDatabase db) {
+        if (mLoaded || db.inTransaction()) {
+            return;
+        }
+        Cursor cursor = db.query(BreedEntry.TABLE_NAME,
+                new String[]{BreedEntry._ID, BreedEntry.COLUMN_BREED_NAME},
+                null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                mIds.put(cursor.getString(1), cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        mLoaded = true;
+    }
+
+    /**
+     * Return the breed_id of the breed with the given name, adding the breed to the table if it
+     * is new, or null for a pet without a breed.
+     */
+    Long getId(SQLiteDatabase db, String name) {
+        if (name == null) {
+            return null;
+        }
+        load(db);
+        Long id = mIds.get(name);
+        if (id != null) {
+            return id;
+        }
+        HashMap<String, Long> pendingIds = db.inTransaction() ? mPendingIds.get() : null;
+        if (pendingIds != null) {
+            id = pendingIds.get(name);
+            if (id != null) {
+                return id;
+            }
+        }
+
+        //Another thread may add the same name meanwhile, the insert then does nothing
+        id = queryId(db, name);
+        if (id == null) {
+            db.execSQL(INSERT_SQL, new Object[]{name});
+            id = queryId(db, name);
+        }
+        if (!db.inTransaction()) {
+            mIds.put(name, id);
+        } else if (pendingIds != null) {
+            pendingIds.put(name, id);
+        }
+        return id;
+    }
+
+    /**
+     * Begin a transaction that writes pets. The table is read first, while every breed in it
+     * is committed, and the ids the transaction reads or adds are cached once it commits,
+     * including at the yield points. A transaction nested in another one is begun as usual.
+     */
+    void beginTransaction(SQLiteDatabase db) {
+        if (db.inTransaction()) {
+            db.beginTransaction();
+            return;
+        }
+        load(db);
+        db.beginTransactionWithListener(new SQLiteTransactionListener() {
+            private final HashMap<String, Long> mIdsToCommit = new HashMap<>();
+
+            @Override
+            public void onBegin() {
+                mPendingIds.set(mIdsToCommit);
+            }
+
+            @Override
+            public void onCommit() {
+                mIds.putAll(mIdsToCommit);
+                end();
+            }
+
+            @Override
+            public void onRollback() {
+                end();
+            }
+
+            private void end() {
+                mIdsToCommit.clear();
+                mPendingIds.remove();
+            }
+        });
+    }
+
+    /**
+     * Return the values to write to the pets table for the given values of the provider, with
+     * the breed name replaced by its breed_id. The given values are not changed.
+     */
+    ContentValues toTableValues(SQLiteDatabase db, ContentValues values) {
+        if (!values.containsKey(PetEntry.COLUMN_PET_BREED)) {
+            return values;
+        }
+        ContentValues tableValues = new ContentValues(values);
+        tableValues.remove(PetEntry.COLUMN_PET_BREED);
+        tableValues.put(PetEntry.COLUMN_BREED_ID,
+                getId(db, values.getAsString(PetEntry.COLUMN_PET_BREED)));
+        return tableValues;
+    }
+
+    /**
+     * Return the number of breeds in memory.
+     */
+    int size() {
+        return mIds.size();
+    }
+
+    private static Long queryId(SQLiteDatabase db, String name) {
+        Cursor cursor = db.rawQuery(ID_QUERY, new String[]{name});
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+}
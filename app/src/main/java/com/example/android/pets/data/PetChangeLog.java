@@ -0,0 +1,182 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Bundle;
+
+import com.example.android.pets.data.PetContract.ChangeEntry;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.List;
+
+/**
+ * Reads and writes the change tracking of the pets for {@link PetProvider}: the changes after
+ * a sequence number, the sync state, and the changes pulled from headquarters. The numbering
+ * itself is done by the triggers of {@link PetDbHelper}, so every write path of the provider
+ * is tracked without knowing about it.
+ */
+final class PetChangeLog {
+
+    //The changed pets and the tombstones, merged in change order. Both halves seek on their
+    //change_seq index, so the cost follows the number of changes, not of pets
+    private static final String CHANGES_QUERY = "SELECT " +
+            PetEntry._ID + ", " +
+            PetEntry.COLUMN_PET_NAME + ", " +
+            PetEntry.COLUMN_PET_BREED + ", " +
+            PetEntry.COLUMN_PET_GENDER + ", " +
+            PetEntry.COLUMN_PET_WEIGHT + ", " +
+            PetEntry.COLUMN_CHANGE_SEQ + ", " +
+            PetEntry.COLUMN_SYNC_ID + ", 0 AS " + ChangeEntry.COLUMN_DELETED +
+            " FROM " + PetEntry.VIEW_NAME + " WHERE " + PetEntry.COLUMN_CHANGE_SEQ + " > ?" +
+            " UNION ALL SELECT " + ChangeEntry._ID + ", NULL, NULL, NULL, NULL, " +
+            ChangeEntry.COLUMN_CHANGE_SEQ + ", " + ChangeEntry.COLUMN_SYNC_ID + ", 1 FROM " +
+            ChangeEntry.TOMBSTONE_TABLE_NAME +
+            " WHERE " + ChangeEntry.COLUMN_CHANGE_SEQ + " > ?" +
+            " ORDER BY " + ChangeEntry.COLUMN_CHANGE_SEQ + " LIMIT ";
+
+    //Columns read to find the pet of a remote change and whether it changed here since
+    private static final String[] LOCAL_COLUMNS = {PetEntry._ID, PetEntry.COLUMN_CHANGE_SEQ};
+
+    //Change sequence of the local delete of the pet with a sync id, 0 if it was not deleted
+    private static final String TOMBSTONE_SEQ_QUERY = "SELECT IFNULL(MAX(" +
+            ChangeEntry.COLUMN_CHANGE_SEQ + "), 0) FROM " + ChangeEntry.TOMBSTONE_TABLE_NAME +
+            " WHERE " + ChangeEntry.COLUMN_SYNC_ID + " = ?";
+
+    //_id of a pet that is not here
+    private static final long NO_PET = -1;
+
+    private PetChangeLog() {
+    }
+
+    /**
+     * Return at most limit pets changed or deleted after the given sequence number, in the
+     * order they changed, with the columns of {@link ChangeEntry}.
+     */
+    static Cursor queryChanges(SQLiteDatabase db, long afterSeq, int limit) {
+        String after = String.valueOf(afterSeq);
+        return db.rawQuery(CHANGES_QUERY + limit, new String[]{after, after});
+    }
+
+    /**
+     * Return the last change sequence number, the push token and the pull token.
+     */
+    static Bundle getState(SQLiteDatabase db) {
+        Bundle state = new Bundle();
+        state.putLong(PetContract.KEY_LAST_CHANGE_SEQ, readLong(db, PetDbHelper.SYNC_LAST_SEQ));
+        state.putLong(PetContract.KEY_PUSH_TOKEN, readLong(db, PetDbHelper.SYNC_PUSH_TOKEN));
+        state.putString(PetContract.KEY_PULL_TOKEN, DatabaseUtils.stringForQuery(db,
+                "SELECT " + PetDbHelper.syncState(PetDbHelper.SYNC_PULL_TOKEN), null));
+        return state;
+    }
+
+    /**
+     * Record that headquarters stored every change up to the given sequence number, and drop
+     * the tombstones it no longer needs. The push token never goes back.
+     */
+    static void acknowledge(SQLiteDatabase db, long seq) {
+        db.beginTransaction();
+        try {
+            if (seq > readLong(db, PetDbHelper.SYNC_PUSH_TOKEN)) {
+                writeState(db, PetDbHelper.SYNC_PUSH_TOKEN, seq);
+            }
+            db.delete(ChangeEntry.TOMBSTONE_TABLE_NAME, ChangeEntry.COLUMN_CHANGE_SEQ + " <= ?",
+                    new String[]{String.valueOf(seq)});
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Apply the changes pulled from headquarters and store the pull token, all in one
+     * transaction. Each change holds the columns of {@link ChangeEntry} and names its pet by
+     * sync id: a deleted pet is deleted, any other pet is updated, or inserted with its sync
+     * id when it is not here. A pet changed or deleted here after the last push headquarters
+     * acknowledged is left as it is, so the local change wins and goes out with the next push.
+     * The remote flag is set meanwhile, so the triggers do not number the changes as local
+     * ones. The breed names are stored as their breed_id in the given breeds. The _id of every pet
+     * changed is added to changedIds. Return the number of changes skipped.
+     */
+    static int applyRemote(SQLiteDatabase db, PetBreeds breeds, List<ContentValues> changes,
+                           String pullToken, List<Long> changedIds) {
+        int skipped = 0;
+        breeds.beginTransaction(db);
+        try {
+            long pushToken = readLong(db, PetDbHelper.SYNC_PUSH_TOKEN);
+            writeState(db, PetDbHelper.SYNC_REMOTE, 1);
+            ContentValues values = new ContentValues();
+            for (ContentValues change : changes) {
+                String syncId = change.getAsString(ChangeEntry.COLUMN_SYNC_ID);
+                if (syncId == null || syncId.isEmpty()) {
+                    throw new IllegalArgumentException("Change requires a sync id " + change);
+                }
+                long id = NO_PET;
+                long changeSeq = 0;
+                Cursor cursor = db.query(PetEntry.TABLE_NAME, LOCAL_COLUMNS,
+                        PetEntry.COLUMN_SYNC_ID + " = ?", new String[]{syncId}, null, null, null);
+                try {
+                    if (cursor.moveToFirst()) {
+                        id = cursor.getLong(0);
+                        changeSeq = cursor.getLong(1);
+                    }
+                } finally {
+                    cursor.close();
+                }
+                if (id == NO_PET) {
+                    //A pet deleted here has only its tombstone left. Every ack drops the
+                    //tombstones it covers, so there are few of them to read
+                    changeSeq = DatabaseUtils.longForQuery(db, TOMBSTONE_SEQ_QUERY,
+                            new String[]{syncId});
+                }
+                if (changeSeq > pushToken) {
+                    skipped++;
+                    continue;
+                }
+
+                Integer deleted = change.getAsInteger(ChangeEntry.COLUMN_DELETED);
+                if (deleted != null && deleted != 0) {
+                    if (id != NO_PET) {
+                        db.delete(PetEntry.TABLE_NAME, PetEntry._ID + " = " + id, null);
+                        changedIds.add(id);
+                    }
+                    continue;
+                }
+
+                values.clear();
+                values.put(PetEntry.COLUMN_PET_NAME, change.getAsString(PetEntry.COLUMN_PET_NAME));
+                values.put(PetEntry.COLUMN_BREED_ID,
+                        breeds.getId(db, change.getAsString(PetEntry.COLUMN_PET_BREED)));
+                values.put(PetEntry.COLUMN_PET_GENDER,
+                        change.getAsInteger(PetEntry.COLUMN_PET_GENDER));
+                values.put(PetEntry.COLUMN_PET_WEIGHT,
+                        change.getAsInteger(PetEntry.COLUMN_PET_WEIGHT));
+                //An update keeps the statistics right, a REPLACE would skip their triggers
+                if (id != NO_PET) {
+                    db.update(PetEntry.TABLE_NAME, values, PetEntry._ID + " = " + id, null);
+                } else {
+                    values.put(PetEntry.COLUMN_SYNC_ID, syncId);
+                    id = db.insertOrThrow(PetEntry.TABLE_NAME, null, values);
+                }
+                changedIds.add(id);
+            }
+            writeState(db, PetDbHelper.SYNC_PULL_TOKEN, pullToken);
+            writeState(db, PetDbHelper.SYNC_REMOTE, 0);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return skipped;
+    }
+
+    private static long readLong(SQLiteDatabase db, String key) {
+        return DatabaseUtils.longForQuery(db, "SELECT " + PetDbHelper.syncState(key), null);
+    }
+
+    private static void writeState(SQLiteDatabase db, String key, Object value) {
+        db.execSQL("UPDATE " + ChangeEntry.STATE_TABLE_NAME + " SET " +
+                PetDbHelper.SYNC_STATE_VALUE + " = ? WHERE " + PetDbHelper.SYNC_STATE_KEY +
+                " = ?", new Object[]{value, key});
+    }
+}
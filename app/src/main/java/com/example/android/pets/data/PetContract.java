@@ -26,18 +26,218 @@ public final class PetContract {
     //Name of the table that will append to the content Uri
     public static final String PATH_PETS = "pets";
 
+    //Path appended to the pets Uri for the full-text search
+    public static final String PATH_SEARCH = "search";
+
+    //Path of the aggregate statistics, and the one appended to it for the breed counts
+    public static final String PATH_STATS = "stats";
+    public static final String PATH_BREEDS = "breeds";
+
+    //Path of the provider metrics
+    public static final String PATH_METRICS = "metrics";
+
+    //Path of the changes to the pets, for the sync with headquarters
+    public static final String PATH_CHANGES = "changes";
+
+    /** Provider methods, run with {@link ContentResolver#call} on {@link #BASE_CONTENT_URI} */
+
+    //Returns the hit and miss counts, size and maximum size of the single pet row cache
+    public static final String METHOD_GET_ROW_CACHE_STATS = "get_row_cache_stats";
+
+    //Returns the list queries answered and missed, the rows, the maximum rows and the
+    //estimated memory in bytes of the in-memory snapshot of the catalog list
+    public static final String METHOD_GET_SNAPSHOT_STATS = "get_snapshot_stats";
+
+    //Runs the database maintenance, which can take minutes. The arg, if any, is a token that
+    //names the run for METHOD_CANCEL_MAINTENANCE. Returns whether the integrity check passed
+    //and whether the run was cancelled, the pages freed, the size of the database before and
+    //after, and how long it took
+    public static final String METHOD_RUN_MAINTENANCE = "run_maintenance";
+
+    //Stops the maintenance run named by the token in the arg at its next step, or keeps it
+    //from starting when the call to run it has not got to the provider yet. Without a token
+    //stops the maintenance that is running, if any
+    public static final String METHOD_CANCEL_MAINTENANCE = "cancel_maintenance";
+
+    //Returns the sync state: the last local change, the last change headquarters acknowledged
+    //and the token of the last batch of changes pulled from it
+    public static final String METHOD_GET_SYNC_STATE = "get_sync_state";
+
+    //Records that headquarters stored every local change up to the change sequence in the arg,
+    //a number of at least 0, and forgets the deleted pets it now knows about
+    public static final String METHOD_ACKNOWLEDGE_CHANGES = "acknowledge_changes";
+
+    //Applies the changes pulled from headquarters in the KEY_CHANGES extra, one ContentValues
+    //per pet with the columns of ChangeEntry, and stores the KEY_PULL_TOKEN extra with them
+    //in the same transaction. The pets are found by their sync id, the _id is ignored. The
+    //applied changes are not tracked as local changes. A pet changed here since the last
+    //acknowledged push keeps its local change, which the next push sends. Returns the
+    //changes applied and skipped
+    public static final String METHOD_APPLY_REMOTE_CHANGES = "apply_remote_changes";
+
+    //Opens the database, creating or upgrading it if needed, and loads the breeds, so the
+    //first query does not wait for them. Returns how long it took
+    public static final String METHOD_PREWARM = "prewarm";
+
+    //Keys of the Bundle returned by the methods
+    public static final String KEY_HIT_COUNT = "hit_count";
+    public static final String KEY_MISS_COUNT = "miss_count";
+    public static final String KEY_SIZE = "size";
+    public static final String KEY_MAX_SIZE = "max_size";
+    public static final String KEY_BYTES = "bytes";
+    public static final String KEY_INTEGRITY_OK = "integrity_ok";
+    public static final String KEY_CANCELLED = "cancelled";
+    public static final String KEY_PAGES_FREED = "pages_freed";
+    public static final String KEY_SIZE_BEFORE = "size_before";
+    public static final String KEY_SIZE_AFTER = "size_after";
+    public static final String KEY_DURATION_MILLIS = "duration_millis";
+    //Wall clock time the last maintenance finished, kept with its outcome
+    public static final String KEY_LAST_RUN_TIME = "last_run_time";
+    public static final String KEY_LAST_CHANGE_SEQ = "last_change_seq";
+    public static final String KEY_PUSH_TOKEN = "push_token";
+    public static final String KEY_PULL_TOKEN = "pull_token";
+    public static final String KEY_CHANGES = "changes";
+    public static final String KEY_APPLIED_COUNT = "applied_count";
+    public static final String KEY_SKIPPED_COUNT = "skipped_count";
+
     public static final class PetEntry implements BaseColumns {
 
         /** Create the Content Uri by appeding the path to the base content */
         public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_PETS);
 
+        /** Content Uri to search pets by name and breed, see {@link #buildSearchUri} */
+        public static final Uri CONTENT_SEARCH_URI = Uri.withAppendedPath(CONTENT_URI, PATH_SEARCH);
+
+        //Table the pets are stored in, with the breed_id of their breed instead of its name
         public static final String TABLE_NAME = "pets";
 
+        //View over the table with the breed name joined back in, every read goes through it
+        public static final String VIEW_NAME = "pets_view";
+
+        /** Full-text index over the name and breed of the pets, the docid is the pet _id */
+        public static final String FTS_TABLE_NAME = "pets_fts";
+
         public static final String _ID = BaseColumns._ID;
         public static final String COLUMN_PET_NAME = "name";
         public static final String COLUMN_PET_BREED = "breed";
         public static final String COLUMN_PET_GENDER = "gender";
         public static final String COLUMN_PET_WEIGHT = "weight";
+        //Key of the breed in BreedEntry, the breed name is read and written as COLUMN_PET_BREED
+        public static final String COLUMN_BREED_ID = "breed_id";
+        //Change sequence of the last local write to the pet, see ChangeEntry
+        public static final String COLUMN_CHANGE_SEQ = "change_seq";
+        //Names the pet to headquarters and the other shelters, where its _id means nothing
+        public static final String COLUMN_SYNC_ID = "sync_id";
+
+        /** Query parameter with the text to search for */
+        public static final String QUERY_PARAMETER_SEARCH = "q";
+
+        /**
+         * Build the Uri that lists the pets whose name or breed contain words starting with the
+         * words of the given text. The search Uri accepts the same selection and pagination as
+         * {@link #CONTENT_URI}.
+         */
+        public static Uri buildSearchUri(String text) {
+            return CONTENT_SEARCH_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_SEARCH, text)
+                    .build();
+        }
+
+        /** Query parameters for keyset pagination of {@link #CONTENT_URI} */
+        //Maximum number of rows in the page
+        public static final String QUERY_PARAMETER_LIMIT = "limit";
+        //Column the pages are sorted by, one of _id, name or weight. Defaults to _id
+        public static final String QUERY_PARAMETER_SORT = "sort";
+        //Sort key and _id of the last row of the previous page
+        public static final String QUERY_PARAMETER_AFTER_KEY = "after_key";
+        public static final String QUERY_PARAMETER_AFTER_ID = "after_id";
+
+        /**
+         * Build the Uri of the first page of the given list Uri. The rows are sorted by the given
+         * column and then by _id, and the sortOrder passed to the query is ignored.
+         */
+        public static Uri buildFirstPageUri(Uri listUri, String sortColumn, int pageSize) {
+            return listUri.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_SORT, sortColumn)
+                    .appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(pageSize))
+                    .build();
+        }
+
+        /**
+         * Build the Uri of the page that follows the row with the given sort key and _id. The
+         * sort key is null for the _id sort, and for a row with an unknown weight in the weight
+         * sort.
+         */
+        public static Uri buildNextPageUri(Uri firstPageUri, String afterKey, long afterId) {
+            Uri.Builder builder = firstPageUri.buildUpon();
+            if (afterKey != null) {
+                builder.appendQueryParameter(QUERY_PARAMETER_AFTER_KEY, afterKey);
+            }
+            return builder.appendQueryParameter(QUERY_PARAMETER_AFTER_ID, String.valueOf(afterId))
+                    .build();
+        }
+
+        /**
+         * Query parameters that filter {@link #CONTENT_URI} and the search Uri, see
+         * {@link #buildFilterUri}. The weight range is inclusive and leaves out the pets with an
+         * unknown weight. Pages can only be filtered by weight when they are sorted by weight,
+         * so the filter and the sort both use the same index.
+         */
+        public static final String QUERY_PARAMETER_GENDER = "gender";
+        public static final String QUERY_PARAMETER_MIN_WEIGHT = "min_weight";
+        public static final String QUERY_PARAMETER_MAX_WEIGHT = "max_weight";
+
+        /** Value for the arguments of {@link #buildFilterUri} that do not filter */
+        public static final int NO_FILTER = -1;
+
+        /**
+         * Build the Uri that lists only the pets of the given list Uri with the given gender
+         * and a weight in the given range. Pass {@link #NO_FILTER} for any of them to not
+         * filter by it.
+         */
+        public static Uri buildFilterUri(Uri listUri, int gender, int minWeight, int maxWeight) {
+            Uri.Builder builder = listUri.buildUpon();
+            if (gender != NO_FILTER) {
+                builder.appendQueryParameter(QUERY_PARAMETER_GENDER, String.valueOf(gender));
+            }
+            if (minWeight != NO_FILTER) {
+                builder.appendQueryParameter(QUERY_PARAMETER_MIN_WEIGHT,
+                        String.valueOf(minWeight));
+            }
+            if (maxWeight != NO_FILTER) {
+                builder.appendQueryParameter(QUERY_PARAMETER_MAX_WEIGHT,
+                        String.valueOf(maxWeight));
+            }
+            return builder.build();
+        }
+
+        /**
+         * Query parameter that turns off the change notification of a write when set to false.
+         * The caller then has to notify {@link #CONTENT_URI} itself when it is done.
+         */
+        public static final String QUERY_PARAMETER_NOTIFY = "notify";
+
+        /**
+         * Build the Uri that deletes the pets matching the selection a batch at a time: every
+         * delete removes at most batchSize of them, lowest _id first, and notifies nobody.
+         * Deleting in batches keeps each write short, so readers get in between them.
+         */
+        public static Uri buildDeleteBatchUri(int batchSize) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(batchSize))
+                    .appendQueryParameter(QUERY_PARAMETER_NOTIFY, String.valueOf(false))
+                    .build();
+        }
+
+        /**
+         * Build the Uri that bulk inserts pets without notifying anybody, for a caller that
+         * inserts many batches in a row and notifies once at the end.
+         */
+        public static Uri buildInsertBatchUri() {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_NOTIFY, String.valueOf(false))
+                    .build();
+        }
 
         /** Possible values for genders */
         public static final int GENDER_UNKNOWN = 0;
@@ -65,6 +265,205 @@ public final class PetContract {
          */
         public static final String CONTENT_ITEM_TYPE =
                 ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_PETS;
+
+        /**
+         * The MIME types the whole roster of {@link #CONTENT_URI} can be streamed as with
+         * {@link ContentResolver#openTypedAssetFileDescriptor}. A CSV roster starts with a header
+         * row of column names, a JSON roster is an array with one object per pet.
+         */
+        public static final String ROSTER_CSV_TYPE = "text/csv";
+        public static final String ROSTER_JSON_TYPE = "application/json";
+
+        /**
+         * The columns of a roster, in the order they are exported.
+         */
+        public static final String[] ROSTER_COLUMNS = {
+                COLUMN_PET_NAME,
+                COLUMN_PET_BREED,
+                COLUMN_PET_GENDER,
+                COLUMN_PET_WEIGHT
+        };
+    }
+
+    /**
+     * Counts and weights of the pets for each gender. The rows are kept up to date by triggers
+     * on the pets table, so reading them costs the same whatever the number of pets. The
+     * {@link #CONTENT_URI} returns one row per gender, followed by a row with a null gender
+     * that holds the totals of the whole shelter.
+     */
+    public static final class StatsEntry {
+
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_STATS);
+
+        //Table with one row per gender, updated by the triggers
+        public static final String TABLE_NAME = "pet_gender_stats";
+
+        //View over the table that adds the average weights and the totals row
+        public static final String VIEW_NAME = "pet_stats";
+
+        public static final String COLUMN_GENDER = "gender";
+        public static final String COLUMN_PET_COUNT = "pet_count";
+        //Number of pets that have a weight
+        public static final String COLUMN_WEIGHED_COUNT = "weighed_count";
+        public static final String COLUMN_TOTAL_WEIGHT = "total_weight";
+        //Average weight of the pets that have one, null when none has
+        public static final String COLUMN_AVERAGE_WEIGHT = "average_weight";
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for the statistics.
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_STATS;
+    }
+
+    /**
+     * Lookup table of the breed names. Every pet stores the breed_id of its breed, so each
+     * name is stored once however many pets have it. Only the provider uses the table, callers
+     * read and write the breed of a pet by name through {@link PetEntry#COLUMN_PET_BREED}.
+     */
+    public static final class BreedEntry implements BaseColumns {
+
+        public static final String TABLE_NAME = "breeds";
+
+        public static final String _ID = BaseColumns._ID;
+        public static final String COLUMN_BREED_NAME = "name";
+    }
+
+    /**
+     * Number of pets of each breed, kept up to date by triggers on the pets table. The
+     * {@link #CONTENT_URI} returns the most common breeds first, as many as the
+     * {@link PetEntry#QUERY_PARAMETER_LIMIT} parameter asks for, or {@link #DEFAULT_LIMIT}.
+     * Pets without a breed are counted under an empty breed.
+     */
+    public static final class BreedStatsEntry {
+
+        public static final Uri CONTENT_URI =
+                Uri.withAppendedPath(StatsEntry.CONTENT_URI, PATH_BREEDS);
+
+        public static final String TABLE_NAME = "pet_breed_stats";
+
+        public static final String COLUMN_BREED = "breed";
+        public static final String COLUMN_PET_COUNT = "pet_count";
+
+        //Number of breeds returned when the Uri has no limit
+        public static final int DEFAULT_LIMIT = 10;
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for the breed counts.
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" +
+                        PATH_STATS + "/" + PATH_BREEDS;
+    }
+
+    /**
+     * Local changes to the pets, for the sync with headquarters. Every write to a pet gives it
+     * the next number of a change sequence, and every delete leaves a tombstone with one, so
+     * the {@link #CONTENT_URI} can list what changed after a given number without looking at
+     * the pets that did not. The tombstones are dropped once headquarters acknowledged them,
+     * see {@link PetContract#METHOD_ACKNOWLEDGE_CHANGES}.
+     */
+    public static final class ChangeEntry {
+
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_CHANGES);
+
+        //Deleted pets that headquarters may not know about yet
+        public static final String TOMBSTONE_TABLE_NAME = "pet_tombstones";
+
+        //The last change sequence number, the sync tokens, and whether remote changes are
+        //being applied, as key and value rows
+        public static final String STATE_TABLE_NAME = "pet_sync_state";
+
+        public static final String _ID = BaseColumns._ID;
+        public static final String COLUMN_PET_NAME = PetEntry.COLUMN_PET_NAME;
+        public static final String COLUMN_PET_BREED = PetEntry.COLUMN_PET_BREED;
+        public static final String COLUMN_PET_GENDER = PetEntry.COLUMN_PET_GENDER;
+        public static final String COLUMN_PET_WEIGHT = PetEntry.COLUMN_PET_WEIGHT;
+        public static final String COLUMN_CHANGE_SEQ = PetEntry.COLUMN_CHANGE_SEQ;
+        public static final String COLUMN_SYNC_ID = PetEntry.COLUMN_SYNC_ID;
+        //1 for a deleted pet, whose other columns are null
+        public static final String COLUMN_DELETED = "deleted";
+
+        public static final String[] COLUMNS = {
+                _ID,
+                COLUMN_PET_NAME,
+                COLUMN_PET_BREED,
+                COLUMN_PET_GENDER,
+                COLUMN_PET_WEIGHT,
+                COLUMN_CHANGE_SEQ,
+                COLUMN_SYNC_ID,
+                COLUMN_DELETED
+        };
+
+        //Query parameter with the change sequence number the changes come after
+        public static final String QUERY_PARAMETER_AFTER_SEQ = "after_seq";
+
+        /**
+         * Build the Uri that lists the pets changed or deleted after the given change
+         * sequence number, at most limit of them, in the order they changed.
+         */
+        public static Uri buildChangesUri(long afterSeq, int limit) {
+            return CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_AFTER_SEQ, String.valueOf(afterSeq))
+                    .appendQueryParameter(PetEntry.QUERY_PARAMETER_LIMIT, String.valueOf(limit))
+                    .build();
+        }
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for the changes.
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_CHANGES;
+    }
+
+    /**
+     * Counters and latencies of the provider since the process started, read only. The
+     * {@link #CONTENT_URI} returns one row for every operation and path that ran at least once.
+     * The same numbers are written by dumpsys activity provider.
+     */
+    public static final class MetricsEntry {
+
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_METRICS);
+
+        //Operation, like query or insert, and the path of the Uris it ran on, like pets/#
+        public static final String COLUMN_OPERATION = "operation";
+        public static final String COLUMN_PATH = "path";
+        //Number of calls, and rows returned or changed by all of them. The rows of a query
+        //count once the caller has counted its cursor.
+        public static final String COLUMN_COUNT = "count";
+        public static final String COLUMN_ROWS = "rows";
+        //Total and longest latency, in microseconds
+        public static final String COLUMN_TOTAL_MICROS = "total_micros";
+        public static final String COLUMN_MAX_MICROS = "max_micros";
+        //Number of calls slower than the slow operation threshold
+        public static final String COLUMN_SLOW_COUNT = "slow_count";
+        //Calls per latency bucket separated by commas, see HISTOGRAM_BOUNDS_MICROS
+        public static final String COLUMN_HISTOGRAM = "histogram";
+
+        public static final String[] COLUMNS = {
+                COLUMN_OPERATION,
+                COLUMN_PATH,
+                COLUMN_COUNT,
+                COLUMN_ROWS,
+                COLUMN_TOTAL_MICROS,
+                COLUMN_MAX_MICROS,
+                COLUMN_SLOW_COUNT,
+                COLUMN_HISTOGRAM
+        };
+
+        /**
+         * Upper bounds of the latency buckets, in microseconds. The histogram has one more
+         * bucket at the end for everything slower.
+         */
+        public static final long[] HISTOGRAM_BOUNDS_MICROS = {
+                100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000, 100000, 250000, 1000000
+        };
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for the metrics.
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_METRICS;
     }
 
 }
@@ -1,11 +1,17 @@
 package com.example.android.pets.data;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 import android.util.Log;
 
+import com.example.android.pets.data.PetContract.BreedEntry;
+import com.example.android.pets.data.PetContract.BreedStatsEntry;
+import com.example.android.pets.data.PetContract.ChangeEntry;
 import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.StatsEntry;
 
 
 /**
@@ -14,11 +20,158 @@ import com.example.android.pets.data.PetContract.PetEntry;
 
 public class PetDbHelper extends SQLiteOpenHelper {
 
-    private static final int DATABASE_VERSION = 1;
+    /** Tag for the log messages */
+    private static final String LOG_TAG = PetDbHelper.class.getSimpleName();
+
+    static final int DATABASE_VERSION = 8;
     private static final String DATABASE_NAME = "shelter.db";
 
+    //Columns of the sync state table and the keys of its rows
+    static final String SYNC_STATE_KEY = "key";
+    static final String SYNC_STATE_VALUE = "value";
+    static final String SYNC_LAST_SEQ = "last_seq";
+    static final String SYNC_PUSH_TOKEN = "push_token";
+    static final String SYNC_PULL_TOKEN = "pull_token";
+    static final String SYNC_REMOTE = "remote";
+
+    /**
+     * Every change to the schema after version 1, in order. To change the schema add a new
+     * migration at the end and bump {@link #DATABASE_VERSION} to its version. Never edit a
+     * migration that has shipped, because the databases it already ran on will not run it again.
+     */
+    private static final PetMigration[] MIGRATIONS = {
+            //Version 2 adds the full-text search index
+            new PetMigration(2) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    createSearchIndex(db);
+                }
+            },
+            //Version 3 adds the indexes for the common filters and sort orders
+            new PetMigration(3) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    createSecondaryIndexes(db, PetEntry.COLUMN_PET_BREED);
+                }
+            },
+            //Version 4 adds the aggregate statistics tables
+            new PetMigration(4) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    createStatsTables(db);
+                }
+            },
+            //Version 5 adds the indexes for sorting by weight and filtering by gender
+            new PetMigration(5) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    createFilterIndexes(db);
+                }
+            },
+            //Version 6 adds the change tracking for the sync with headquarters
+            new PetMigration(6) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    createChangeTracking(db);
+                }
+            },
+            //Version 7 moves the breed names to a lookup table keyed by breed_id
+            new PetMigration(7) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    normalizeBreeds(db);
+                }
+            },
+            //Version 8 gives every pet a sync id that is unique across the shelters
+            new PetMigration(8) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    addSyncIds(db);
+                }
+            }
+    };
+
+    //Storage settings applied every time the database is opened
+    private final PetStorageProfile mProfile;
+
     public PetDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, PetStorageProfile.DEFAULT);
+    }
+
+    public PetDbHelper(Context context, PetStorageProfile profile) {
+        this(context, DATABASE_NAME, profile);
+    }
+
+    /**
+     * Open the database file with the given name instead of the shelter database, used by the
+     * tests and benchmarks to keep several databases side by side.
+     */
+    PetDbHelper(Context context, String name, PetStorageProfile profile) {
+        super(context, name, null, DATABASE_VERSION);
+        mProfile = profile;
+    }
+
+    /**
+     * Return the storage profile this helper applies to the database.
+     */
+    public PetStorageProfile getStorageProfile() {
+        return mProfile;
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        //Since API 16 this runs before onCreate, while the page size can still change
+        applyStorageProfile(db);
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        //Older versions never call onConfigure, so new files keep the default page size there
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            applyStorageProfile(db);
+        }
+    }
+
+    /**
+     * Apply the storage profile to the given connection. The page size and auto_vacuum only
+     * change for a new, empty database file. The PRAGMAs apply to the primary connection, which
+     * runs every write.
+     */
+    private void applyStorageProfile(SQLiteDatabase db) {
+        if (db.getVersion() == 0) {
+            if (mProfile.pageSize > 0) {
+                db.setPageSize(mProfile.pageSize);
+            }
+            //Let the maintenance give the pages freed by deletes back a batch at a time
+            execPragma(db, "PRAGMA auto_vacuum = INCREMENTAL");
+        }
+        if (mProfile.writeAheadLogging) {
+            db.enableWriteAheadLogging();
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            db.disableWriteAheadLogging();
+        }
+        if (mProfile.mmapSize > 0) {
+            execPragma(db, "PRAGMA mmap_size = " + mProfile.mmapSize);
+        }
+        if (mProfile.cacheSize != 0) {
+            execPragma(db, "PRAGMA cache_size = " + mProfile.cacheSize);
+        }
+        if (mProfile.synchronous != null) {
+            execPragma(db, "PRAGMA synchronous = " + mProfile.synchronous);
+        }
+    }
+
+    /**
+     * Run a PRAGMA that may or may not return a row. Some versions of Android refuse to run
+     * statements that return rows through execSQL.
+     */
+    static void execPragma(SQLiteDatabase db, String pragma) {
+        Cursor cursor = db.rawQuery(pragma, null);
+        try {
+            cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
     }
 
     @Override
@@ -35,12 +188,425 @@ public class PetDbHelper extends SQLiteOpenHelper {
 
         db.execSQL(SQL_CREATE_PETS_TABLE);
 
+        //Bring the new version 1 schema up to date the same way an old database is upgraded
+        migrate(db, 1, DATABASE_VERSION);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        migrate(db, oldVersion, newVersion);
+    }
+
+    /**
+     * Run, in order, every migration after the old version up to the new version. Each
+     * migration runs in its own transaction inside the one opened by {@link SQLiteOpenHelper},
+     * so if any of them fails the database stays at the old version.
+     */
+    static void migrate(SQLiteDatabase db, int oldVersion, int newVersion) {
+        for (PetMigration migration : MIGRATIONS) {
+            int version = migration.getVersion();
+            if (version <= oldVersion || version > newVersion) {
+                continue;
+            }
+            Log.i(LOG_TAG, "Migrating database to version " + version);
+            db.beginTransaction();
+            try {
+                migration.migrate(db);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * Create the indexes for the ways the pets are filtered and sorted: name ignoring case,
+     * breed, and gender together with weight. The breed is in the given column.
+     */
+    private static void createSecondaryIndexes(SQLiteDatabase db, String breedColumn) {
+        db.execSQL("CREATE INDEX pets_name_idx ON " + PetEntry.TABLE_NAME + " (" +
+                PetEntry.COLUMN_PET_NAME + " COLLATE NOCASE);");
+        db.execSQL("CREATE INDEX pets_breed_idx ON " + PetEntry.TABLE_NAME + " (" +
+                breedColumn + ");");
+        db.execSQL("CREATE INDEX pets_gender_weight_idx ON " + PetEntry.TABLE_NAME + " (" +
+                PetEntry.COLUMN_PET_GENDER + ", " + PetEntry.COLUMN_PET_WEIGHT + ");");
+    }
+
+    /**
+     * Create the indexes for the catalog sorts and filters that the secondary indexes do not
+     * cover: weight on its own, and gender together with the _id or the name order. Every
+     * page of the catalog then seeks on an index instead of scanning the table.
+     */
+    private static void createFilterIndexes(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX pets_weight_idx ON " + PetEntry.TABLE_NAME + " (" +
+                PetEntry.COLUMN_PET_WEIGHT + ");");
+        db.execSQL("CREATE INDEX pets_gender_idx ON " + PetEntry.TABLE_NAME + " (" +
+                PetEntry.COLUMN_PET_GENDER + ");");
+        db.execSQL("CREATE INDEX pets_gender_name_idx ON " + PetEntry.TABLE_NAME + " (" +
+                PetEntry.COLUMN_PET_GENDER + ", " + PetEntry.COLUMN_PET_NAME +
+                " COLLATE NOCASE);");
+    }
 
+    /**
+     * Add the change sequence to the pets, the tombstones of deleted pets and the sync state,
+     * and the triggers that number every local write. The pets that were stored before count
+     * as changed, so the first sync sends them all. Writes made while the remote flag of the
+     * state is set are changes pulled from headquarters, which are not numbered.
+     */
+    private static void createChangeTracking(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME + " ADD COLUMN " +
+                PetEntry.COLUMN_CHANGE_SEQ + " INTEGER NOT NULL DEFAULT 0;");
+        db.execSQL("UPDATE " + PetEntry.TABLE_NAME + " SET " + PetEntry.COLUMN_CHANGE_SEQ +
+                " = " + PetEntry._ID + ";");
+        //Lets the changes after a number be found without looking at the other pets
+        db.execSQL("CREATE INDEX pets_change_seq_idx ON " + PetEntry.TABLE_NAME + " (" +
+                PetEntry.COLUMN_CHANGE_SEQ + ");");
+
+        db.execSQL("CREATE TABLE " + ChangeEntry.TOMBSTONE_TABLE_NAME + " (" +
+                ChangeEntry._ID + " INTEGER PRIMARY KEY, " +
+                ChangeEntry.COLUMN_CHANGE_SEQ + " INTEGER NOT NULL);");
+        db.execSQL("CREATE INDEX pet_tombstones_change_seq_idx ON " +
+                ChangeEntry.TOMBSTONE_TABLE_NAME + " (" + ChangeEntry.COLUMN_CHANGE_SEQ + ");");
+
+        db.execSQL("CREATE TABLE " + ChangeEntry.STATE_TABLE_NAME + " (" +
+                SYNC_STATE_KEY + " TEXT PRIMARY KEY, " + SYNC_STATE_VALUE + ");");
+        db.execSQL("INSERT INTO " + ChangeEntry.STATE_TABLE_NAME + " VALUES ('" +
+                SYNC_LAST_SEQ + "', (SELECT IFNULL(MAX(" + PetEntry._ID + "), 0) FROM " +
+                PetEntry.TABLE_NAME + "));");
+        db.execSQL("INSERT INTO " + ChangeEntry.STATE_TABLE_NAME + " VALUES ('" +
+                SYNC_PUSH_TOKEN + "', 0);");
+        db.execSQL("INSERT INTO " + ChangeEntry.STATE_TABLE_NAME + " VALUES ('" +
+                SYNC_PULL_TOKEN + "', NULL);");
+        db.execSQL("INSERT INTO " + ChangeEntry.STATE_TABLE_NAME + " VALUES ('" +
+                SYNC_REMOTE + "', 0);");
+
+        createChangeTriggers(db, false, false);
+    }
+
+    /**
+     * Create the triggers that number every local write to the pets. The breed is in breed_id
+     * when breedIds is true, in the breed column otherwise. The tombstones keep the sync id of
+     * the deleted pet when syncIds is true.
+     */
+    private static void createChangeTriggers(SQLiteDatabase db, boolean breedIds,
+                                             boolean syncIds) {
+        String local = " WHEN " + syncState(SYNC_REMOTE) + " = 0";
+        String nextSeq = "UPDATE " + ChangeEntry.STATE_TABLE_NAME + " SET " + SYNC_STATE_VALUE +
+                " = " + SYNC_STATE_VALUE + " + 1 WHERE " + SYNC_STATE_KEY + " = '" +
+                SYNC_LAST_SEQ + "'; ";
+        String numberPet = "UPDATE " + PetEntry.TABLE_NAME + " SET " +
+                PetEntry.COLUMN_CHANGE_SEQ + " = " + syncState(SYNC_LAST_SEQ) + " WHERE " +
+                PetEntry._ID + " = NEW." + PetEntry._ID + "; ";
+        //Only writes to the synced columns are changes, numbering the pet is not one
+        db.execSQL("CREATE TRIGGER pet_change_insert AFTER INSERT ON " + PetEntry.TABLE_NAME +
+                local + " BEGIN " + nextSeq + numberPet + " END;");
+        db.execSQL("CREATE TRIGGER pet_change_update AFTER UPDATE OF " +
+                PetEntry.COLUMN_PET_NAME + ", " + breedColumn(breedIds) + ", " +
+                PetEntry.COLUMN_PET_GENDER + ", " + PetEntry.COLUMN_PET_WEIGHT + " ON " +
+                PetEntry.TABLE_NAME + local + " BEGIN " + nextSeq + numberPet + " END;");
+        String syncIdColumn = syncIds ? ", " + ChangeEntry.COLUMN_SYNC_ID : "";
+        String syncIdValue = syncIds ? ", OLD." + PetEntry.COLUMN_SYNC_ID : "";
+        db.execSQL("CREATE TRIGGER pet_change_delete AFTER DELETE ON " + PetEntry.TABLE_NAME +
+                local + " BEGIN " + nextSeq + "INSERT OR REPLACE INTO " +
+                ChangeEntry.TOMBSTONE_TABLE_NAME + " (" + ChangeEntry._ID + ", " +
+                ChangeEntry.COLUMN_CHANGE_SEQ + syncIdColumn + ") VALUES (OLD." + PetEntry._ID +
+                ", " + syncState(SYNC_LAST_SEQ) + syncIdValue + "); END;");
     }
 
-    
+    /**
+     * Return the subquery that reads the sync state value with the given key.
+     */
+    static String syncState(String key) {
+        return "(SELECT " + SYNC_STATE_VALUE + " FROM " + ChangeEntry.STATE_TABLE_NAME +
+                " WHERE " + SYNC_STATE_KEY + " = '" + key + "')";
+    }
+
+    /**
+     * Create the tables with the counts and weights per gender and the counts per breed, the
+     * triggers that keep them up to date on every write to the pets table, and fill them from
+     * the pets that are already stored.
+     */
+    private static void createStatsTables(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + StatsEntry.TABLE_NAME + " (" +
+                StatsEntry.COLUMN_GENDER + " INTEGER PRIMARY KEY, " +
+                StatsEntry.COLUMN_PET_COUNT + " INTEGER NOT NULL DEFAULT 0, " +
+                StatsEntry.COLUMN_WEIGHED_COUNT + " INTEGER NOT NULL DEFAULT 0, " +
+                StatsEntry.COLUMN_TOTAL_WEIGHT + " INTEGER NOT NULL DEFAULT 0);");
+        for (int gender : new int[]{PetEntry.GENDER_UNKNOWN, PetEntry.GENDER_MALE,
+                PetEntry.GENDER_FEMALE}) {
+            db.execSQL("INSERT INTO " + StatsEntry.TABLE_NAME + " (" + StatsEntry.COLUMN_GENDER +
+                    ") VALUES (" + gender + ");");
+        }
+
+        db.execSQL("CREATE TABLE " + BreedStatsEntry.TABLE_NAME + " (" +
+                BreedStatsEntry.COLUMN_BREED + " TEXT PRIMARY KEY, " +
+                BreedStatsEntry.COLUMN_PET_COUNT + " INTEGER NOT NULL);");
+        //Lets the top breeds be read in order without sorting the whole table
+        db.execSQL("CREATE INDEX pet_breed_stats_count_idx ON " + BreedStatsEntry.TABLE_NAME +
+                " (" + BreedStatsEntry.COLUMN_PET_COUNT + ");");
+
+        //The averages and the totals row are computed from the three gender rows
+        String average = "CASE WHEN SUM(" + StatsEntry.COLUMN_WEIGHED_COUNT + ") > 0 THEN SUM(" +
+                StatsEntry.COLUMN_TOTAL_WEIGHT + ") * 1.0 / SUM(" +
+                StatsEntry.COLUMN_WEIGHED_COUNT + ") END";
+        db.execSQL("CREATE VIEW " + StatsEntry.VIEW_NAME + " AS SELECT " +
+                StatsEntry.COLUMN_GENDER + ", " +
+                "SUM(" + StatsEntry.COLUMN_PET_COUNT + ") AS " + StatsEntry.COLUMN_PET_COUNT + ", " +
+                "SUM(" + StatsEntry.COLUMN_WEIGHED_COUNT + ") AS " +
+                StatsEntry.COLUMN_WEIGHED_COUNT + ", " +
+                "SUM(" + StatsEntry.COLUMN_TOTAL_WEIGHT + ") AS " +
+                StatsEntry.COLUMN_TOTAL_WEIGHT + ", " +
+                average + " AS " + StatsEntry.COLUMN_AVERAGE_WEIGHT +
+                " FROM " + StatsEntry.TABLE_NAME + " GROUP BY " + StatsEntry.COLUMN_GENDER +
+                " UNION ALL SELECT NULL, " +
+                "SUM(" + StatsEntry.COLUMN_PET_COUNT + "), " +
+                "SUM(" + StatsEntry.COLUMN_WEIGHED_COUNT + "), " +
+                "SUM(" + StatsEntry.COLUMN_TOTAL_WEIGHT + "), " +
+                average + " FROM " + StatsEntry.TABLE_NAME + ";");
+
+        createStatsTriggers(db, false);
+
+        //Count the pets that were stored before the tables existed
+        String sameGender = " WHERE " + PetEntry.TABLE_NAME + "." + PetEntry.COLUMN_PET_GENDER +
+                " = " + StatsEntry.TABLE_NAME + "." + StatsEntry.COLUMN_GENDER + ")";
+        db.execSQL("UPDATE " + StatsEntry.TABLE_NAME + " SET " +
+                StatsEntry.COLUMN_PET_COUNT + " = (SELECT COUNT(*) FROM " + PetEntry.TABLE_NAME +
+                sameGender + ", " +
+                StatsEntry.COLUMN_WEIGHED_COUNT + " = (SELECT COUNT(" + PetEntry.COLUMN_PET_WEIGHT +
+                ") FROM " + PetEntry.TABLE_NAME + sameGender + ", " +
+                StatsEntry.COLUMN_TOTAL_WEIGHT + " = (SELECT IFNULL(SUM(" +
+                PetEntry.COLUMN_PET_WEIGHT + "), 0) FROM " + PetEntry.TABLE_NAME + sameGender +
+                ";");
+        db.execSQL("INSERT INTO " + BreedStatsEntry.TABLE_NAME + " (" +
+                BreedStatsEntry.COLUMN_BREED + ", " + BreedStatsEntry.COLUMN_PET_COUNT +
+                ") SELECT IFNULL(" + PetEntry.COLUMN_PET_BREED + ", ''), COUNT(*) FROM " +
+                PetEntry.TABLE_NAME + " GROUP BY IFNULL(" + PetEntry.COLUMN_PET_BREED + ", '');");
+    }
+
+    /**
+     * Create the triggers that keep the statistics tables up to date on every write to the
+     * pets table. The breed is in breed_id when breedIds is true, in the breed column otherwise.
+     */
+    private static void createStatsTriggers(SQLiteDatabase db, boolean breedIds) {
+        db.execSQL("CREATE TRIGGER pet_stats_insert AFTER INSERT ON " + PetEntry.TABLE_NAME +
+                " BEGIN " + addToStats("NEW", breedIds) + " END;");
+        db.execSQL("CREATE TRIGGER pet_stats_update AFTER UPDATE OF " +
+                breedColumn(breedIds) + ", " + PetEntry.COLUMN_PET_GENDER + ", " +
+                PetEntry.COLUMN_PET_WEIGHT + " ON " + PetEntry.TABLE_NAME +
+                " BEGIN " + removeFromStats("OLD", breedIds) + addToStats("NEW", breedIds) +
+                " END;");
+        db.execSQL("CREATE TRIGGER pet_stats_delete AFTER DELETE ON " + PetEntry.TABLE_NAME +
+                " BEGIN " + removeFromStats("OLD", breedIds) + " END;");
+    }
+
+    /**
+     * Return the trigger statements that add the pet in the given row (NEW or OLD) to the
+     * statistics tables.
+     */
+    private static String addToStats(String row, boolean breedIds) {
+        String breed = "IFNULL(" + breedName(row, breedIds) + ", '')";
+        return "UPDATE " + StatsEntry.TABLE_NAME + " SET " +
+                StatsEntry.COLUMN_PET_COUNT + " = " + StatsEntry.COLUMN_PET_COUNT + " + 1, " +
+                StatsEntry.COLUMN_WEIGHED_COUNT + " = " + StatsEntry.COLUMN_WEIGHED_COUNT +
+                " + (" + row + "." + PetEntry.COLUMN_PET_WEIGHT + " IS NOT NULL), " +
+                StatsEntry.COLUMN_TOTAL_WEIGHT + " = " + StatsEntry.COLUMN_TOTAL_WEIGHT +
+                " + IFNULL(" + row + "." + PetEntry.COLUMN_PET_WEIGHT + ", 0)" +
+                " WHERE " + StatsEntry.COLUMN_GENDER + " = " + row + "." +
+                PetEntry.COLUMN_PET_GENDER + "; " +
+                "INSERT OR IGNORE INTO " + BreedStatsEntry.TABLE_NAME + " (" +
+                BreedStatsEntry.COLUMN_BREED + ", " + BreedStatsEntry.COLUMN_PET_COUNT +
+                ") VALUES (" + breed + ", 0); " +
+                "UPDATE " + BreedStatsEntry.TABLE_NAME + " SET " +
+                BreedStatsEntry.COLUMN_PET_COUNT + " = " + BreedStatsEntry.COLUMN_PET_COUNT +
+                " + 1 WHERE " + BreedStatsEntry.COLUMN_BREED + " = " + breed + "; ";
+    }
+
+    /**
+     * Return the trigger statements that remove the pet in the given row (NEW or OLD) from the
+     * statistics tables. Breeds left without pets are deleted.
+     */
+    private static String removeFromStats(String row, boolean breedIds) {
+        String breed = "IFNULL(" + breedName(row, breedIds) + ", '')";
+        return "UPDATE " + StatsEntry.TABLE_NAME + " SET " +
+                StatsEntry.COLUMN_PET_COUNT + " = " + StatsEntry.COLUMN_PET_COUNT + " - 1, " +
+                StatsEntry.COLUMN_WEIGHED_COUNT + " = " + StatsEntry.COLUMN_WEIGHED_COUNT +
+                " - (" + row + "." + PetEntry.COLUMN_PET_WEIGHT + " IS NOT NULL), " +
+                StatsEntry.COLUMN_TOTAL_WEIGHT + " = " + StatsEntry.COLUMN_TOTAL_WEIGHT +
+                " - IFNULL(" + row + "." + PetEntry.COLUMN_PET_WEIGHT + ", 0)" +
+                " WHERE " + StatsEntry.COLUMN_GENDER + " = " + row + "." +
+                PetEntry.COLUMN_PET_GENDER + "; " +
+                "UPDATE " + BreedStatsEntry.TABLE_NAME + " SET " +
+                BreedStatsEntry.COLUMN_PET_COUNT + " = " + BreedStatsEntry.COLUMN_PET_COUNT +
+                " - 1 WHERE " + BreedStatsEntry.COLUMN_BREED + " = " + breed + "; " +
+                "DELETE FROM " + BreedStatsEntry.TABLE_NAME + " WHERE " +
+                BreedStatsEntry.COLUMN_BREED + " = " + breed + " AND " +
+                BreedStatsEntry.COLUMN_PET_COUNT + " <= 0; ";
+    }
+
+    /**
+     * Create the full-text index over the name and breed of the pets, the triggers that keep it
+     * in sync with the pets table, and fill it with the pets that are already stored.
+     */
+    private static void createSearchIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE VIRTUAL TABLE " + PetEntry.FTS_TABLE_NAME + " USING fts4(" +
+                PetEntry.COLUMN_PET_NAME + ", " +
+                PetEntry.COLUMN_PET_BREED + ");");
+
+        createSearchTriggers(db, false);
+
+        //Index the pets that were stored before the index existed
+        db.execSQL("INSERT INTO " + PetEntry.FTS_TABLE_NAME + " (docid, " +
+                PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED + ") SELECT " +
+                PetEntry._ID + ", " + PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED +
+                " FROM " + PetEntry.TABLE_NAME + ";");
+    }
+
+    /**
+     * Create the triggers that keep the full-text index in sync with the pets table. The breed
+     * is in breed_id when breedIds is true, in the breed column otherwise.
+     */
+    private static void createSearchTriggers(SQLiteDatabase db, boolean breedIds) {
+        db.execSQL("CREATE TRIGGER pets_fts_insert AFTER INSERT ON " + PetEntry.TABLE_NAME +
+                " BEGIN INSERT INTO " + PetEntry.FTS_TABLE_NAME + " (docid, " +
+                PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED + ") VALUES (NEW." +
+                PetEntry._ID + ", NEW." + PetEntry.COLUMN_PET_NAME + ", " +
+                breedName("NEW", breedIds) + "); END;");
+
+        db.execSQL("CREATE TRIGGER pets_fts_update AFTER UPDATE OF " +
+                PetEntry.COLUMN_PET_NAME + ", " + breedColumn(breedIds) +
+                " ON " + PetEntry.TABLE_NAME + " BEGIN UPDATE " + PetEntry.FTS_TABLE_NAME +
+                " SET " + PetEntry.COLUMN_PET_NAME + " = NEW." + PetEntry.COLUMN_PET_NAME + ", " +
+                PetEntry.COLUMN_PET_BREED + " = " + breedName("NEW", breedIds) +
+                " WHERE docid = NEW." + PetEntry._ID + "; END;");
+
+        db.execSQL("CREATE TRIGGER pets_fts_delete AFTER DELETE ON " + PetEntry.TABLE_NAME +
+                " BEGIN DELETE FROM " + PetEntry.FTS_TABLE_NAME +
+                " WHERE docid = OLD." + PetEntry._ID + "; END;");
+    }
+
+    /**
+     * Return the column of the pets table that holds the breed.
+     */
+    private static String breedColumn(boolean breedIds) {
+        return breedIds ? PetEntry.COLUMN_BREED_ID : PetEntry.COLUMN_PET_BREED;
+    }
+
+    /**
+     * Return the expression for the breed name of the pet in the given row (NEW or OLD).
+     */
+    private static String breedName(String row, boolean breedIds) {
+        if (!breedIds) {
+            return row + "." + PetEntry.COLUMN_PET_BREED;
+        }
+        return "(SELECT " + BreedEntry.COLUMN_BREED_NAME + " FROM " + BreedEntry.TABLE_NAME +
+                " WHERE " + BreedEntry._ID + " = " + row + "." + PetEntry.COLUMN_BREED_ID + ")";
+    }
+
+    /**
+     * Move the breed names to the breeds table and rebuild the pets table with the breed_id of
+     * each pet in place of its name, so every name is stored and indexed once. SQLite cannot
+     * drop a column, so the rows are copied to a new table, which then takes the place of the
+     * old one with the same indexes and triggers. The statistics, the full-text index and the
+     * change numbers do not change, and the view gives the callers the breed name as before.
+     */
+    private static void normalizeBreeds(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + BreedEntry.TABLE_NAME + " (" +
+                BreedEntry._ID + " INTEGER PRIMARY KEY, " +
+                BreedEntry.COLUMN_BREED_NAME + " TEXT NOT NULL UNIQUE);");
+        db.execSQL("INSERT INTO " + BreedEntry.TABLE_NAME + " (" + BreedEntry.COLUMN_BREED_NAME +
+                ") SELECT DISTINCT " + PetEntry.COLUMN_PET_BREED + " FROM " +
+                PetEntry.TABLE_NAME + " WHERE " + PetEntry.COLUMN_PET_BREED + " IS NOT NULL;");
+
+        String newTable = PetEntry.TABLE_NAME + "_new";
+        db.execSQL("CREATE TABLE " + newTable + " (" +
+                PetEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                PetEntry.COLUMN_PET_NAME + " TEXT, " +
+                PetEntry.COLUMN_BREED_ID + " INTEGER REFERENCES " + BreedEntry.TABLE_NAME + "(" +
+                BreedEntry._ID + "), " +
+                PetEntry.COLUMN_PET_GENDER + " INTEGER, " +
+                PetEntry.COLUMN_PET_WEIGHT + " INTEGER, " +
+                PetEntry.COLUMN_CHANGE_SEQ + " INTEGER NOT NULL DEFAULT 0);");
+        String pet = PetEntry.TABLE_NAME + ".";
+        db.execSQL("INSERT INTO " + newTable + " SELECT " +
+                pet + PetEntry._ID + ", " + pet + PetEntry.COLUMN_PET_NAME + ", " +
+                BreedEntry.TABLE_NAME + "." + BreedEntry._ID + ", " +
+                pet + PetEntry.COLUMN_PET_GENDER + ", " + pet + PetEntry.COLUMN_PET_WEIGHT + ", " +
+                pet + PetEntry.COLUMN_CHANGE_SEQ + " FROM " + PetEntry.TABLE_NAME +
+                " LEFT JOIN " + BreedEntry.TABLE_NAME + " ON " + BreedEntry.TABLE_NAME + "." +
+                BreedEntry.COLUMN_BREED_NAME + " = " + pet + PetEntry.COLUMN_PET_BREED + ";");
+        //Keep the AUTOINCREMENT counter, so the _id of a deleted pet is never given again
+        db.execSQL("DELETE FROM sqlite_sequence WHERE name = '" + newTable + "';");
+        db.execSQL("INSERT INTO sqlite_sequence (name, seq) SELECT '" + newTable +
+                "', seq FROM sqlite_sequence WHERE name = '" + PetEntry.TABLE_NAME + "';");
+
+        //Dropping the table drops its indexes and triggers without firing them
+        db.execSQL("DROP TABLE " + PetEntry.TABLE_NAME + ";");
+        db.execSQL("ALTER TABLE " + newTable + " RENAME TO " + PetEntry.TABLE_NAME + ";");
+
+        createSecondaryIndexes(db, PetEntry.COLUMN_BREED_ID);
+        createFilterIndexes(db);
+        db.execSQL("CREATE INDEX pets_change_seq_idx ON " + PetEntry.TABLE_NAME + " (" +
+                PetEntry.COLUMN_CHANGE_SEQ + ");");
+        createSearchTriggers(db, true);
+        createStatsTriggers(db, true);
+        createChangeTriggers(db, true, false);
+        createPetsView(db, false);
+    }
+
+    /**
+     * Give every pet a sync id, which names it to headquarters and the other shelters, where
+     * the _id of this device means nothing. The pets and tombstones stored before keep their
+     * _id as sync id, since that is how headquarters already knows them. A trigger gives new
+     * pets 128 random bits in hex, unless they come with a sync id like the pets pulled from
+     * headquarters. SQLite cannot add a column with a default that is not constant, hence the
+     * trigger. The view and the tombstones pass the sync id on to the changes.
+     */
+    private static void addSyncIds(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME + " ADD COLUMN " +
+                PetEntry.COLUMN_SYNC_ID + " TEXT;");
+        db.execSQL("UPDATE " + PetEntry.TABLE_NAME + " SET " + PetEntry.COLUMN_SYNC_ID + " = " +
+                PetEntry._ID + ";");
+        //Lets the remote changes find their pet, and keeps two pets from sharing a sync id
+        db.execSQL("CREATE UNIQUE INDEX pets_sync_id_idx ON " + PetEntry.TABLE_NAME + " (" +
+                PetEntry.COLUMN_SYNC_ID + ");");
+        db.execSQL("CREATE TRIGGER pet_sync_id_insert AFTER INSERT ON " + PetEntry.TABLE_NAME +
+                " WHEN NEW." + PetEntry.COLUMN_SYNC_ID + " IS NULL BEGIN UPDATE " +
+                PetEntry.TABLE_NAME + " SET " + PetEntry.COLUMN_SYNC_ID +
+                " = lower(hex(randomblob(16))) WHERE " + PetEntry._ID + " = NEW." +
+                PetEntry._ID + "; END;");
+
+        db.execSQL("ALTER TABLE " + ChangeEntry.TOMBSTONE_TABLE_NAME + " ADD COLUMN " +
+                ChangeEntry.COLUMN_SYNC_ID + " TEXT;");
+        db.execSQL("UPDATE " + ChangeEntry.TOMBSTONE_TABLE_NAME + " SET " +
+                ChangeEntry.COLUMN_SYNC_ID + " = " + ChangeEntry._ID + ";");
+        db.execSQL("DROP TRIGGER pet_change_insert;");
+        db.execSQL("DROP TRIGGER pet_change_update;");
+        db.execSQL("DROP TRIGGER pet_change_delete;");
+        createChangeTriggers(db, true, true);
+
+        db.execSQL("DROP VIEW " + PetEntry.VIEW_NAME + ";");
+        createPetsView(db, true);
+    }
+
+    /**
+     * Create the view of the pets as the callers of the provider see them, with the breed
+     * name, and with the sync id when syncIds is true.
+     */
+    private static void createPetsView(SQLiteDatabase db, boolean syncIds) {
+        String pet = PetEntry.TABLE_NAME + ".";
+        String syncId = syncIds ? ", " + pet + PetEntry.COLUMN_SYNC_ID + " AS " +
+                PetEntry.COLUMN_SYNC_ID : "";
+        db.execSQL("CREATE VIEW " + PetEntry.VIEW_NAME + " AS SELECT " +
+                pet + PetEntry._ID + " AS " + PetEntry._ID + ", " +
+                pet + PetEntry.COLUMN_PET_NAME + " AS " + PetEntry.COLUMN_PET_NAME + ", " +
+                BreedEntry.TABLE_NAME + "." + BreedEntry.COLUMN_BREED_NAME + " AS " +
+                PetEntry.COLUMN_PET_BREED + ", " +
+                pet + PetEntry.COLUMN_BREED_ID + " AS " + PetEntry.COLUMN_BREED_ID + ", " +
+                pet + PetEntry.COLUMN_PET_GENDER + " AS " + PetEntry.COLUMN_PET_GENDER + ", " +
+                pet + PetEntry.COLUMN_PET_WEIGHT + " AS " + PetEntry.COLUMN_PET_WEIGHT + ", " +
+                pet + PetEntry.COLUMN_CHANGE_SEQ + " AS " + PetEntry.COLUMN_CHANGE_SEQ + syncId +
+                " FROM " + PetEntry.TABLE_NAME + " LEFT JOIN " + BreedEntry.TABLE_NAME + " ON " +
+                BreedEntry.TABLE_NAME + "." + BreedEntry._ID + " = " + pet +
+                PetEntry.COLUMN_BREED_ID + ";");
+    }
 }
@@ -0,0 +1,240 @@
+package com.example.android.pets.data;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.File;
+
+/**
+ * Housekeeping for the shelter database, run by {@link PetProvider} when the device is idle:
+ * a quick integrity check, fresh query planner statistics, and giving the pages freed by
+ * deletes back to the file system.
+ *
+ * Every step is a short statement of its own and the free pages are released a batch at a time,
+ * so the provider keeps answering in between. A run can be cancelled, and stops at the next
+ * step. The file is never rebuilt with VACUUM, which would lock it for as long as copying the
+ * whole database takes and could not be stopped. The outcome of the last run is kept in the
+ * shared preferences named {@link #PREFS_NAME}.
+ */
+final class PetDbMaintenance {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = PetDbMaintenance.class.getSimpleName();
+
+    //Shared preferences with the outcome of the last run, under the PetContract keys
+    static final String PREFS_NAME = "pet_db_maintenance";
+
+    //Free pages given back to the file system by each incremental vacuum
+    private static final int VACUUM_BATCH_PAGES = 256;
+
+    //Value of PRAGMA auto_vacuum that lets the free pages be released a batch at a time
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    private final Context mContext;
+    private final SQLiteDatabase mDatabase;
+    private final File mDatabaseFile;
+
+    //Set from another thread to stop the run at the next step
+    private volatile boolean mCancelled;
+
+    PetDbMaintenance(Context context, SQLiteDatabase database) {
+        mContext = context;
+        mDatabase = database;
+        mDatabaseFile = new File(database.getPath());
+    }
+
+    /**
+     * Stop the run at the next step.
+     */
+    void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * Run the maintenance and return its outcome, under the keys of {@link PetContract}.
+     */
+    Bundle run() {
+        long start = SystemClock.elapsedRealtime();
+        long sizeBefore = getDatabaseSize();
+
+        String integrity = quickCheck();
+        boolean ok = "ok".equals(integrity);
+        if (!ok) {
+            //Rewriting a damaged file could make it worse, leave it as it is
+            Log.e(LOG_TAG, "Integrity check failed: " + integrity);
+        }
+        if (ok && !mCancelled) {
+            analyze();
+        }
+        int pagesFreed = 0;
+        if (ok && !mCancelled) {
+            pagesFreed = vacuum();
+        }
+
+        Bundle result = new Bundle();
+        result.putBoolean(PetContract.KEY_INTEGRITY_OK, ok);
+        result.putBoolean(PetContract.KEY_CANCELLED, mCancelled);
+        result.putInt(PetContract.KEY_PAGES_FREED, pagesFreed);
+        result.putLong(PetContract.KEY_SIZE_BEFORE, sizeBefore);
+        result.putLong(PetContract.KEY_SIZE_AFTER, getDatabaseSize());
+        result.putLong(PetContract.KEY_DURATION_MILLIS, SystemClock.elapsedRealtime() - start);
+        record(result);
+        return result;
+    }
+
+    /**
+     * Run PRAGMA quick_check and return its first line, "ok" when the file is sound.
+     */
+    private String quickCheck() {
+        Cursor cursor = mDatabase.rawQuery("PRAGMA quick_check(1)", null);
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Refresh the statistics the query planner uses to pick between the indexes. The first
+     * run analyzes everything, later runs let PRAGMA optimize redo only what has gone stale
+     * where SQLite is recent enough to have it.
+     */
+    private void analyze() {
+        if (hasStatistics() && getSqliteVersion() >= 3018000) {
+            PetDbHelper.execPragma(mDatabase, "PRAGMA optimize");
+        } else {
+            mDatabase.execSQL("ANALYZE");
+        }
+    }
+
+    /**
+     * Return true if ANALYZE already ran on the pets table.
+     */
+    private boolean hasStatistics() {
+        Cursor cursor = mDatabase.rawQuery("SELECT 1 FROM sqlite_master WHERE name = " +
+                "'sqlite_stat1'", null);
+        try {
+            if (!cursor.moveToFirst()) {
+                return false;
+            }
+        } finally {
+            cursor.close();
+        }
+        cursor = mDatabase.rawQuery("SELECT 1 FROM sqlite_stat1 WHERE tbl = ?",
+                new String[]{PetEntry.TABLE_NAME});
+        try {
+            return cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Return the SQLite version as a number, like SQLITE_VERSION_NUMBER.
+     */
+    private int getSqliteVersion() {
+        Cursor cursor = mDatabase.rawQuery("SELECT sqlite_version()", null);
+        try {
+            if (!cursor.moveToFirst()) {
+                return 0;
+            }
+            String[] parts = cursor.getString(0).split("\\.");
+            int version = 0;
+            for (int i = 0; i < 3; i++) {
+                version = version * 1000 + (i < parts.length ? Integer.parseInt(parts[i]) : 0);
+            }
+            return version;
+        } catch (NumberFormatException e) {
+            return 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Give the free pages back to the file system, a batch at a time, and return how many were
+     * given back. Databases created before auto_vacuum was set cannot release pages without
+     * being rebuilt, so they keep theirs, which SQLite reuses for the next rows.
+     */
+    private int vacuum() {
+        int freePages = readIntPragma("PRAGMA freelist_count");
+        if (readIntPragma("PRAGMA auto_vacuum") != AUTO_VACUUM_INCREMENTAL) {
+            Log.i(LOG_TAG, "Keeping " + freePages + " free pages, auto_vacuum is off");
+            return 0;
+        }
+
+        int remaining = freePages;
+        while (remaining > 0 && !mCancelled) {
+            //Every step of the PRAGMA frees one page, so run it to the end
+            Cursor cursor = mDatabase.rawQuery(
+                    "PRAGMA incremental_vacuum(" + VACUUM_BATCH_PAGES + ")", null);
+            try {
+                cursor.getCount();
+            } finally {
+                cursor.close();
+            }
+            int left = readIntPragma("PRAGMA freelist_count");
+            if (left >= remaining) {
+                break;
+            }
+            remaining = left;
+        }
+        return freePages - remaining;
+    }
+
+    /**
+     * Run a PRAGMA that returns a single number and return it.
+     */
+    private int readIntPragma(String pragma) {
+        Cursor cursor = mDatabase.rawQuery(pragma, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Return the size of the database file together with its journal or write-ahead log.
+     */
+    private long getDatabaseSize() {
+        String path = mDatabaseFile.getPath();
+        return mDatabaseFile.length() + new File(path + "-wal").length() +
+                new File(path + "-journal").length();
+    }
+
+    /**
+     * Log the outcome of a run and keep it in the shared preferences.
+     */
+    private void record(Bundle result) {
+        Log.i(LOG_TAG, "Maintenance " + (result.getBoolean(PetContract.KEY_CANCELLED) ?
+                "cancelled" : "done") +
+                " in " + result.getLong(PetContract.KEY_DURATION_MILLIS) + " ms, size " +
+                result.getLong(PetContract.KEY_SIZE_BEFORE) + " -> " +
+                result.getLong(PetContract.KEY_SIZE_AFTER) + " bytes, " +
+                result.getInt(PetContract.KEY_PAGES_FREED) + " pages freed, integrity " +
+                (result.getBoolean(PetContract.KEY_INTEGRITY_OK) ? "ok" : "FAILED"));
+
+        SharedPreferences.Editor editor =
+                mContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit();
+        editor.putLong(PetContract.KEY_LAST_RUN_TIME, System.currentTimeMillis());
+        for (String key : result.keySet()) {
+            Object value = result.get(key);
+            if (value instanceof Boolean) {
+                editor.putBoolean(key, (Boolean) value);
+            } else if (value instanceof Integer) {
+                editor.putInt(key, (Integer) value);
+            } else if (value instanceof Long) {
+                editor.putLong(key, (Long) value);
+            }
+        }
+        editor.apply();
+    }
+}
@@ -0,0 +1,692 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.text.TextUtils;
+
+import com.example.android.pets.data.PetContract.ChangeEntry;
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.StatsEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-memory copy of the columns of the catalog list, kept by {@link PetProvider} so the pets
+ * in _id order are answered without SQLite. The rows are stored by column, sorted by _id, in
+ * chunks of {@link #CHUNK_SIZE}: the ids in a long[], the names packed in one char[], the
+ * breeds as references to one shared String per breed, the genders in a byte[] and the
+ * weights in an int[].
+ *
+ * A published {@link Version} never changes, so the cursors over it need no locking and a
+ * query only has to find where its page starts. A write copies the chunks it touches into a
+ * new version. The provider calls {@link #catchUp} after every write that committed, which
+ * reads the changes the triggers numbered since the version was made, and
+ * {@link #refreshRows} after the changes pulled from headquarters, which are not numbered.
+ * Tables with more pets than the configured maximum are left to SQLite.
+ */
+final class PetListSnapshot {
+
+    /** Columns a snapshot cursor can have. */
+    static final String[] COLUMNS = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_WEIGHT,
+            PetEntry.COLUMN_PET_GENDER
+    };
+
+    //Indexes of the columns in COLUMNS
+    static final int COLUMN_ID = 0;
+    static final int COLUMN_NAME = 1;
+    static final int COLUMN_BREED = 2;
+    static final int COLUMN_WEIGHT = 3;
+    static final int COLUMN_GENDER = 4;
+
+    //Weight stored for the pets whose weight is unknown, real weights are never negative
+    static final int NO_WEIGHT = Integer.MIN_VALUE;
+
+    //Gender stored for the pets without one, valid genders are never negative
+    static final byte NO_GENDER = -1;
+
+    //Rows in a full chunk. An edit copies one chunk and the chunk list, so the cost of an
+    //edit stays small on both sides
+    static final int CHUNK_SIZE = 256;
+
+    //Changes read from the change log at a time
+    private static final int CATCH_UP_BATCH = 1000;
+
+    //Ids refreshed by one query, below the limit of SQLite on the number of arguments
+    private static final int REFRESH_BATCH = 500;
+
+    //Estimated bytes of an object header and of a reference
+    private static final int OBJECT_BYTES = 16;
+    private static final int REFERENCE_BYTES = 4;
+
+    private final int mMaxRows;
+
+    //One String per breed, so every pet of a breed shares it. Only used under the lock
+    private final HashMap<String, String> mBreeds = new HashMap<>();
+
+    //Latest version, or null when the snapshot is not loaded
+    private volatile Version mVersion;
+
+    private final AtomicInteger mHitCount = new AtomicInteger();
+    private final AtomicInteger mMissCount = new AtomicInteger();
+
+    PetListSnapshot(int maxRows) {
+        mMaxRows = maxRows;
+    }
+
+    /**
+     * Return a cursor over the pets of the given PETS Uri, or null when the snapshot cannot
+     * answer it and the query has to go to SQLite. Only the pets in _id order, without a
+     * selection, search or filter and with columns of {@link #COLUMNS}, are answered. The
+     * snapshot is loaded by the first query it can answer.
+     */
+    Cursor query(SQLiteDatabase db, Uri uri, String[] projection, String selection,
+                 String sortOrder) {
+        if (projection == null || !TextUtils.isEmpty(selection) ||
+                uri.getQueryParameter(PetEntry.QUERY_PARAMETER_GENDER) != null ||
+                uri.getQueryParameter(PetEntry.QUERY_PARAMETER_MIN_WEIGHT) != null ||
+                uri.getQueryParameter(PetEntry.QUERY_PARAMETER_MAX_WEIGHT) != null) {
+            return null;
+        }
+        for (String column : projection) {
+            if (indexOf(column) < 0) {
+                return null;
+            }
+        }
+
+        //A page has to be in _id order, anything invalid is left to SQLite to reject
+        int limit;
+        long afterId;
+        String pageSize = uri.getQueryParameter(PetEntry.QUERY_PARAMETER_LIMIT);
+        if (pageSize != null) {
+            String sortColumn = uri.getQueryParameter(PetEntry.QUERY_PARAMETER_SORT);
+            if (sortColumn != null && !sortColumn.equals(PetEntry._ID)) {
+                return null;
+            }
+            String after = uri.getQueryParameter(PetEntry.QUERY_PARAMETER_AFTER_ID);
+            try {
+                limit = Integer.parseInt(pageSize);
+                afterId = after != null ? Long.parseLong(after) : Long.MIN_VALUE;
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (limit <= 0) {
+                return null;
+            }
+        } else if (sortOrder == null || sortOrder.equals(PetEntry._ID) ||
+                sortOrder.equals(PetEntry._ID + " ASC")) {
+            limit = Integer.MAX_VALUE;
+            afterId = Long.MIN_VALUE;
+        } else {
+            return null;
+        }
+
+        Version version = getVersion(db);
+        if (version == null) {
+            mMissCount.incrementAndGet();
+            return null;
+        }
+        mHitCount.incrementAndGet();
+        int first = version.positionAfter(afterId);
+        return new PetSnapshotCursor(version, projection, first,
+                Math.min(limit, version.count - first));
+    }
+
+    /**
+     * Return the index of the column in {@link #COLUMNS}, or -1 if the snapshot does not
+     * have it.
+     */
+    static int indexOf(String column) {
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (COLUMNS[i].equals(column)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Return the latest version, loading it first if the table is small enough, or null.
+     */
+    private Version getVersion(SQLiteDatabase db) {
+        Version version = mVersion;
+        if (version != null) {
+            return version;
+        }
+        synchronized (this) {
+            if (mVersion == null) {
+                load(db);
+            }
+            return mVersion;
+        }
+    }
+
+    /**
+     * Read every pet into a new version, unless there are more than the maximum. The change
+     * sequence is read first, so a change that commits during the scan is read again by the
+     * next catch up, which does no harm.
+     */
+    private void load(SQLiteDatabase db) {
+        //The statistics count the pets without scanning the table
+        long rows = DatabaseUtils.longForQuery(db, "SELECT SUM(" +
+                StatsEntry.COLUMN_PET_COUNT + ") FROM " + StatsEntry.TABLE_NAME, null);
+        if (rows > mMaxRows) {
+            return;
+        }
+
+        mBreeds.clear();
+        Edit edit = new Edit(DatabaseUtils.longForQuery(db,
+                "SELECT " + PetDbHelper.syncState(PetDbHelper.SYNC_LAST_SEQ), null));
+        Cursor cursor = db.query(PetEntry.VIEW_NAME, COLUMNS, null, null, null, null,
+                PetEntry._ID + " ASC");
+        try {
+            while (cursor.moveToNext()) {
+                edit.put(cursor.getLong(COLUMN_ID), cursor.getString(COLUMN_NAME),
+                        cursor.getString(COLUMN_BREED), readGender(cursor, COLUMN_GENDER),
+                        readWeight(cursor, COLUMN_WEIGHT));
+            }
+        } finally {
+            cursor.close();
+        }
+        publish(edit);
+    }
+
+    /**
+     * Apply the changes numbered after the current version, if the snapshot is loaded. Call
+     * it after every write that committed, outside of any transaction.
+     */
+    synchronized void catchUp(SQLiteDatabase db) {
+        Version version = mVersion;
+        if (version == null) {
+            return;
+        }
+        Edit edit = new Edit(version);
+        int read;
+        do {
+            Cursor cursor = PetChangeLog.queryChanges(db, edit.seq, CATCH_UP_BATCH);
+            try {
+                read = cursor.getCount();
+                int idIndex = cursor.getColumnIndexOrThrow(ChangeEntry._ID);
+                int nameIndex = cursor.getColumnIndexOrThrow(ChangeEntry.COLUMN_PET_NAME);
+                int breedIndex = cursor.getColumnIndexOrThrow(ChangeEntry.COLUMN_PET_BREED);
+                int genderIndex = cursor.getColumnIndexOrThrow(ChangeEntry.COLUMN_PET_GENDER);
+                int weightIndex = cursor.getColumnIndexOrThrow(ChangeEntry.COLUMN_PET_WEIGHT);
+                int seqIndex = cursor.getColumnIndexOrThrow(ChangeEntry.COLUMN_CHANGE_SEQ);
+                int deletedIndex = cursor.getColumnIndexOrThrow(ChangeEntry.COLUMN_DELETED);
+                while (cursor.moveToNext()) {
+                    long id = cursor.getLong(idIndex);
+                    if (cursor.getInt(deletedIndex) != 0) {
+                        edit.remove(id);
+                    } else {
+                        edit.put(id, cursor.getString(nameIndex), cursor.getString(breedIndex),
+                                readGender(cursor, genderIndex), readWeight(cursor, weightIndex));
+                    }
+                    edit.seq = cursor.getLong(seqIndex);
+                }
+            } finally {
+                cursor.close();
+            }
+        } while (read == CATCH_UP_BATCH);
+
+        if (edit.changed || edit.seq != version.seq) {
+            publish(edit);
+        }
+    }
+
+    /**
+     * Read the pets with the given ids again, if the snapshot is loaded. Used for the writes
+     * the change tracking does not number.
+     */
+    synchronized void refreshRows(SQLiteDatabase db, List<Long> ids) {
+        Version version = mVersion;
+        if (version == null || ids.isEmpty()) {
+            return;
+        }
+        Edit edit = new Edit(version);
+        for (int from = 0; from < ids.size(); from += REFRESH_BATCH) {
+            List<Long> batch = ids.subList(from, Math.min(ids.size(), from + REFRESH_BATCH));
+            //Drop them all, then put back the ones still there
+            String[] args = new String[batch.size()];
+            for (int i = 0; i < args.length; i++) {
+                edit.remove(batch.get(i));
+                args[i] = String.valueOf(batch.get(i));
+            }
+            String placeholders = TextUtils.join(",", Collections.nCopies(args.length, "?"));
+            Cursor cursor = db.query(PetEntry.VIEW_NAME, COLUMNS,
+                    PetEntry._ID + " IN (" + placeholders + ")", args, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    edit.put(cursor.getLong(COLUMN_ID), cursor.getString(COLUMN_NAME),
+                            cursor.getString(COLUMN_BREED), readGender(cursor, COLUMN_GENDER),
+                            readWeight(cursor, COLUMN_WEIGHT));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        publish(edit);
+    }
+
+    /**
+     * Publish the edit as the latest version, or drop the snapshot when it grew past the
+     * maximum. Call it with the lock held.
+     */
+    private void publish(Edit edit) {
+        if (edit.count > mMaxRows) {
+            mVersion = null;
+            mBreeds.clear();
+            return;
+        }
+        mVersion = edit.toVersion();
+    }
+
+    private static int readWeight(Cursor cursor, int index) {
+        return cursor.isNull(index) ? NO_WEIGHT : cursor.getInt(index);
+    }
+
+    private static byte readGender(Cursor cursor, int index) {
+        return cursor.isNull(index) ? NO_GENDER : (byte) cursor.getInt(index);
+    }
+
+    /**
+     * Return the shared String of the breed.
+     */
+    private String intern(String breed) {
+        if (breed == null) {
+            return null;
+        }
+        String shared = mBreeds.get(breed);
+        if (shared == null) {
+            mBreeds.put(breed, breed);
+            shared = breed;
+        }
+        return shared;
+    }
+
+    int hitCount() {
+        return mHitCount.get();
+    }
+
+    int missCount() {
+        return mMissCount.get();
+    }
+
+    /**
+     * Return the number of pets in the snapshot, 0 when it is not loaded.
+     */
+    int size() {
+        Version version = mVersion;
+        return version != null ? version.count : 0;
+    }
+
+    int maxSize() {
+        return mMaxRows;
+    }
+
+    /**
+     * Return an estimate of the memory the latest version holds, with the shared breeds.
+     */
+    long footprintBytes() {
+        Version version = mVersion;
+        return version != null ? version.bytes : 0;
+    }
+
+    /**
+     * One version of the snapshot. It never changes once published.
+     */
+    static final class Version {
+        final Chunk[] chunks;
+        //Position of the first row of each chunk
+        final int[] starts;
+        final int count;
+        //Last change applied to it
+        final long seq;
+        final long bytes;
+
+        Version(Chunk[] chunks, int count, long seq, long bytes) {
+            this.chunks = chunks;
+            this.count = count;
+            this.seq = seq;
+            this.bytes = bytes;
+            starts = new int[chunks.length];
+            int start = 0;
+            for (int i = 0; i < chunks.length; i++) {
+                starts[i] = start;
+                start += chunks[i].count;
+            }
+        }
+
+        /**
+         * Return the index of the chunk that holds the row at the given position.
+         */
+        int chunkAt(int position) {
+            int low = 0;
+            int high = starts.length - 1;
+            while (low < high) {
+                int middle = (low + high + 1) >>> 1;
+                if (starts[middle] <= position) {
+                    low = middle;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * Return the position of the first pet with an _id greater than the given one.
+         */
+        int positionAfter(long id) {
+            int chunk = findChunk(Arrays.asList(chunks), id);
+            if (chunk < 0) {
+                return 0;
+            }
+            int index = chunks[chunk].indexOf(id);
+            return starts[chunk] + (index >= 0 ? index + 1 : -index - 1);
+        }
+    }
+
+    /**
+     * Return the index of the chunk the given _id belongs in: the last one whose first _id
+     * is not greater, or the first one. Return -1 if there are no chunks.
+     */
+    private static int findChunk(List<Chunk> chunks, long id) {
+        int low = 0;
+        int high = chunks.size() - 1;
+        if (high < 0) {
+            return -1;
+        }
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (chunks.get(middle).ids[0] <= id) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Up to {@link #CHUNK_SIZE} consecutive pets, stored by column. A chunk is only changed
+     * by the edit that created it, and never again once it is shared by a published version.
+     */
+    static final class Chunk {
+        final long[] ids = new long[CHUNK_SIZE];
+        //End of the name of each row in the names, or its complement for a null name
+        final int[] nameEnds = new int[CHUNK_SIZE];
+        final String[] breeds = new String[CHUNK_SIZE];
+        final byte[] genders = new byte[CHUNK_SIZE];
+        final int[] weights = new int[CHUNK_SIZE];
+        char[] names;
+        int count;
+        boolean shared;
+
+        Chunk(int nameCapacity) {
+            names = new char[nameCapacity];
+        }
+
+        int indexOf(long id) {
+            return Arrays.binarySearch(ids, 0, count, id);
+        }
+
+        boolean isNameNull(int row) {
+            return nameEnds[row] < 0;
+        }
+
+        int nameStart(int row) {
+            return row == 0 ? 0 : nameEnd(row - 1);
+        }
+
+        int nameEnd(int row) {
+            int end = nameEnds[row];
+            return end >= 0 ? end : ~end;
+        }
+
+        String getName(int row) {
+            if (isNameNull(row)) {
+                return null;
+            }
+            int start = nameStart(row);
+            return new String(names, start, nameEnd(row) - start);
+        }
+
+        /**
+         * Insert a row at the given index, moving the next ones down.
+         */
+        void insert(int row, long id, String name, String breed, byte gender, int weight) {
+            int start = nameStart(row);
+            int length = name != null ? name.length() : 0;
+            int used = count == 0 ? 0 : nameEnd(count - 1);
+            if (used + length > names.length) {
+                names = Arrays.copyOf(names, Math.max(names.length * 2, used + length));
+            }
+            System.arraycopy(names, start, names, start + length, used - start);
+            if (name != null) {
+                name.getChars(0, length, names, start);
+            }
+
+            int moved = count - row;
+            System.arraycopy(ids, row, ids, row + 1, moved);
+            System.arraycopy(nameEnds, row, nameEnds, row + 1, moved);
+            System.arraycopy(breeds, row, breeds, row + 1, moved);
+            System.arraycopy(genders, row, genders, row + 1, moved);
+            System.arraycopy(weights, row, weights, row + 1, moved);
+            for (int i = row + 1; i <= count; i++) {
+                nameEnds[i] = shiftEnd(nameEnds[i], length);
+            }
+            ids[row] = id;
+            nameEnds[row] = name != null ? start + length : ~start;
+            breeds[row] = breed;
+            genders[row] = gender;
+            weights[row] = weight;
+            count++;
+        }
+
+        /**
+         * Remove the row at the given index, moving the next ones up.
+         */
+        void remove(int row) {
+            int start = nameStart(row);
+            int length = nameEnd(row) - start;
+            int used = nameEnd(count - 1);
+            System.arraycopy(names, start + length, names, start, used - start - length);
+
+            int moved = count - row - 1;
+            System.arraycopy(ids, row + 1, ids, row, moved);
+            System.arraycopy(nameEnds, row + 1, nameEnds, row, moved);
+            System.arraycopy(breeds, row + 1, breeds, row, moved);
+            System.arraycopy(genders, row + 1, genders, row, moved);
+            System.arraycopy(weights, row + 1, weights, row, moved);
+            count--;
+            breeds[count] = null;
+            for (int i = row; i < count; i++) {
+                nameEnds[i] = shiftEnd(nameEnds[i], -length);
+            }
+        }
+
+        private static int shiftEnd(int end, int delta) {
+            return end >= 0 ? end + delta : ~(~end + delta);
+        }
+
+        /**
+         * Return a new chunk, not shared, with a copy of the rows from the first index up to
+         * the last one, excluded.
+         */
+        Chunk copy(int from, int to) {
+            int nameFrom = nameStart(from);
+            int nameTo = to == from ? nameFrom : nameEnd(to - 1);
+            //Some room for the next edits, which usually change a name or two
+            Chunk copy = new Chunk(nameTo - nameFrom + 64);
+            System.arraycopy(names, nameFrom, copy.names, 0, nameTo - nameFrom);
+            int rows = to - from;
+            System.arraycopy(ids, from, copy.ids, 0, rows);
+            System.arraycopy(breeds, from, copy.breeds, 0, rows);
+            System.arraycopy(genders, from, copy.genders, 0, rows);
+            System.arraycopy(weights, from, copy.weights, 0, rows);
+            for (int i = 0; i < rows; i++) {
+                copy.nameEnds[i] = shiftEnd(nameEnds[from + i], -nameFrom);
+            }
+            copy.count = rows;
+            return copy;
+        }
+
+        long footprintBytes() {
+            return 7 * OBJECT_BYTES + CHUNK_SIZE * (8 + 4 + REFERENCE_BYTES + 1 + 4) +
+                    2L * names.length;
+        }
+    }
+
+    /**
+     * Changes to a version, which become a new version once published. Only the chunks that
+     * change are copied.
+     */
+    final class Edit {
+        final ArrayList<Chunk> chunks;
+        int count;
+        long seq;
+        boolean changed;
+
+        /**
+         * Start an empty version at the given change sequence.
+         */
+        Edit(long seq) {
+            chunks = new ArrayList<>();
+            this.seq = seq;
+        }
+
+        /**
+         * Start from the given version.
+         */
+        Edit(Version version) {
+            chunks = new ArrayList<>(Arrays.asList(version.chunks));
+            count = version.count;
+            seq = version.seq;
+        }
+
+        /**
+         * Insert the pet, or replace it if there is one with the same _id.
+         */
+        void put(long id, String name, String breed, byte gender, int weight) {
+            changed = true;
+            breed = intern(breed);
+            int chunkIndex = findChunk(chunks, id);
+            if (chunkIndex < 0) {
+                chunks.add(new Chunk(CHUNK_SIZE * 8));
+                chunkIndex = 0;
+            }
+            Chunk chunk = chunks.get(chunkIndex);
+            int row = chunk.indexOf(id);
+            if (row >= 0) {
+                chunk = writable(chunkIndex);
+                chunk.remove(row);
+                chunk.insert(row, id, name, breed, gender, weight);
+                return;
+            }
+
+            row = -row - 1;
+            if (chunk.count == CHUNK_SIZE) {
+                if (chunkIndex == chunks.size() - 1 && row == CHUNK_SIZE) {
+                    //New pets go after the last one, they start a new chunk
+                    chunks.add(new Chunk(CHUNK_SIZE * 8));
+                    chunkIndex++;
+                    row = 0;
+                } else {
+                    //Split the full chunk in halves and insert into the right one
+                    int half = CHUNK_SIZE / 2;
+                    chunks.set(chunkIndex, chunk.copy(0, half));
+                    chunks.add(chunkIndex + 1, chunk.copy(half, CHUNK_SIZE));
+                    if (row > half) {
+                        chunkIndex++;
+                        row -= half;
+                    }
+                }
+            }
+            writable(chunkIndex).insert(row, id, name, breed, gender, weight);
+            count++;
+        }
+
+        /**
+         * Remove the pet with the given _id, if there is one.
+         */
+        void remove(long id) {
+            int chunkIndex = findChunk(chunks, id);
+            if (chunkIndex < 0) {
+                return;
+            }
+            int row = chunks.get(chunkIndex).indexOf(id);
+            if (row < 0) {
+                return;
+            }
+            changed = true;
+            Chunk chunk = writable(chunkIndex);
+            chunk.remove(row);
+            count--;
+            if (chunk.count == 0) {
+                chunks.remove(chunkIndex);
+            }
+        }
+
+        /**
+         * Return the chunk at the given index, copied first if a version shares it.
+         */
+        private Chunk writable(int chunkIndex) {
+            Chunk chunk = chunks.get(chunkIndex);
+            if (chunk.shared) {
+                chunk = chunk.copy(0, chunk.count);
+                chunks.set(chunkIndex, chunk);
+            }
+            return chunk;
+        }
+
+        /**
+         * Return the edited rows as a new version, sharing its chunks from now on.
+         */
+        Version toVersion() {
+            //Deletes leave chunks partly empty, pack them again once they are mostly empty
+            if (chunks.size() > 1 && count < chunks.size() * (CHUNK_SIZE / 4)) {
+                pack();
+            }
+            long bytes = OBJECT_BYTES * 2 + (long) chunks.size() * (REFERENCE_BYTES + 4);
+            for (Chunk chunk : chunks) {
+                chunk.shared = true;
+                bytes += chunk.footprintBytes();
+            }
+            for (String breed : mBreeds.keySet()) {
+                //The String, its chars and the map entry
+                bytes += 3 * OBJECT_BYTES + 2L * breed.length() + 2 * REFERENCE_BYTES;
+            }
+            return new Version(chunks.toArray(new Chunk[chunks.size()]), count, seq, bytes);
+        }
+
+        /**
+         * Copy the rows into as few chunks as they fit in.
+         */
+        private void pack() {
+            ArrayList<Chunk> packed = new ArrayList<>(count / CHUNK_SIZE + 1);
+            Chunk target = null;
+            for (Chunk chunk : chunks) {
+                for (int row = 0; row < chunk.count; row++) {
+                    if (target == null || target.count == CHUNK_SIZE) {
+                        target = new Chunk(CHUNK_SIZE * 8);
+                        packed.add(target);
+                    }
+                    target.insert(target.count, chunk.ids[row], chunk.getName(row),
+                            chunk.breeds[row], chunk.genders[row], chunk.weights[row]);
+                }
+            }
+            chunks.clear();
+            chunks.addAll(packed);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.example.android.pets.data;
+
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * One step of the shelter database schema. A migration takes a database at the version right
+ * before {@link #getVersion()} and brings it to that version. {@link PetDbHelper} runs the
+ * migrations in order, each one inside its own transaction.
+ */
+abstract class PetMigration {
+
+    //Version of the schema once this migration has run
+    private final int mVersion;
+
+    PetMigration(int version) {
+        mVersion = version;
+    }
+
+    /**
+     * Return the version of the schema once this migration has run.
+     */
+    int getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Change the schema and the data of the given database to this version.
+     */
+    abstract void migrate(SQLiteDatabase db);
+}
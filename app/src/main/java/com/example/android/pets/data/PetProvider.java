@@ -1,15 +1,41 @@
 package com.example.android.pets.data;
 
+import android.content.ClipDescription;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
+import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.text.TextUtils;
 import android.util.Log;
 
+import com.example.android.pets.R;
+import com.example.android.pets.data.PetContract.BreedStatsEntry;
+import com.example.android.pets.data.PetContract.ChangeEntry;
+import com.example.android.pets.data.PetContract.MetricsEntry;
 import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.StatsEntry;
+
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
 /**
  * {@link ContentProvider} for Pets app.
  */
@@ -21,9 +47,63 @@ public class PetProvider extends ContentProvider {
     //Global PetDbHelper Variable
     private PetDbHelper mDbHelper;
 
+    //Compiled statements for the common writes, created with the writable database
+    private PetStatements mStatements;
+
+    //breed_id of every breed name, so writes rarely look the breeds up in the database
+    private final PetBreeds mBreeds = new PetBreeds();
+
+    //Maintenance that is running, if any, and the token its caller named it by
+    private PetDbMaintenance mMaintenance;
+    private String mMaintenanceToken;
+
+    //Token of the last maintenance run cancelled, which may not have started yet
+    private String mCancelledMaintenanceToken;
+
+    //Counters and latencies of every operation
+    private PetProviderMetrics mMetrics;
+
+    //Recently read pets, so reopening the same pet does not touch the database
+    private PetRowCache mRowCache;
+
+    //The catalog list columns of every pet, so list reloads do not touch the database
+    private PetListSnapshot mSnapshot;
+
     //Global variables for Uri Matcher Ids
     private static final int PETS = 100;
     private static final int PET_ID = 101;
+    private static final int PET_SEARCH = 102;
+    private static final int STATS = 200;
+    private static final int BREED_STATS = 201;
+    private static final int METRICS = 300;
+    private static final int CHANGES = 400;
+
+    //Match codes and their paths as the metrics name them
+    private static final int[] METRICS_CODES = {
+            PETS, PET_ID, PET_SEARCH, STATS, BREED_STATS, METRICS, CHANGES
+    };
+    private static final String[] METRICS_PATHS = {
+            PetContract.PATH_PETS,
+            PetContract.PATH_PETS + "/#",
+            PetContract.PATH_PETS + "/" + PetContract.PATH_SEARCH,
+            PetContract.PATH_STATS,
+            PetContract.PATH_STATS + "/" + PetContract.PATH_BREEDS,
+            PetContract.PATH_METRICS,
+            PetContract.PATH_CHANGES
+    };
+
+    //Types the pets table can be streamed as
+    private static final String[] ROSTER_TYPES = {
+            PetEntry.ROSTER_CSV_TYPE,
+            PetEntry.ROSTER_JSON_TYPE
+    };
+
+    //Above this many changed rows a batch notifies the whole table instead of every row
+    private static final int MAX_BATCH_ROW_NOTIFICATIONS = 50;
+
+    //Set while applyBatch runs on the current thread, holds the Uris the batch has changed
+    private final ThreadLocal<Set<Uri>> mBatchChanges = new ThreadLocal<>();
+
     //Uri Matcher Globar Variable
     private static final UriMatcher sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
 
@@ -31,6 +111,13 @@ public class PetProvider extends ContentProvider {
         //Add URI to the Uri Matcher and assing the values.
         sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_PETS, PETS);
         sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_PETS + "/#", PET_ID);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_SEARCH, PET_SEARCH);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_STATS, STATS);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_STATS + "/" + PetContract.PATH_BREEDS, BREED_STATS);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_METRICS, METRICS);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_CHANGES, CHANGES);
 
     }
 
@@ -39,7 +126,16 @@ public class PetProvider extends ContentProvider {
      */
     @Override
     public boolean onCreate() {
-        mDbHelper = new PetDbHelper(getContext());
+        //Open the database with the storage profile picked in the config resources
+        PetStorageProfile profile = PetStorageProfile.valueOf(
+                getContext().getString(R.string.config_storage_profile));
+        mDbHelper = new PetDbHelper(getContext(), profile);
+        mMetrics = new PetProviderMetrics(METRICS_PATHS,
+                getContext().getResources().getInteger(R.integer.config_slow_operation_millis));
+        mRowCache = new PetRowCache(
+                getContext().getResources().getInteger(R.integer.config_pet_row_cache_size));
+        mSnapshot = new PetListSnapshot(
+                getContext().getResources().getInteger(R.integer.config_pet_snapshot_max_rows));
         return true;
     }
 
@@ -49,6 +145,25 @@ public class PetProvider extends ContentProvider {
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                         String sortOrder) {
+        long start = System.nanoTime();
+        int path = getMetricsPath(uri);
+        Cursor cursor;
+        try {
+            cursor = doQuery(uri, projection, selection, selectionArgs, sortOrder);
+        } finally {
+            //Counting the rows would run the whole query here, they are added once the caller
+            //counts them
+            mMetrics.record(PetProviderMetrics.QUERY, path, PetProviderMetrics.ROWS_UNKNOWN,
+                    System.nanoTime() - start);
+        }
+        return mMetrics.countRowsOnRead(cursor, path);
+    }
+
+    /**
+     * Do the work of {@link #query}, which records the metrics around it.
+     */
+    private Cursor doQuery(Uri uri, String[] projection, String selection,
+                           String[] selectionArgs, String sortOrder) {
         // Get readable database
         SQLiteDatabase database = mDbHelper.getReadableDatabase();
 
@@ -58,15 +173,35 @@ public class PetProvider extends ContentProvider {
         // Figure out if the URI matcher can match the URI to a specific code
         int match = sUriMatcher.match(uri);
         switch (match) {
+            case PET_SEARCH:
             case PETS:
-                // For the PETS code, query the pets table directly with the given
-                // projection, selection, selection arguments, and sort order. The cursor
-                // could contain multiple rows of the pets table.
-                cursor = database.query(PetEntry.TABLE_NAME, projection, selection,
-                        selectionArgs, null, null, sortOrder);
+                // For the PETS code, answer the plain list in _id order from the snapshot.
+                if (match == PETS) {
+                    cursor = mSnapshot.query(database, uri, projection, selection, sortOrder);
+                    if (cursor != null) {
+                        break;
+                    }
+                }
+
+                // Otherwise query the pets view directly with the given
+                // projection, selection, selection arguments, and sort order, narrowed down by
+                // the search, the filters and the page of the Uri. The cursor could contain
+                // multiple rows of the pets table.
+                PetsQuery petsQuery = buildPetsQuery(uri, match, selection, selectionArgs,
+                        sortOrder);
+                cursor = database.query(PetEntry.VIEW_NAME, projection, petsQuery.selection,
+                        petsQuery.selectionArgs, null, null, petsQuery.orderBy, petsQuery.limit);
                 break;
             case PET_ID:
-                // For the PET_ID code, extract out the ID from the URI.
+                // For the PET_ID code, answer from the row cache when the pet was read recently.
+                long id = ContentUris.parseId(uri);
+                Object[] cachedRow = mRowCache.get(id);
+                if (cachedRow != null) {
+                    cursor = PetRowCache.toCursor(cachedRow, projection);
+                    break;
+                }
+
+                // Otherwise extract out the ID from the URI.
                 // For an example URI such as "content://com.example.android.pets/pets/3",
                 // the selection will be "_id=?" and the selection argument will be a
                 // String array containing the actual ID of 3 in this case.
@@ -75,27 +210,313 @@ public class PetProvider extends ContentProvider {
                 // arguments that will fill in the "?". Since we have 1 question mark in the
                 // selection, we have 1 String in the selection arguments' String array.
                 selection = PetEntry._ID + "=?";
-                selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
+                selectionArgs = new String[]{String.valueOf(id)};
 
                 // This will perform a query on the pets table where the _id equals 3 to return a
-                // Cursor containing that row of the table.
-                cursor = database.query(PetEntry.TABLE_NAME, projection, selection, selectionArgs,
-                        null, null, sortOrder);
+                // Cursor containing that row of the table. The whole row is read so it can be
+                // cached for any projection.
+                long generation = mRowCache.getGeneration();
+                Cursor rowCursor = database.query(PetEntry.VIEW_NAME, PetRowCache.COLUMNS,
+                        selection, selectionArgs, null, null, null);
+                try {
+                    if (rowCursor.moveToFirst()) {
+                        Object[] row = PetRowCache.readRow(rowCursor);
+                        mRowCache.put(row, generation);
+                        cursor = PetRowCache.toCursor(row, projection);
+                    } else {
+                        cursor = new MatrixCursor(
+                                projection != null ? projection : PetRowCache.COLUMNS, 0);
+                    }
+                } finally {
+                    rowCursor.close();
+                }
+                break;
+            case STATS:
+                // For the STATS code, read the gender rows kept up to date by the triggers.
+                cursor = database.query(StatsEntry.VIEW_NAME, projection, selection,
+                        selectionArgs, null, null, sortOrder);
+                break;
+            case BREED_STATS:
+                // For the BREED_STATS code, read the most common breeds off the count index.
+                String breedLimit = uri.getQueryParameter(PetEntry.QUERY_PARAMETER_LIMIT);
+                if (breedLimit == null) {
+                    breedLimit = String.valueOf(BreedStatsEntry.DEFAULT_LIMIT);
+                }
+                cursor = database.query(BreedStatsEntry.TABLE_NAME, projection, selection,
+                        selectionArgs, null, null, BreedStatsEntry.COLUMN_PET_COUNT + " DESC",
+                        breedLimit);
+                break;
+            case METRICS:
+                // For the METRICS code, return a snapshot of the counters. It never changes on
+                // its own, so there is nothing to watch.
+                return mMetrics.snapshot();
+            case CHANGES:
+                // For the CHANGES code, read the changed pets and tombstones off their change
+                // sequence indexes.
+                long afterSeq;
+                int changeLimit;
+                try {
+                    afterSeq = Long.parseLong(uri.getQueryParameter(
+                            ChangeEntry.QUERY_PARAMETER_AFTER_SEQ));
+                    changeLimit = Integer.parseInt(uri.getQueryParameter(
+                            PetEntry.QUERY_PARAMETER_LIMIT));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Changes require a sequence number and " +
+                            "a limit " + uri);
+                }
+                if (changeLimit <= 0) {
+                    throw new IllegalArgumentException("Invalid limit for " + uri);
+                }
+                cursor = PetChangeLog.queryChanges(database, afterSeq, changeLimit);
                 break;
             default:
                 throw new IllegalArgumentException("Cannot query unknown URI " + uri);
         }
-        //Set
-        cursor.setNotificationUri(getContext().getContentResolver(), PetEntry.CONTENT_URI);
+        //Watch the pet itself for single pets, and the whole table for lists and statistics
+        Uri notificationUri = match == PET_ID ? getChangedUri(uri) : PetEntry.CONTENT_URI;
+        cursor.setNotificationUri(getContext().getContentResolver(), notificationUri);
 
         return cursor;
     }
 
+    /**
+     * The parts of a query of the pets table that depend on the Uri.
+     */
+    private static final class PetsQuery {
+        String selection;
+        String[] selectionArgs;
+        String orderBy;
+        String limit;
+    }
+
+    /**
+     * Build the query of the pets of a PETS or PET_SEARCH Uri: keep only the pets found by the
+     * search and the filters, then sort and cut them into the page of the Uri if it has one.
+     */
+    private static PetsQuery buildPetsQuery(Uri uri, int match, String selection,
+                                            String[] selectionArgs, String sortOrder) {
+        PetsQuery query = new PetsQuery();
+        if (match == PET_SEARCH) {
+            // For the PET_SEARCH code, keep only the pets found in the full-text index and
+            // then query them like the PETS code does.
+            String matchQuery = buildMatchQuery(
+                    uri.getQueryParameter(PetEntry.QUERY_PARAMETER_SEARCH));
+            if (matchQuery != null) {
+                selection = appendSelection(selection, PetEntry._ID + " IN (SELECT docid FROM " +
+                        PetEntry.FTS_TABLE_NAME + " WHERE " + PetEntry.FTS_TABLE_NAME +
+                        " MATCH ?)");
+                selectionArgs = appendSelectionArgs(selectionArgs, new String[]{matchQuery});
+            }
+        }
+
+        //Every filter is a plain comparison on an indexed column
+        String gender = uri.getQueryParameter(PetEntry.QUERY_PARAMETER_GENDER);
+        if (gender != null) {
+            if (!PetEntry.isValidGender(parseFilter(uri, gender))) {
+                throw new IllegalArgumentException("Invalid gender " + gender + " for " + uri);
+            }
+            selection = appendSelection(selection, PetEntry.COLUMN_PET_GENDER + " = ?");
+            selectionArgs = appendSelectionArgs(selectionArgs, new String[]{gender});
+        }
+        String minWeight = uri.getQueryParameter(PetEntry.QUERY_PARAMETER_MIN_WEIGHT);
+        if (minWeight != null) {
+            parseFilter(uri, minWeight);
+            selection = appendSelection(selection, PetEntry.COLUMN_PET_WEIGHT + " >= ?");
+            selectionArgs = appendSelectionArgs(selectionArgs, new String[]{minWeight});
+        }
+        String maxWeight = uri.getQueryParameter(PetEntry.QUERY_PARAMETER_MAX_WEIGHT);
+        if (maxWeight != null) {
+            parseFilter(uri, maxWeight);
+            selection = appendSelection(selection, PetEntry.COLUMN_PET_WEIGHT + " <= ?");
+            selectionArgs = appendSelectionArgs(selectionArgs, new String[]{maxWeight});
+        }
+
+        query.selection = selection;
+        query.selectionArgs = selectionArgs;
+        query.orderBy = sortOrder;
+        String limit = uri.getQueryParameter(PetEntry.QUERY_PARAMETER_LIMIT);
+        if (limit != null) {
+            buildPetsPage(uri, limit, minWeight != null || maxWeight != null, query);
+        }
+        return query;
+    }
+
+    /**
+     * Parse the value of a filter of the Uri, which has to be a number that is not negative.
+     */
+    private static int parseFilter(Uri uri, String value) {
+        int number;
+        try {
+            number = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid filter " + value + " for " + uri);
+        }
+        if (number < 0) {
+            throw new IllegalArgumentException("Invalid filter " + value + " for " + uri);
+        }
+        return number;
+    }
+
+    /**
+     * Turn the query into one page of pets using keyset pagination. Instead of skipping rows
+     * with OFFSET, the page starts right after the sort key and _id of the last row of the
+     * previous page, so every page costs the same no matter how deep into the table it is.
+     */
+    private static void buildPetsPage(Uri uri, String limit, boolean weightFiltered,
+                                      PetsQuery query) {
+        //Check the page size
+        int pageSize;
+        try {
+            pageSize = Integer.parseInt(limit);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid page size " + limit + " for " + uri);
+        }
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("Invalid page size " + limit + " for " + uri);
+        }
+
+        //Only the columns that can continue a page are allowed as sort keys, each one has an
+        //index that also holds the _id for the ties
+        String sortColumn = uri.getQueryParameter(PetEntry.QUERY_PARAMETER_SORT);
+        if (sortColumn == null || sortColumn.equals(PetEntry._ID)) {
+            sortColumn = PetEntry._ID;
+            query.orderBy = PetEntry._ID + " ASC";
+        } else if (sortColumn.equals(PetEntry.COLUMN_PET_NAME)) {
+            query.orderBy = PetEntry.COLUMN_PET_NAME + " COLLATE NOCASE ASC, " +
+                    PetEntry._ID + " ASC";
+        } else if (sortColumn.equals(PetEntry.COLUMN_PET_WEIGHT)) {
+            query.orderBy = PetEntry.COLUMN_PET_WEIGHT + " ASC, " + PetEntry._ID + " ASC";
+        } else {
+            throw new IllegalArgumentException("Cannot sort pages by " + sortColumn);
+        }
+        //A weight range in any other order would have to sort every pet in the range
+        if (weightFiltered && !sortColumn.equals(PetEntry.COLUMN_PET_WEIGHT)) {
+            throw new IllegalArgumentException("Pages filtered by weight must be sorted by " +
+                    "weight " + uri);
+        }
+
+        //Continue after the last row of the previous page, if there is one
+        String afterId = uri.getQueryParameter(PetEntry.QUERY_PARAMETER_AFTER_ID);
+        if (afterId != null) {
+            String afterKey = uri.getQueryParameter(PetEntry.QUERY_PARAMETER_AFTER_KEY);
+            String keySelection;
+            String[] keyArgs;
+            if (sortColumn.equals(PetEntry._ID)) {
+                keySelection = PetEntry._ID + " > ?";
+                keyArgs = new String[]{afterId};
+            } else if (sortColumn.equals(PetEntry.COLUMN_PET_WEIGHT) && afterKey == null) {
+                //The unknown weights sort first, the page goes on with the rest of them
+                keySelection = "(" + PetEntry.COLUMN_PET_WEIGHT + " IS NULL AND " +
+                        PetEntry._ID + " > ? OR " + PetEntry.COLUMN_PET_WEIGHT + " IS NOT NULL)";
+                keyArgs = new String[]{afterId};
+            } else {
+                if (afterKey == null) {
+                    throw new IllegalArgumentException("Page requires a sort key " + uri);
+                }
+                //The first term alone can seek on an index, the second one skips the ties
+                String collation = sortColumn.equals(PetEntry.COLUMN_PET_NAME) ?
+                        " COLLATE NOCASE" : "";
+                keySelection = sortColumn + " >= ?" + collation + " AND (" +
+                        sortColumn + " > ?" + collation + " OR " + PetEntry._ID + " > ?)";
+                keyArgs = new String[]{afterKey, afterKey, afterId};
+            }
+            query.selection = appendSelection(query.selection, keySelection);
+            query.selectionArgs = appendSelectionArgs(query.selectionArgs, keyArgs);
+        }
+        query.limit = String.valueOf(pageSize);
+    }
+
+    /**
+     * Return the steps SQLite plans to take for the query of the given PETS or PET_SEARCH Uri,
+     * one line of EXPLAIN QUERY PLAN each. Used by the query plan tests.
+     */
+    List<String> explainQueryPlan(Uri uri, String[] projection) {
+        PetsQuery petsQuery = buildPetsQuery(uri, sUriMatcher.match(uri), null, null, null);
+        String sql = SQLiteQueryBuilder.buildQueryString(false, PetEntry.VIEW_NAME, projection,
+                petsQuery.selection, null, null, petsQuery.orderBy, petsQuery.limit);
+        Cursor cursor = mDbHelper.getReadableDatabase().rawQuery("EXPLAIN QUERY PLAN " + sql,
+                petsQuery.selectionArgs);
+        try {
+            List<String> plan = new ArrayList<>(cursor.getCount());
+            int detailIndex = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                plan.add(cursor.getString(detailIndex));
+            }
+            return plan;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Turn the text typed by the user into a full-text MATCH expression where every word is a
+     * prefix, so "gol ret" finds "Golden Retriever". Return null if the text has no words.
+     */
+    private static String buildMatchQuery(String text) {
+        if (text == null) {
+            return null;
+        }
+        StringBuilder matchQuery = new StringBuilder();
+        StringBuilder word = new StringBuilder();
+        //Keep only letters and digits so the text can never be read as search syntax
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                word.append(Character.toLowerCase(c));
+            } else if (word.length() > 0) {
+                if (matchQuery.length() > 0) {
+                    matchQuery.append(' ');
+                }
+                matchQuery.append(word).append('*');
+                word.setLength(0);
+            }
+        }
+        return matchQuery.length() > 0 ? matchQuery.toString() : null;
+    }
+
+    /**
+     * Join the given selection with an extra clause that must also be true.
+     */
+    private static String appendSelection(String selection, String clause) {
+        if (selection == null || selection.isEmpty()) {
+            return clause;
+        }
+        return "(" + selection + ") AND (" + clause + ")";
+    }
+
+    /**
+     * Append the arguments of an extra clause to the given selection arguments.
+     */
+    private static String[] appendSelectionArgs(String[] selectionArgs, String[] args) {
+        if (selectionArgs == null || selectionArgs.length == 0) {
+            return args;
+        }
+        String[] result = new String[selectionArgs.length + args.length];
+        System.arraycopy(selectionArgs, 0, result, 0, selectionArgs.length);
+        System.arraycopy(args, 0, result, selectionArgs.length, args.length);
+        return result;
+    }
+
     /**
      * Insert new data into the provider with the given ContentValues.
      */
     @Override
     public Uri insert(Uri uri, ContentValues contentValues) {
+        long start = System.nanoTime();
+        Uri newUri = null;
+        try {
+            newUri = doInsert(uri, contentValues);
+            return newUri;
+        } finally {
+            mMetrics.record(PetProviderMetrics.INSERT, getMetricsPath(uri),
+                    newUri != null ? 1 : 0, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Do the work of {@link #insert}, which records the metrics around it.
+     */
+    private Uri doInsert(Uri uri, ContentValues contentValues) {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case PETS:
@@ -110,6 +531,38 @@ public class PetProvider extends ContentProvider {
      * for that specific row in the database.
      */
     private Uri insertPet(Uri uri, ContentValues values) {
+        //Check the values before touching the database
+        validateNewPet(values);
+
+        //Insert a new pet into the pets database table with the given ContentValues
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        // Insert the new pet with the given values
+        long id;
+        if (PetStatements.canWrite(values)) {
+            id = getStatements(database).insert(values);
+        } else {
+            id = database.insert(PetEntry.TABLE_NAME, null,
+                    mBreeds.toTableValues(database, values));
+        }
+        // If the ID is -1, then the insertion failed. Log an error and return null.
+        if (id == -1) {
+            Log.e(LOG_TAG, "Failed to insert row for " + uri);
+            return null;
+        }
+
+        //Notify the listener of the change before the return statement
+        notifyPetsChanged(ContentUris.withAppendedId(PetEntry.CONTENT_URI, id));
+
+        // Once we know the ID of the new row in the table,
+        // return the new URI with the ID appended to the end of it
+        return ContentUris.withAppendedId(uri, id);
+    }
+
+    /**
+     * Check that the given content values describe a valid new pet. Throws an
+     * {@link IllegalArgumentException} if the name, gender or weight are not valid.
+     */
+    private void validateNewPet(ContentValues values) {
         //Check if name is not null
         String name = values.getAsString(PetEntry.COLUMN_PET_NAME);
         if (name == null) {
@@ -127,23 +580,69 @@ public class PetProvider extends ContentProvider {
         if (weight != null && weight < 0) {
             throw new IllegalArgumentException("Pet requires valid weight");
         }
+    }
 
-        //Insert a new pet into the pets database table with the given ContentValues
-        SQLiteDatabase database = mDbHelper.getWritableDatabase();
-        // Insert the new pet with the given values
-        long id = database.insert(PetEntry.TABLE_NAME, null, values);
-        // If the ID is -1, then the insertion failed. Log an error and return null.
-        if (id == -1) {
-            Log.e(LOG_TAG, "Failed to insert row for " + uri);
-            return null;
+    /**
+     * Insert a batch of pets. All the rows are written inside a single transaction with one
+     * compiled insert statement, and the listeners are notified once when the batch is done.
+     * If any row is not valid the whole batch is rolled back.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] valuesArray) {
+        long start = System.nanoTime();
+        int rowsInserted = 0;
+        try {
+            rowsInserted = doBulkInsert(uri, valuesArray);
+            return rowsInserted;
+        } finally {
+            mMetrics.record(PetProviderMetrics.BULK_INSERT, getMetricsPath(uri), rowsInserted,
+                    System.nanoTime() - start);
         }
+    }
 
-        //Notify the listener of the change before the return statement
-        getContext().getContentResolver().notifyChange(PetEntry.CONTENT_URI, null);
+    /**
+     * Do the work of {@link #bulkInsert}, which records the metrics around it.
+     */
+    private int doBulkInsert(Uri uri, ContentValues[] valuesArray) {
+        final int match = sUriMatcher.match(uri);
+        switch (match) {
+            case PETS:
+                return bulkInsertPets(uri, valuesArray);
+            default:
+                throw new IllegalArgumentException("Insertion is not supported for " + uri);
+        }
+    }
 
-        // Once we know the ID of the new row in the table,
-        // return the new URI with the ID appended to the end of it
-        return ContentUris.withAppendedId(uri, id);
+    /**
+     * Insert all the given pets in one transaction. Return the number of rows inserted.
+     */
+    private int bulkInsertPets(Uri uri, ContentValues[] valuesArray) {
+        //Check every row first so a bad row never leaves half a batch behind
+        for (ContentValues values : valuesArray) {
+            validateNewPet(values);
+        }
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        int rowsInserted;
+
+        //Read the breeds before the transaction, which only caches the ids once it commits
+        mBreeds.beginTransaction(database);
+        try {
+            rowsInserted = getStatements(database).insertAll(valuesArray);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        //Notify the listeners once for the whole batch, unless the caller will do it
+        if (rowsInserted != 0) {
+            if (uri.getBooleanQueryParameter(PetEntry.QUERY_PARAMETER_NOTIFY, true)) {
+                notifyPetsChanged(PetEntry.CONTENT_URI);
+            } else {
+                refreshSnapshot();
+            }
+        }
+        return rowsInserted;
     }
 
     /**
@@ -151,6 +650,22 @@ public class PetProvider extends ContentProvider {
      */
     @Override
     public int update(Uri uri, ContentValues contentValues, String selection, String[] selectionArgs) {
+        long start = System.nanoTime();
+        int rowsUpdated = 0;
+        try {
+            rowsUpdated = doUpdate(uri, contentValues, selection, selectionArgs);
+            return rowsUpdated;
+        } finally {
+            mMetrics.record(PetProviderMetrics.UPDATE, getMetricsPath(uri), rowsUpdated,
+                    System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Do the work of {@link #update}, which records the metrics around it.
+     */
+    private int doUpdate(Uri uri, ContentValues contentValues, String selection,
+                         String[] selectionArgs) {
         //Match the URI
         final int match = sUriMatcher.match(uri);
 
@@ -208,12 +723,20 @@ public class PetProvider extends ContentProvider {
         //Otherwise, get the writable database to update
         SQLiteDatabase database = mDbHelper.getWritableDatabase();
 
-        // Perform the update on the database and get the number of rows affected
-        int rowsUpdated = database.update(PetEntry.TABLE_NAME, values, selection, selectionArgs);
+        // Perform the update on the database and get the number of rows affected. A single pet
+        // updated with the pet columns goes through a compiled statement.
+        int rowsUpdated;
+        if (sUriMatcher.match(uri) == PET_ID && PetStatements.canWrite(values)) {
+            rowsUpdated = getStatements(database).update(ContentUris.parseId(uri), values);
+        } else {
+            rowsUpdated = database.update(PetEntry.TABLE_NAME,
+                    mBreeds.toTableValues(database, values), selectByView(selection),
+                    selectionArgs);
+        }
 
         if(rowsUpdated != 0) {
             //Notify the listener of the change before the return statement
-            getContext().getContentResolver().notifyChange(PetEntry.CONTENT_URI, null);
+            notifyPetsChanged(getChangedUri(uri));
         }
         //Return the number of rows that were affected
         return rowsUpdated;
@@ -224,6 +747,21 @@ public class PetProvider extends ContentProvider {
      */
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
+        long start = System.nanoTime();
+        int rowsDeleted = 0;
+        try {
+            rowsDeleted = doDelete(uri, selection, selectionArgs);
+            return rowsDeleted;
+        } finally {
+            mMetrics.record(PetProviderMetrics.DELETE, getMetricsPath(uri), rowsDeleted,
+                    System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Do the work of {@link #delete}, which records the metrics around it.
+     */
+    private int doDelete(Uri uri, String selection, String[] selectionArgs) {
         //Get a writable database;
         SQLiteDatabase database = mDbHelper.getWritableDatabase();
         //Track the number of rows that were deleted
@@ -232,40 +770,421 @@ public class PetProvider extends ContentProvider {
         final int match = sUriMatcher.match(uri);
         switch (match){
             case PETS:
+                //With a limit, delete only the first rows that match, so one call never holds
+                //the write lock for long
+                String limit = uri.getQueryParameter(PetEntry.QUERY_PARAMETER_LIMIT);
+                if (limit != null) {
+                    //Check the batch size, a negative LIMIT would delete every row at once
+                    int batchSize;
+                    try {
+                        batchSize = Integer.parseInt(limit);
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Invalid batch size " + limit +
+                                " for " + uri);
+                    }
+                    if (batchSize <= 0) {
+                        throw new IllegalArgumentException("Invalid batch size " + limit +
+                                " for " + uri);
+                    }
+                    selection = PetEntry._ID + " IN (SELECT " + PetEntry._ID + " FROM " +
+                            PetEntry.VIEW_NAME +
+                            (TextUtils.isEmpty(selection) ? "" : " WHERE " + selection) +
+                            " ORDER BY " + PetEntry._ID + " LIMIT " + batchSize + ")";
+                } else {
+                    selection = selectByView(selection);
+                }
                 //Delete all rows that match the selection and selection args
                 rowsDeleted = database.delete(PetEntry.TABLE_NAME, selection, selectionArgs);
                 break;
             case PET_ID:
-                //Define the selection and selectionArgs
-                selection = PetEntry._ID + "=?";
-                selectionArgs = new String[] {
-                        String.valueOf(ContentUris.parseId(uri))
-                };
-                //Delete a single row given by the ID in the Uri
-                rowsDeleted = database.delete(PetEntry.TABLE_NAME, selection, selectionArgs);
+                //Delete a single row given by the ID in the Uri with the compiled statement
+                rowsDeleted = getStatements(database).delete(ContentUris.parseId(uri));
                 break;
             default:
                 throw new IllegalArgumentException ("Deletion us not supported for " + uri);
         }
-        //Notify the listener of the change before the return statement
+        //Notify the listener of the change before the return statement, unless the caller
+        //will do it once it is done
         if (rowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(PetEntry.CONTENT_URI, null);
+            if (uri.getBooleanQueryParameter(PetEntry.QUERY_PARAMETER_NOTIFY, true)) {
+                notifyPetsChanged(getChangedUri(uri));
+            } else {
+                mRowCache.invalidate(getChangedUri(uri));
+                refreshSnapshot();
+            }
         }
         //Return the number of rows deleted
         return rowsDeleted;
     }
 
 
+    /**
+     * Apply a list of operations atomically. All the operations run inside one transaction
+     * through the regular insert, update and delete paths, and the listeners are notified once
+     * at the end instead of once per operation. The transaction is only committed early at the
+     * operations marked with {@link ContentProviderOperation.Builder#withYieldAllowed}, which
+     * lets very large batches give other threads a chance to use the database.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        mBatchChanges.set(new HashSet<Uri>());
+        mBreeds.beginTransaction(database);
+        try {
+            final int count = operations.size();
+            ContentProviderResult[] results = new ContentProviderResult[count];
+            for (int i = 0; i < count; i++) {
+                ContentProviderOperation operation = operations.get(i);
+                if (i > 0 && operation.isYieldAllowed()) {
+                    database.yieldIfContendedSafely();
+                }
+                results[i] = operation.apply(this, results, i);
+            }
+            database.setTransactionSuccessful();
+            return results;
+        } finally {
+            database.endTransaction();
+            //A yield point may have committed part of a failed batch, so notify either way
+            Set<Uri> changedUris = mBatchChanges.get();
+            mBatchChanges.remove();
+            refreshSnapshot();
+            if (changedUris.contains(PetEntry.CONTENT_URI) ||
+                    changedUris.size() > MAX_BATCH_ROW_NOTIFICATIONS) {
+                //The table Uri also reaches every observer of a single pet
+                notifyPetsChanged(PetEntry.CONTENT_URI);
+            } else {
+                for (Uri changedUri : changedUris) {
+                    notifyPetsChanged(changedUri);
+                }
+            }
+        }
+    }
+
+    /**
+     * Return a selection of the pets table that picks the rows of the pets view matching the
+     * given selection, which may use any column of the view, such as the breed name.
+     */
+    private static String selectByView(String selection) {
+        if (TextUtils.isEmpty(selection)) {
+            return selection;
+        }
+        return PetEntry._ID + " IN (SELECT " + PetEntry._ID + " FROM " + PetEntry.VIEW_NAME +
+                " WHERE " + selection + ")";
+    }
+
+    /**
+     * Return the statement pool of the given writable database, compiling the statements for
+     * it again if the helper has reopened the database. The old pool is closed, and the
+     * statements other threads still hold from it are closed when they give them back.
+     */
+    private synchronized PetStatements getStatements(SQLiteDatabase database) {
+        if (mStatements == null || mStatements.getDatabase() != database) {
+            if (mStatements != null) {
+                mStatements.close();
+            }
+            mStatements = new PetStatements(database, mBreeds);
+        }
+        return mStatements;
+    }
+
+    /**
+     * Notify the listeners that pets have changed. The Uri is the one of the single pet that
+     * changed, so observers can tell which row it was, or {@link PetEntry#CONTENT_URI} when
+     * any number of rows may have changed. Inside applyBatch the notifications are held back
+     * and sent when the batch finishes.
+     */
+    private void notifyPetsChanged(Uri changedUri) {
+        //Forget the cached rows right away, and again when a batch ends and its changes commit
+        mRowCache.invalidate(changedUri);
+
+        Set<Uri> batchChanges = mBatchChanges.get();
+        if (batchChanges != null) {
+            batchChanges.add(changedUri);
+            return;
+        }
+        //Bring the snapshot up to date before the observers reload from it
+        refreshSnapshot();
+        getContext().getContentResolver().notifyChange(changedUri, null);
+    }
+
+    /**
+     * Apply the committed writes to the list snapshot. Inside applyBatch nothing has committed
+     * yet, the batch refreshes it when it ends.
+     */
+    private void refreshSnapshot() {
+        if (mBatchChanges.get() == null) {
+            mSnapshot.catchUp(mDbHelper.getReadableDatabase());
+        }
+    }
+
+    /**
+     * Return the Uri to notify when the rows of the given Uri change: the Uri of the pet for a
+     * single pet, and the table Uri for everything else.
+     */
+    private static Uri getChangedUri(Uri uri) {
+        if (sUriMatcher.match(uri) == PET_ID) {
+            return ContentUris.withAppendedId(PetEntry.CONTENT_URI, ContentUris.parseId(uri));
+        }
+        return PetEntry.CONTENT_URI;
+    }
+
+    /**
+     * Return the roster types the pets table can be streamed as.
+     */
+    @Override
+    public String[] getStreamTypes(Uri uri, String mimeTypeFilter) {
+        if (sUriMatcher.match(uri) != PETS) {
+            return null;
+        }
+        ArrayList<String> types = new ArrayList<>(2);
+        for (String type : ROSTER_TYPES) {
+            if (ClipDescription.compareMimeTypes(type, mimeTypeFilter)) {
+                types.add(type);
+            }
+        }
+        return types.isEmpty() ? null : types.toArray(new String[types.size()]);
+    }
+
+    /**
+     * Stream the whole pets table as a CSV or JSON roster through a pipe, written on a
+     * background thread while the caller reads it.
+     */
+    @Override
+    public AssetFileDescriptor openTypedAssetFile(Uri uri, String mimeTypeFilter, Bundle opts)
+            throws FileNotFoundException {
+        if (sUriMatcher.match(uri) == PETS) {
+            for (String type : ROSTER_TYPES) {
+                if (ClipDescription.compareMimeTypes(type, mimeTypeFilter)) {
+                    return new AssetFileDescriptor(openRoster(uri, type), 0,
+                            AssetFileDescriptor.UNKNOWN_LENGTH);
+                }
+            }
+        }
+        return super.openTypedAssetFile(uri, mimeTypeFilter, opts);
+    }
+
+    /**
+     * Open the pets table for reading as a CSV roster.
+     */
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if (sUriMatcher.match(uri) != PETS || !"r".equals(mode)) {
+            throw new FileNotFoundException("Cannot open " + uri + " in mode " + mode);
+        }
+        return openRoster(uri, PetEntry.ROSTER_CSV_TYPE);
+    }
+
+    /**
+     * Return the read end of a pipe the roster of the given type is written to.
+     */
+    private ParcelFileDescriptor openRoster(Uri uri, String mimeType)
+            throws FileNotFoundException {
+        return openPipeHelper(uri, mimeType, null, mDbHelper.getReadableDatabase(),
+                new PetRosterWriter());
+    }
+
+    /**
+     * Run one of the provider methods declared in {@link PetContract}.
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (PetContract.METHOD_GET_ROW_CACHE_STATS.equals(method)) {
+            Bundle stats = new Bundle();
+            stats.putInt(PetContract.KEY_HIT_COUNT, mRowCache.hitCount());
+            stats.putInt(PetContract.KEY_MISS_COUNT, mRowCache.missCount());
+            stats.putInt(PetContract.KEY_SIZE, mRowCache.size());
+            stats.putInt(PetContract.KEY_MAX_SIZE, mRowCache.maxSize());
+            return stats;
+        }
+        if (PetContract.METHOD_GET_SNAPSHOT_STATS.equals(method)) {
+            Bundle stats = new Bundle();
+            stats.putInt(PetContract.KEY_HIT_COUNT, mSnapshot.hitCount());
+            stats.putInt(PetContract.KEY_MISS_COUNT, mSnapshot.missCount());
+            stats.putInt(PetContract.KEY_SIZE, mSnapshot.size());
+            stats.putInt(PetContract.KEY_MAX_SIZE, mSnapshot.maxSize());
+            stats.putLong(PetContract.KEY_BYTES, mSnapshot.footprintBytes());
+            return stats;
+        }
+        if (PetContract.METHOD_RUN_MAINTENANCE.equals(method)) {
+            return runMaintenance(arg);
+        }
+        if (PetContract.METHOD_GET_SYNC_STATE.equals(method)) {
+            return PetChangeLog.getState(mDbHelper.getReadableDatabase());
+        }
+        if (PetContract.METHOD_ACKNOWLEDGE_CHANGES.equals(method)) {
+            long seq;
+            try {
+                seq = Long.parseLong(arg);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid change sequence " + arg);
+            }
+            if (seq < 0) {
+                throw new IllegalArgumentException("Invalid change sequence " + arg);
+            }
+            PetChangeLog.acknowledge(mDbHelper.getWritableDatabase(), seq);
+            return null;
+        }
+        if (PetContract.METHOD_APPLY_REMOTE_CHANGES.equals(method)) {
+            return applyRemoteChanges(extras);
+        }
+        if (PetContract.METHOD_PREWARM.equals(method)) {
+            return prewarm();
+        }
+        if (PetContract.METHOD_CANCEL_MAINTENANCE.equals(method)) {
+            cancelMaintenance(arg);
+            return null;
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * Open the database, which checks its version and runs the migrations on the first start,
+     * then read the breeds, so neither waits for the first query or write. Return how long it
+     * took.
+     */
+    private Bundle prewarm() {
+        long start = System.nanoTime();
+        mBreeds.load(mDbHelper.getWritableDatabase());
+        Bundle result = new Bundle();
+        result.putLong(PetContract.KEY_DURATION_MILLIS,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return result;
+    }
+
+    /**
+     * Apply the changes pulled from headquarters in the extras, then notify the listeners once.
+     * Every pet that is not deleted has to be valid like a new one. Return the number of
+     * changes applied and skipped.
+     */
+    private Bundle applyRemoteChanges(Bundle extras) {
+        ArrayList<ContentValues> changes = extras.getParcelableArrayList(PetContract.KEY_CHANGES);
+        if (changes == null) {
+            throw new IllegalArgumentException("Remote changes are missing");
+        }
+        for (ContentValues change : changes) {
+            Integer deleted = change.getAsInteger(ChangeEntry.COLUMN_DELETED);
+            if (deleted == null || deleted == 0) {
+                validateNewPet(change);
+            }
+        }
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        List<Long> ids = new ArrayList<>(changes.size());
+        int skipped = PetChangeLog.applyRemote(database, mBreeds, changes,
+                extras.getString(PetContract.KEY_PULL_TOKEN), ids);
+        if (!ids.isEmpty()) {
+            //The change tracking skips these, so the snapshot reads them by _id
+            mSnapshot.refreshRows(database, ids);
+            notifyPetsChanged(PetEntry.CONTENT_URI);
+        }
+        Bundle result = new Bundle();
+        result.putInt(PetContract.KEY_APPLIED_COUNT, ids.size());
+        result.putInt(PetContract.KEY_SKIPPED_COUNT, skipped);
+        return result;
+    }
+
+    /**
+     * Run the database maintenance named by the given token on the calling thread, unless it
+     * is already running or was cancelled before it got here.
+     */
+    private Bundle runMaintenance(String token) {
+        PetDbMaintenance maintenance;
+        synchronized (this) {
+            if (mMaintenance != null) {
+                return null;
+            }
+            if (token != null && token.equals(mCancelledMaintenanceToken)) {
+                Bundle result = new Bundle();
+                result.putBoolean(PetContract.KEY_CANCELLED, true);
+                return result;
+            }
+            mMaintenance = new PetDbMaintenance(getContext(), mDbHelper.getWritableDatabase());
+            mMaintenanceToken = token;
+            maintenance = mMaintenance;
+        }
+        try {
+            return maintenance.run();
+        } finally {
+            synchronized (this) {
+                mMaintenance = null;
+                mMaintenanceToken = null;
+            }
+        }
+    }
+
+    /**
+     * Stop the maintenance run named by the given token, or any run without a token. The
+     * token is kept, since the cancel can get here before the run it is meant for.
+     */
+    private synchronized void cancelMaintenance(String token) {
+        if (token != null) {
+            mCancelledMaintenanceToken = token;
+        }
+        if (mMaintenance != null && (token == null || token.equals(mMaintenanceToken))) {
+            mMaintenance.cancel();
+        }
+    }
+
+    /**
+     * Return the index of the path of the Uri in the metrics, or -1 if it matches none.
+     */
+    private static int getMetricsPath(Uri uri) {
+        int match = sUriMatcher.match(uri);
+        for (int i = 0; i < METRICS_CODES.length; i++) {
+            if (METRICS_CODES[i] == match) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Write the metrics, for dumpsys activity provider.
+     */
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        mMetrics.dump(writer);
+        writer.println(String.format(Locale.US,
+                "list snapshot: rows=%d max=%d bytes=%d hits=%d misses=%d", mSnapshot.size(),
+                mSnapshot.maxSize(), mSnapshot.footprintBytes(), mSnapshot.hitCount(),
+                mSnapshot.missCount()));
+        writer.println("breeds: cached=" + mBreeds.size());
+    }
+
     /**
      * Returns the MIME type of data for the content URI.
      */
     @Override
     public String getType(Uri uri) {
+        long start = System.nanoTime();
+        try {
+            return doGetType(uri);
+        } finally {
+            mMetrics.record(PetProviderMetrics.GET_TYPE, getMetricsPath(uri), 0,
+                    System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Do the work of {@link #getType}, which records the metrics around it.
+     */
+    private String doGetType(Uri uri) {
         //Match the uri
         final int match = sUriMatcher.match(uri);
         switch (match){
             case PETS:
                 return PetEntry.CONTENT_ITEM_TYPE;
+            case PET_SEARCH:
+                return PetEntry.CONTENT_LIST_TYPE;
+            case STATS:
+                return StatsEntry.CONTENT_LIST_TYPE;
+            case BREED_STATS:
+                return BreedStatsEntry.CONTENT_LIST_TYPE;
+            case METRICS:
+                return MetricsEntry.CONTENT_LIST_TYPE;
+            case CHANGES:
+                return ChangeEntry.CONTENT_LIST_TYPE;
             case PET_ID:
                 return PetEntry.CONTENT_ITEM_TYPE;
             default:
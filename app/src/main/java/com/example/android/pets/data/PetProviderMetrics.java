@@ -0,0 +1,215 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.MatrixCursor;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.MetricsEntry;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms of {@link PetProvider}, one set for every operation and Uri
+ * path. Recording is a handful of atomic adds with no lock and no allocation, so it is always on.
+ * Operations slower than the threshold are also logged.
+ *
+ * The rows of a query are only added once the caller counts them, through the cursor returned
+ * by {@link #countRowsOnRead}. Counting a SQLite cursor runs the whole query, which the
+ * provider would otherwise pay for before returning.
+ */
+final class PetProviderMetrics {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = PetProviderMetrics.class.getSimpleName();
+
+    /** Operations measured, in the order of {@link #OPERATION_NAMES} */
+    static final int QUERY = 0;
+    static final int INSERT = 1;
+    static final int BULK_INSERT = 2;
+    static final int UPDATE = 3;
+    static final int DELETE = 4;
+    static final int GET_TYPE = 5;
+
+    /** Rows of an operation that are added later, when they are known */
+    static final long ROWS_UNKNOWN = -1;
+
+    private static final String[] OPERATION_NAMES = {
+            "query", "insert", "bulkInsert", "update", "delete", "getType"
+    };
+
+    //Fields of each set of counters, the histogram buckets follow them
+    private static final int FIELD_COUNT = 0;
+    private static final int FIELD_ROWS = 1;
+    private static final int FIELD_TOTAL_NANOS = 2;
+    private static final int FIELD_MAX_NANOS = 3;
+    private static final int FIELD_SLOW = 4;
+    private static final int FIELD_BUCKETS = 5;
+    private static final int FIELDS =
+            FIELD_BUCKETS + MetricsEntry.HISTOGRAM_BOUNDS_MICROS.length + 1;
+
+    //Name of each path, the last one stands for the Uris no path matched
+    private final String[] mPathNames;
+    private final long mSlowNanos;
+    private final AtomicLongArray mCounters;
+
+    /**
+     * Create the metrics for paths 0 to pathNames.length - 1, logging operations slower than
+     * the given number of milliseconds.
+     */
+    PetProviderMetrics(String[] pathNames, long slowMillis) {
+        mPathNames = new String[pathNames.length + 1];
+        System.arraycopy(pathNames, 0, mPathNames, 0, pathNames.length);
+        mPathNames[pathNames.length] = "unknown";
+        mSlowNanos = slowMillis * 1000000L;
+        mCounters = new AtomicLongArray(OPERATION_NAMES.length * mPathNames.length * FIELDS);
+    }
+
+    /**
+     * Record an operation on the given path, or on a Uri no path matched when it is out of
+     * range, that returned or changed the given number of rows, or {@link #ROWS_UNKNOWN}.
+     */
+    void record(int operation, int path, long rows, long nanos) {
+        path = checkPath(path);
+        int base = (operation * mPathNames.length + path) * FIELDS;
+        mCounters.incrementAndGet(base + FIELD_COUNT);
+        if (rows != ROWS_UNKNOWN) {
+            mCounters.addAndGet(base + FIELD_ROWS, rows);
+        }
+        mCounters.addAndGet(base + FIELD_TOTAL_NANOS, nanos);
+        long max;
+        do {
+            max = mCounters.get(base + FIELD_MAX_NANOS);
+        } while (nanos > max && !mCounters.compareAndSet(base + FIELD_MAX_NANOS, max, nanos));
+        mCounters.incrementAndGet(base + FIELD_BUCKETS + bucketOf(nanos / 1000));
+
+        if (nanos >= mSlowNanos) {
+            mCounters.incrementAndGet(base + FIELD_SLOW);
+            Log.w(LOG_TAG, String.format(Locale.US, "Slow %s on %s: %.1f ms, %s rows",
+                    OPERATION_NAMES[operation], mPathNames[path], nanos / 1e6,
+                    rows == ROWS_UNKNOWN ? "?" : String.valueOf(rows)));
+        }
+    }
+
+    /**
+     * Return the cursor of a query recorded on the given path with {@link #ROWS_UNKNOWN}. The
+     * rows are added to the query the first time the caller counts them.
+     */
+    Cursor countRowsOnRead(Cursor cursor, int path) {
+        return cursor == null ? null : new RowCountingCursor(cursor, checkPath(path));
+    }
+
+    /**
+     * Return the given path, or the path of the Uris no path matched when it is out of range.
+     */
+    private int checkPath(int path) {
+        return path < 0 || path >= mPathNames.length - 1 ? mPathNames.length - 1 : path;
+    }
+
+    /**
+     * Return the histogram bucket of the given latency.
+     */
+    private static int bucketOf(long micros) {
+        long[] bounds = MetricsEntry.HISTOGRAM_BOUNDS_MICROS;
+        for (int i = 0; i < bounds.length; i++) {
+            if (micros < bounds[i]) {
+                return i;
+            }
+        }
+        return bounds.length;
+    }
+
+    /**
+     * Return a snapshot of every operation and path that ran at least once, with the columns
+     * of {@link MetricsEntry}.
+     */
+    Cursor snapshot() {
+        MatrixCursor cursor = new MatrixCursor(MetricsEntry.COLUMNS);
+        for (int operation = 0; operation < OPERATION_NAMES.length; operation++) {
+            for (int path = 0; path < mPathNames.length; path++) {
+                int base = (operation * mPathNames.length + path) * FIELDS;
+                long count = mCounters.get(base + FIELD_COUNT);
+                if (count == 0) {
+                    continue;
+                }
+                cursor.newRow()
+                        .add(OPERATION_NAMES[operation])
+                        .add(mPathNames[path])
+                        .add(count)
+                        .add(mCounters.get(base + FIELD_ROWS))
+                        .add(mCounters.get(base + FIELD_TOTAL_NANOS) / 1000)
+                        .add(mCounters.get(base + FIELD_MAX_NANOS) / 1000)
+                        .add(mCounters.get(base + FIELD_SLOW))
+                        .add(histogram(base));
+            }
+        }
+        return cursor;
+    }
+
+    /**
+     * Return the bucket counts of a histogram, separated by commas.
+     */
+    private String histogram(int base) {
+        StringBuilder histogram = new StringBuilder();
+        for (int i = FIELD_BUCKETS; i < FIELDS; i++) {
+            if (i > FIELD_BUCKETS) {
+                histogram.append(',');
+            }
+            histogram.append(mCounters.get(base + i));
+        }
+        return histogram.toString();
+    }
+
+    /**
+     * Cursor that adds its rows to the query metrics of its path when it is first counted.
+     */
+    private final class RowCountingCursor extends CursorWrapper {
+
+        private final int mPath;
+        private boolean mCounted;
+
+        RowCountingCursor(Cursor cursor, int path) {
+            super(cursor);
+            mPath = path;
+        }
+
+        @Override
+        public int getCount() {
+            int count = super.getCount();
+            if (!mCounted) {
+                mCounted = true;
+                mCounters.addAndGet((QUERY * mPathNames.length + mPath) * FIELDS + FIELD_ROWS,
+                        count);
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Write the snapshot as text, one line per operation and path, for dumpsys.
+     */
+    void dump(PrintWriter writer) {
+        writer.print("Latency buckets (us, upper bounds):");
+        for (long bound : MetricsEntry.HISTOGRAM_BOUNDS_MICROS) {
+            writer.print(' ');
+            writer.print(bound);
+        }
+        writer.println(" +inf");
+
+        Cursor cursor = snapshot();
+        try {
+            while (cursor.moveToNext()) {
+                long count = cursor.getLong(2);
+                writer.println(String.format(Locale.US,
+                        "%s %s: count=%d rows=%d avg=%dus max=%dus slow=%d buckets=[%s]",
+                        cursor.getString(0), cursor.getString(1), count, cursor.getLong(3),
+                        cursor.getLong(4) / count, cursor.getLong(5), cursor.getLong(6),
+                        cursor.getString(7)));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package com.example.android.pets.data;
+
+import android.content.ContentProvider;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.util.JsonWriter;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * Streams the whole pets table into a pipe as a CSV or JSON roster, for
+ * {@link PetProvider#openTypedAssetFile}. The table is read in pages of {@link #PAGE_SIZE} rows
+ * keyed on _id, so the memory used does not grow with the number of pets, and every page is a
+ * short read that never holds up the writers for long.
+ */
+final class PetRosterWriter implements ContentProvider.PipeDataWriter<SQLiteDatabase> {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = PetRosterWriter.class.getSimpleName();
+
+    //Rows read from the database at a time
+    private static final int PAGE_SIZE = 1000;
+
+    private static final String[] PROJECTION = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT
+    };
+
+    @Override
+    public void writeDataToPipe(ParcelFileDescriptor output, Uri uri, String mimeType,
+                                Bundle opts, SQLiteDatabase database) {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(output.getFileDescriptor()), Charset.forName("UTF-8")));
+        try {
+            if (PetEntry.ROSTER_JSON_TYPE.equals(mimeType)) {
+                writeJson(database, writer);
+            } else {
+                writeCsv(database, writer);
+            }
+            writer.flush();
+        } catch (IOException e) {
+            //The reader went away before the end of the roster
+            Log.w(LOG_TAG, "Roster export stopped", e);
+        } catch (RuntimeException e) {
+            //This runs on a thread of its own, where a failed query would end the app
+            Log.e(LOG_TAG, "Roster export failed", e);
+            closeWithError(output, e);
+        }
+    }
+
+    /**
+     * Close the pipe early because of the given error, which the reader gets where the
+     * platform can pass it on.
+     */
+    private static void closeWithError(ParcelFileDescriptor output, RuntimeException error) {
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                output.closeWithError(error.toString());
+            } else {
+                output.close();
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Could not close the roster pipe", e);
+        }
+    }
+
+    /**
+     * Write the header row and then every pet as one CSV line. An unknown gender or weight is
+     * an empty field.
+     */
+    private static void writeCsv(SQLiteDatabase database, Writer writer) throws IOException {
+        for (int i = 0; i < PetEntry.ROSTER_COLUMNS.length; i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            writer.write(PetEntry.ROSTER_COLUMNS[i]);
+        }
+        writer.write("\r\n");
+
+        long afterId = -1;
+        boolean more = true;
+        while (more) {
+            Cursor cursor = queryPage(database, afterId);
+            try {
+                while (cursor.moveToNext()) {
+                    afterId = cursor.getLong(0);
+                    writeCsvField(writer, cursor.getString(1));
+                    writer.write(',');
+                    writeCsvField(writer, cursor.getString(2));
+                    writer.write(',');
+                    if (!cursor.isNull(3)) {
+                        writer.write(Long.toString(cursor.getLong(3)));
+                    }
+                    writer.write(',');
+                    if (!cursor.isNull(4)) {
+                        writer.write(Long.toString(cursor.getLong(4)));
+                    }
+                    writer.write("\r\n");
+                }
+                //A short page is the last one
+                more = cursor.getCount() == PAGE_SIZE;
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Write the text as a CSV field, quoted only when it has to be. A null is an empty field.
+     */
+    private static void writeCsvField(Writer writer, String text) throws IOException {
+        if (text == null) {
+            return;
+        }
+        boolean quote = false;
+        for (int i = 0; i < text.length() && !quote; i++) {
+            char c = text.charAt(i);
+            quote = c == ',' || c == '"' || c == '\r' || c == '\n';
+        }
+        if (!quote) {
+            writer.write(text);
+            return;
+        }
+        writer.write('"');
+        writer.write(text.replace("\"", "\"\""));
+        writer.write('"');
+    }
+
+    /**
+     * Write every pet as one object of a JSON array. An unknown gender or weight is a null.
+     */
+    private static void writeJson(SQLiteDatabase database, Writer writer) throws IOException {
+        JsonWriter json = new JsonWriter(writer);
+        json.beginArray();
+        long afterId = -1;
+        boolean more = true;
+        while (more) {
+            Cursor cursor = queryPage(database, afterId);
+            try {
+                while (cursor.moveToNext()) {
+                    afterId = cursor.getLong(0);
+                    json.beginObject();
+                    json.name(PetEntry.COLUMN_PET_NAME).value(cursor.getString(1));
+                    json.name(PetEntry.COLUMN_PET_BREED).value(cursor.getString(2));
+                    json.name(PetEntry.COLUMN_PET_GENDER);
+                    if (cursor.isNull(3)) {
+                        json.nullValue();
+                    } else {
+                        json.value(cursor.getLong(3));
+                    }
+                    json.name(PetEntry.COLUMN_PET_WEIGHT);
+                    if (cursor.isNull(4)) {
+                        json.nullValue();
+                    } else {
+                        json.value(cursor.getLong(4));
+                    }
+                    json.endObject();
+                }
+                //A short page is the last one
+                more = cursor.getCount() == PAGE_SIZE;
+            } finally {
+                cursor.close();
+            }
+        }
+        json.endArray();
+        json.flush();
+    }
+
+    /**
+     * Return the page of pets that comes after the given _id.
+     */
+    private static Cursor queryPage(SQLiteDatabase database, long afterId) {
+        return database.query(PetEntry.VIEW_NAME, PROJECTION, PetEntry._ID + " > ?",
+                new String[]{String.valueOf(afterId)}, null, null, PetEntry._ID + " ASC",
+                String.valueOf(PAGE_SIZE));
+    }
+}
@@ -0,0 +1,140 @@
+package com.example.android.pets.data;
+
+import android.content.ContentUris;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.util.LruCache;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * Bounded least-recently-used cache of whole pet rows, keyed by _id, used by
+ * {@link PetProvider} to answer single pet queries without touching SQLite.
+ *
+ * A query that misses reads the row and then stores it, while a write may change the row in
+ * between. To never store a row older than the database, every invalidation bumps a generation
+ * number, and a row read before the last invalidation is not stored.
+ */
+final class PetRowCache {
+
+    /** Columns of a cached row, in order. */
+    static final String[] COLUMNS = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT
+    };
+
+    private final LruCache<Long, Object[]> mRows;
+
+    //Bumped on every invalidation
+    private long mGeneration;
+
+    PetRowCache(int maxRows) {
+        mRows = new LruCache<>(maxRows);
+    }
+
+    /**
+     * Return the generation to pass to {@link #put}. Call it before reading the row.
+     */
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Return the values of the cached row with the given _id, in the order of
+     * {@link #COLUMNS}, or null if the row is not cached.
+     */
+    Object[] get(long id) {
+        return mRows.get(id);
+    }
+
+    /**
+     * Store the given row, unless something was invalidated since the given generation.
+     */
+    synchronized void put(Object[] row, long generation) {
+        if (generation == mGeneration) {
+            mRows.put((Long) row[0], row);
+        }
+    }
+
+    /**
+     * Read the values of the row the cursor is on, in the order of {@link #COLUMNS}.
+     * The cursor must have all the columns.
+     */
+    static Object[] readRow(Cursor cursor) {
+        Object[] row = new Object[COLUMNS.length];
+        for (int i = 0; i < COLUMNS.length; i++) {
+            int index = cursor.getColumnIndexOrThrow(COLUMNS[i]);
+            switch (cursor.getType(index)) {
+                case Cursor.FIELD_TYPE_NULL:
+                    row[i] = null;
+                    break;
+                case Cursor.FIELD_TYPE_INTEGER:
+                    row[i] = cursor.getLong(index);
+                    break;
+                default:
+                    row[i] = cursor.getString(index);
+                    break;
+            }
+        }
+        return row;
+    }
+
+    /**
+     * Forget the rows a write to the given Uri may have changed: the pet for a single pet Uri,
+     * and every row for anything else.
+     */
+    synchronized void invalidate(Uri changedUri) {
+        mGeneration++;
+        if (changedUri.equals(PetEntry.CONTENT_URI)) {
+            mRows.evictAll();
+        } else {
+            mRows.remove(ContentUris.parseId(changedUri));
+        }
+    }
+
+    /**
+     * Return a cursor over the given cached row with only the columns of the projection,
+     * or all of them if the projection is null.
+     */
+    static Cursor toCursor(Object[] row, String[] projection) {
+        if (projection == null) {
+            projection = COLUMNS;
+        }
+        Object[] values = new Object[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            values[i] = row[indexOf(projection[i])];
+        }
+        MatrixCursor cursor = new MatrixCursor(projection, 1);
+        cursor.addRow(values);
+        return cursor;
+    }
+
+    private static int indexOf(String column) {
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (COLUMNS[i].equals(column)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown column " + column);
+    }
+
+    int hitCount() {
+        return mRows.hitCount();
+    }
+
+    int missCount() {
+        return mRows.missCount();
+    }
+
+    int size() {
+        return mRows.size();
+    }
+
+    int maxSize() {
+        return mRows.maxSize();
+    }
+}
@@ -0,0 +1,178 @@
+package com.example.android.pets.data;
+
+import android.database.AbstractCursor;
+import android.database.CharArrayBuffer;
+
+import com.example.android.pets.data.PetListSnapshot.Chunk;
+import com.example.android.pets.data.PetListSnapshot.Version;
+
+/**
+ * Cursor over a run of rows of a {@link PetListSnapshot} version. Nothing is copied when it is
+ * created, and moving only finds the chunk of the row, so the cost of a query does not depend
+ * on the number of rows. Names are copied straight from the packed chars by
+ * {@link #copyStringToBuffer}, and breeds are the shared Strings, so binding a row allocates
+ * nothing.
+ */
+final class PetSnapshotCursor extends AbstractCursor {
+
+    private final Version mVersion;
+    private final String[] mColumnNames;
+    //Column of the snapshot of each column of the cursor
+    private final int[] mColumns;
+    //Position in the version of the first row, and the number of rows
+    private final int mFirst;
+    private final int mCount;
+
+    //Chunk of the current row, its index and the row in it
+    private Chunk mChunk;
+    private int mChunkIndex = -1;
+    private int mRow;
+
+    PetSnapshotCursor(Version version, String[] projection, int first, int count) {
+        mVersion = version;
+        mColumnNames = projection;
+        mColumns = new int[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            mColumns[i] = PetListSnapshot.indexOf(projection[i]);
+        }
+        mFirst = first;
+        mCount = count;
+    }
+
+    @Override
+    public int getCount() {
+        return mCount;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mColumnNames;
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        int position = mFirst + newPosition;
+        //Lists move one row at a time, which mostly stays in the same chunk
+        if (mChunk == null || position < mVersion.starts[mChunkIndex] ||
+                position >= mVersion.starts[mChunkIndex] + mChunk.count) {
+            mChunkIndex = mVersion.chunkAt(position);
+            mChunk = mVersion.chunks[mChunkIndex];
+        }
+        mRow = position - mVersion.starts[mChunkIndex];
+        return true;
+    }
+
+    @Override
+    public String getString(int column) {
+        checkPosition();
+        switch (mColumns[column]) {
+            case PetListSnapshot.COLUMN_ID:
+                return Long.toString(mChunk.ids[mRow]);
+            case PetListSnapshot.COLUMN_NAME:
+                return mChunk.getName(mRow);
+            case PetListSnapshot.COLUMN_BREED:
+                return mChunk.breeds[mRow];
+            case PetListSnapshot.COLUMN_GENDER:
+                byte gender = mChunk.genders[mRow];
+                return gender == PetListSnapshot.NO_GENDER ? null : Integer.toString(gender);
+            default:
+                int weight = mChunk.weights[mRow];
+                return weight == PetListSnapshot.NO_WEIGHT ? null : Integer.toString(weight);
+        }
+    }
+
+    @Override
+    public void copyStringToBuffer(int column, CharArrayBuffer buffer) {
+        if (mColumns[column] != PetListSnapshot.COLUMN_NAME) {
+            super.copyStringToBuffer(column, buffer);
+            return;
+        }
+        checkPosition();
+        if (mChunk.isNameNull(mRow)) {
+            buffer.sizeCopied = 0;
+            return;
+        }
+        int start = mChunk.nameStart(mRow);
+        int length = mChunk.nameEnd(mRow) - start;
+        if (buffer.data == null || buffer.data.length < length) {
+            buffer.data = new char[length];
+        }
+        System.arraycopy(mChunk.names, start, buffer.data, 0, length);
+        buffer.sizeCopied = length;
+    }
+
+    @Override
+    public long getLong(int column) {
+        checkPosition();
+        switch (mColumns[column]) {
+            case PetListSnapshot.COLUMN_ID:
+                return mChunk.ids[mRow];
+            case PetListSnapshot.COLUMN_WEIGHT:
+                int weight = mChunk.weights[mRow];
+                return weight == PetListSnapshot.NO_WEIGHT ? 0 : weight;
+            case PetListSnapshot.COLUMN_GENDER:
+                byte gender = mChunk.genders[mRow];
+                return gender == PetListSnapshot.NO_GENDER ? 0 : gender;
+            default:
+                //Like SQLite, text that is not a number reads as 0
+                String value = getString(column);
+                try {
+                    return value == null ? 0 : Long.parseLong(value.trim());
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+        }
+    }
+
+    @Override
+    public int getInt(int column) {
+        return (int) getLong(column);
+    }
+
+    @Override
+    public short getShort(int column) {
+        return (short) getLong(column);
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return getLong(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        return getLong(column);
+    }
+
+    @Override
+    public int getType(int column) {
+        if (isNull(column)) {
+            return FIELD_TYPE_NULL;
+        }
+        switch (mColumns[column]) {
+            case PetListSnapshot.COLUMN_ID:
+            case PetListSnapshot.COLUMN_WEIGHT:
+            case PetListSnapshot.COLUMN_GENDER:
+                return FIELD_TYPE_INTEGER;
+            default:
+                return FIELD_TYPE_STRING;
+        }
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        checkPosition();
+        switch (mColumns[column]) {
+            case PetListSnapshot.COLUMN_ID:
+                return false;
+            case PetListSnapshot.COLUMN_NAME:
+                return mChunk.isNameNull(mRow);
+            case PetListSnapshot.COLUMN_BREED:
+                return mChunk.breeds[mRow] == null;
+            case PetListSnapshot.COLUMN_GENDER:
+                return mChunk.genders[mRow] == PetListSnapshot.NO_GENDER;
+            default:
+                return mChunk.weights[mRow] == PetListSnapshot.NO_WEIGHT;
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.ArrayDeque;
+
+/**
+ * Pool of compiled statements for the writes {@link PetProvider} does most: inserting a whole
+ * pet, updating a pet by _id, and deleting a pet by _id. The values are bound straight to the
+ * compiled statement, so these writes skip building and compiling the SQL every time. The
+ * breed is bound as its breed_id, looked up in the {@link PetBreeds} of the provider.
+ *
+ * A statement is taken out of the pool while it is used and put back afterwards, so threads
+ * never share one and no lock is held while SQLite works. Only values made of the four pet
+ * columns fit a pooled statement; callers fall back to {@link SQLiteDatabase} for anything else.
+ */
+final class PetStatements {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = PetStatements.class.getSimpleName();
+
+    //Columns a pooled statement can write, an update statement exists for every subset of them.
+    //The name is bound as text, the breed as its breed_id, the others as integers.
+    private static final String[] COLUMNS = {
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT
+    };
+
+    //Columns of the pets table the COLUMNS are written to
+    private static final String[] TABLE_COLUMNS = {
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_BREED_ID,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT
+    };
+
+    private static final int NAME_COLUMN = 0;
+    private static final int BREED_COLUMN = 1;
+
+    //Shapes of the pooled statements: insert, delete, and one update per set of columns
+    private static final int SHAPE_INSERT = 0;
+    private static final int SHAPE_DELETE = 1;
+    private static final int SHAPE_UPDATE = 2;
+
+    //Idle statements kept for each shape, one per thread writing at the same time is plenty
+    private static final int MAX_IDLE_STATEMENTS = 2;
+
+    private final SQLiteDatabase mDatabase;
+    private final PetBreeds mBreeds;
+
+    //Idle statements by shape, update shapes are SHAPE_UPDATE + the bit mask of their columns
+    private final ArrayDeque<SQLiteStatement>[] mIdle;
+
+    //Set once the pool is closed, statements released after that are closed instead of kept.
+    //Guarded by mIdle.
+    private boolean mClosed;
+
+    @SuppressWarnings("unchecked")
+    PetStatements(SQLiteDatabase database, PetBreeds breeds) {
+        mDatabase = database;
+        mBreeds = breeds;
+        mIdle = new ArrayDeque[SHAPE_UPDATE + (1 << COLUMNS.length)];
+        for (int i = 0; i < mIdle.length; i++) {
+            mIdle[i] = new ArrayDeque<>(MAX_IDLE_STATEMENTS);
+        }
+    }
+
+    /**
+     * Return the database the statements are compiled for.
+     */
+    SQLiteDatabase getDatabase() {
+        return mDatabase;
+    }
+
+    /**
+     * Return true if the values only hold pet columns, so they fit a pooled statement.
+     */
+    static boolean canWrite(ContentValues values) {
+        return values.size() != 0 && columnMask(values) != -1;
+    }
+
+    /**
+     * Insert a pet with the given values, which must fit a pooled statement. Return the _id of
+     * the new row, or -1 if the row could not be inserted.
+     */
+    long insert(ContentValues values) {
+        SQLiteStatement statement = acquire(SHAPE_INSERT);
+        try {
+            bindPet(statement, values);
+            return statement.executeInsert();
+        } catch (SQLException e) {
+            Log.e(LOG_TAG, "Error inserting " + values, e);
+            return -1;
+        } finally {
+            release(SHAPE_INSERT, statement);
+        }
+    }
+
+    /**
+     * Insert all the given pets with one statement. The caller runs the transaction.
+     * Return the number of rows inserted.
+     */
+    int insertAll(ContentValues[] valuesArray) {
+        SQLiteStatement statement = acquire(SHAPE_INSERT);
+        try {
+            int rowsInserted = 0;
+            for (ContentValues values : valuesArray) {
+                bindPet(statement, values);
+                if (statement.executeInsert() != -1) {
+                    rowsInserted++;
+                }
+            }
+            return rowsInserted;
+        } finally {
+            release(SHAPE_INSERT, statement);
+        }
+    }
+
+    /**
+     * Update the pet with the given _id, with values that fit a pooled statement.
+     * Return the number of rows updated.
+     */
+    int update(long id, ContentValues values) {
+        int mask = columnMask(values);
+        int shape = SHAPE_UPDATE + mask;
+        SQLiteStatement statement = acquire(shape);
+        try {
+            statement.clearBindings();
+            int index = 1;
+            for (int i = 0; i < COLUMNS.length; i++) {
+                if ((mask & (1 << i)) != 0) {
+                    bindColumn(statement, index++, i, values);
+                }
+            }
+            statement.bindLong(index, id);
+            return statement.executeUpdateDelete();
+        } finally {
+            release(shape, statement);
+        }
+    }
+
+    /**
+     * Delete the pet with the given _id. Return the number of rows deleted.
+     */
+    int delete(long id) {
+        SQLiteStatement statement = acquire(SHAPE_DELETE);
+        try {
+            statement.bindLong(1, id);
+            return statement.executeUpdateDelete();
+        } finally {
+            release(SHAPE_DELETE, statement);
+        }
+    }
+
+    /**
+     * Close the idle statements. Statements in use when the pool is closed are closed when
+     * they are released, and are never put back.
+     */
+    void close() {
+        synchronized (mIdle) {
+            mClosed = true;
+            for (ArrayDeque<SQLiteStatement> idle : mIdle) {
+                for (SQLiteStatement statement : idle) {
+                    statement.close();
+                }
+                idle.clear();
+            }
+        }
+    }
+
+    /**
+     * Take an idle statement of the given shape out of the pool, or compile a new one.
+     */
+    private SQLiteStatement acquire(int shape) {
+        synchronized (mIdle) {
+            SQLiteStatement statement = mIdle[shape].poll();
+            if (statement != null) {
+                return statement;
+            }
+        }
+        return mDatabase.compileStatement(buildSql(shape));
+    }
+
+    /**
+     * Put a statement back in the pool, or close it if the pool already has enough or has been
+     * closed.
+     */
+    private void release(int shape, SQLiteStatement statement) {
+        synchronized (mIdle) {
+            if (!mClosed && mIdle[shape].size() < MAX_IDLE_STATEMENTS) {
+                mIdle[shape].push(statement);
+                return;
+            }
+        }
+        statement.close();
+    }
+
+    /**
+     * Return the SQL of the statements of the given shape.
+     */
+    private static String buildSql(int shape) {
+        if (shape == SHAPE_INSERT) {
+            return "INSERT INTO " + PetEntry.TABLE_NAME + " (" +
+                    PetEntry.COLUMN_PET_NAME + ", " +
+                    PetEntry.COLUMN_BREED_ID + ", " +
+                    PetEntry.COLUMN_PET_GENDER + ", " +
+                    PetEntry.COLUMN_PET_WEIGHT + ") VALUES (?, ?, ?, ?)";
+        }
+        if (shape == SHAPE_DELETE) {
+            return "DELETE FROM " + PetEntry.TABLE_NAME + " WHERE " + PetEntry._ID + " = ?";
+        }
+
+        int mask = shape - SHAPE_UPDATE;
+        StringBuilder sql = new StringBuilder("UPDATE " + PetEntry.TABLE_NAME + " SET ");
+        String separator = "";
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if ((mask & (1 << i)) != 0) {
+                sql.append(separator).append(TABLE_COLUMNS[i]).append(" = ?");
+                separator = ", ";
+            }
+        }
+        return sql.append(" WHERE ").append(PetEntry._ID).append(" = ?").toString();
+    }
+
+    /**
+     * Return the bit mask of the pet columns in the values, or -1 if they hold anything else.
+     */
+    private static int columnMask(ContentValues values) {
+        int mask = 0;
+        int matched = 0;
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (values.containsKey(COLUMNS[i])) {
+                mask |= 1 << i;
+                matched++;
+            }
+        }
+        return matched == values.size() ? mask : -1;
+    }
+
+    /**
+     * Bind the name, breed, gender and weight of a pet to the arguments 1 to 4 of the statement.
+     */
+    private void bindPet(SQLiteStatement statement, ContentValues values) {
+        statement.clearBindings();
+        for (int i = 0; i < COLUMNS.length; i++) {
+            bindColumn(statement, i + 1, i, values);
+        }
+    }
+
+    /**
+     * Bind the value of the column number i to the given argument, with the type SQLite would
+     * store it as.
+     */
+    private void bindColumn(SQLiteStatement statement, int index, int i, ContentValues values) {
+        if (i == NAME_COLUMN) {
+            String text = values.getAsString(COLUMNS[i]);
+            if (text == null) {
+                statement.bindNull(index);
+            } else {
+                statement.bindString(index, text);
+            }
+        } else {
+            Long number = i == BREED_COLUMN ?
+                    mBreeds.getId(mDatabase, values.getAsString(COLUMNS[i])) :
+                    values.getAsLong(COLUMNS[i]);
+            if (number == null) {
+                statement.bindNull(index);
+            } else {
+                statement.bindLong(index, number);
+            }
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.example.android.pets.data;
+
+/**
+ * Storage settings that {@link PetDbHelper} applies every time it opens the shelter database.
+ * The profile used by the app is chosen with the storage_profile config resource, and the
+ * storage benchmark of the unit tests compares all of them.
+ */
+public enum PetStorageProfile {
+
+    /** SQLite defaults: rollback journal, no memory-mapped I/O. */
+    DEFAULT(false, 0, 0, 0, null),
+
+    /** Write-ahead log so readers never wait for writers, and memory-mapped reads. */
+    WAL(true, 32 * 1024 * 1024, 4096, -8 * 1024, "NORMAL"),
+
+    /** Write-ahead log with a larger page cache and map, for kiosks that keep the app open. */
+    KIOSK(true, 128 * 1024 * 1024, 4096, -32 * 1024, "NORMAL");
+
+    //Use the write-ahead log instead of the rollback journal
+    final boolean writeAheadLogging;
+    //Bytes of the database file read through memory-mapped I/O, 0 to keep it off
+    final long mmapSize;
+    //Page size of new database files in bytes, 0 for the SQLite default
+    final int pageSize;
+    //Page cache size, negative values are KiB as in PRAGMA cache_size, 0 for the default
+    final int cacheSize;
+    //Value for PRAGMA synchronous, null for the default
+    final String synchronous;
+
+    PetStorageProfile(boolean writeAheadLogging, long mmapSize, int pageSize, int cacheSize,
+                      String synchronous) {
+        this.writeAheadLogging = writeAheadLogging;
+        this.mmapSize = mmapSize;
+        this.pageSize = pageSize;
+        this.cacheSize = cacheSize;
+        this.synchronous = synchronous;
+    }
+}
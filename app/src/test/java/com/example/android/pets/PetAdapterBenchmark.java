@@ -0,0 +1,139 @@
+package com.example.android.pets;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.util.JsonWriter;
+import android.widget.FrameLayout;
+
+import com.example.android.pets.data.PetBenchmarks;
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetProvider;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.ParameterizedRobolectricTestRunner;
+import org.robolectric.Robolectric;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures what binding the rows of the catalog costs {@link PetCursorAdapter}, on a table of
+ * every size of {@link PetBenchmarks#TABLE_SIZES}. The rows are bound like during a scroll:
+ * first the rows at the top of the list one after the other, then rows spread over the whole
+ * list, which makes the cursor move its window around. The bytes allocated by each bind are
+ * counted too. The results of each size go to adapter_ROWS.json.
+ */
+@RunWith(ParameterizedRobolectricTestRunner.class)
+public class PetAdapterBenchmark {
+
+    //Rows bound for each measurement
+    private static final int BINDS = 10000;
+
+    @ParameterizedRobolectricTestRunner.Parameters(name = "rows={0}")
+    public static List<Object[]> tableSizes() {
+        List<Object[]> sizes = new ArrayList<>();
+        for (int rowCount : PetBenchmarks.TABLE_SIZES) {
+            sizes.add(new Object[]{rowCount});
+        }
+        return sizes;
+    }
+
+    private final int mRowCount;
+    private Context mContext;
+
+    public PetAdapterBenchmark(int rowCount) {
+        mRowCount = rowCount;
+    }
+
+    @Before
+    public void setUp() {
+        PetBenchmarks.assumeEnabled();
+        mContext = RuntimeEnvironment.application;
+    }
+
+    @Test
+    public void run() throws IOException {
+        PetProvider provider = Robolectric.setupContentProvider(PetProvider.class);
+        PetBenchmarks.fill(provider, mRowCount);
+        Cursor cursor = provider.query(PetEntry.CONTENT_URI, PetBenchmarks.LIST_PROJECTION,
+                null, null, PetEntry._ID + " ASC");
+        JsonWriter json = PetBenchmarks.openResults("adapter_" + mRowCount);
+        try {
+            //Read the keys like the loader does, then let the adapter take the cursor
+            PetPageCursor rows = new PetPageCursor(cursor, PetEntry._ID);
+            PetCursorAdapter adapter = new PetCursorAdapter(mContext,
+                    new PetCursorAdapter.OnPetClickListener() {
+                        @Override
+                        public void onPetClick(long id, ContentValues row) {
+                        }
+                    });
+            adapter.swapCursor(rows, rows.getIds(), rows.getContentHashes());
+            Robolectric.flushBackgroundThreadScheduler();
+            ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+
+            int binds = Math.min(BINDS, adapter.getItemCount());
+            int spreadStep = Math.max(1, adapter.getItemCount() / BINDS);
+            json.beginObject();
+            json.name("rows").value(mRowCount);
+            PetBenchmarks.writeRate(json, "bind_sequential", binds, bind(adapter, 1));
+            PetBenchmarks.writeRate(json, "bind_spread", binds, bind(adapter, spreadStep));
+            json.name("bind_sequential_bytes").value(
+                    perBind(countAllocatedBytes(adapter, 1), binds));
+            json.name("bind_spread_bytes").value(
+                    perBind(countAllocatedBytes(adapter, spreadStep), binds));
+            json.endObject();
+        } finally {
+            json.close();
+            cursor.close();
+        }
+    }
+
+    /**
+     * Bind up to {@link #BINDS} rows to one view holder, every step rows apart, and return how
+     * long it took in nanoseconds.
+     */
+    private long bind(PetCursorAdapter adapter, int step) {
+        PetCursorAdapter.PetViewHolder holder =
+                adapter.onCreateViewHolder(new FrameLayout(mContext), 0);
+        long start = System.nanoTime();
+        bindAll(adapter, holder, step);
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Bind the same rows as {@link #bind} and return the bytes the binds allocated. The rows
+     * are bound once before counting, so the buffers of the view holder have already grown to
+     * fit them.
+     */
+    private long countAllocatedBytes(PetCursorAdapter adapter, int step) {
+        PetCursorAdapter.PetViewHolder holder =
+                adapter.onCreateViewHolder(new FrameLayout(mContext), 0);
+        bindAll(adapter, holder, step);
+        //The allocation counters of android.os.Debug do nothing on the JVM
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        bindAll(adapter, holder, step);
+        return threads.getThreadAllocatedBytes(threadId) - before;
+    }
+
+    private static double perBind(long bytes, int binds) {
+        return binds == 0 ? 0 : Math.round(bytes * 100.0 / binds) / 100.0;
+    }
+
+    private static void bindAll(PetCursorAdapter adapter, PetCursorAdapter.PetViewHolder holder,
+                                int step) {
+        int count = adapter.getItemCount();
+        for (int i = 0, position = 0; i < BINDS && position < count; i++, position += step) {
+            adapter.onBindViewHolder(holder, position);
+        }
+    }
+}
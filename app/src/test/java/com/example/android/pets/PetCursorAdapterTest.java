@@ -0,0 +1,123 @@
+package com.example.android.pets;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.MatrixCursor;
+import android.widget.FrameLayout;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that {@link PetCursorAdapter} binds the rows of the catalog without allocating, once
+ * the view holder exists and its buffers have grown to fit the rows.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PetCursorAdapterTest {
+
+    private static final String[] COLUMNS = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED
+    };
+
+    private static final String[] BREEDS = {"Terrier", "Labrador", "Siamese", null, "Tabby"};
+
+    private static final int ROWS = 200;
+
+    //Times every row is bound while counting
+    private static final int PASSES = 50;
+
+    private Context mContext;
+    private PetCursorAdapter mAdapter;
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+
+        //Some names are longer than the buffers of a new view holder, and some breeds are
+        //unknown, so every branch of the bind is taken
+        MatrixCursor cursor = new MatrixCursor(COLUMNS);
+        for (int i = 0; i < ROWS; i++) {
+            String name = i % 7 == 0 ? "A pet with a name longer than the buffer " + i :
+                    "Pet " + i;
+            cursor.addRow(new Object[]{i + 1, name, BREEDS[i % BREEDS.length]});
+        }
+        PetPageCursor rows = new PetPageCursor(cursor, PetEntry._ID);
+        mAdapter = new PetCursorAdapter(mContext, new PetCursorAdapter.OnPetClickListener() {
+            @Override
+            public void onPetClick(long id, ContentValues row) {
+            }
+        });
+        mAdapter.swapCursor(rows, rows.getIds(), rows.getContentHashes());
+        Robolectric.flushBackgroundThreadScheduler();
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+    }
+
+    @Test
+    public void swapShowsTheRows() {
+        assertEquals(ROWS, mAdapter.getItemCount());
+        assertEquals(ROWS, mAdapter.getItemId(ROWS - 1));
+
+        PetCursorAdapter.PetViewHolder holder = newViewHolder();
+        mAdapter.onBindViewHolder(holder, 7);
+        assertEquals("A pet with a name longer than the buffer 7",
+                holder.nameTextView.getText().toString());
+        assertEquals("Siamese", holder.summaryTextView.getText().toString());
+        mAdapter.onBindViewHolder(holder, 3);
+        assertEquals("Pet 3", holder.nameTextView.getText().toString());
+        assertEquals(mContext.getString(R.string.unknown_breed),
+                holder.summaryTextView.getText().toString());
+    }
+
+    @Test
+    public void bindAllocatesNothingAfterWarmUp() {
+        PetCursorAdapter.PetViewHolder holder = newViewHolder();
+        //Grow the buffers of the holder and let the JVM load and link everything the bind uses
+        bindAll(holder, 2);
+
+        //The allocation counters of android.os.Debug do nothing on the JVM
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        threads.getThreadAllocatedBytes(threadId);
+
+        //What reading the counter twice costs, without binding anything
+        long start = threads.getThreadAllocatedBytes(threadId);
+        long overhead = threads.getThreadAllocatedBytes(threadId) - start;
+
+        start = threads.getThreadAllocatedBytes(threadId);
+        bindAll(holder, PASSES);
+        long allocated = threads.getThreadAllocatedBytes(threadId) - start - overhead;
+
+        //Any object allocated by a bind takes at least 16 bytes, so a bind that allocates
+        //shows up here even if the JVM allocated something once while counting
+        assertEquals("Bytes allocated per bind", 0, allocated / (ROWS * PASSES));
+    }
+
+    private PetCursorAdapter.PetViewHolder newViewHolder() {
+        return mAdapter.onCreateViewHolder(new FrameLayout(mContext), 0);
+    }
+
+    /**
+     * Bind every row to the holder, in order, the given number of times.
+     */
+    private void bindAll(PetCursorAdapter.PetViewHolder holder, int passes) {
+        for (int pass = 0; pass < passes; pass++) {
+            for (int position = 0; position < ROWS; position++) {
+                mAdapter.onBindViewHolder(holder, position);
+            }
+        }
+    }
+}
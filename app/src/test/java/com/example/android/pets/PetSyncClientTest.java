@@ -0,0 +1,332 @@
+package com.example.android.pets;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.os.Bundle;
+
+import com.example.android.pets.data.PetContract;
+import com.example.android.pets.data.PetContract.ChangeEntry;
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetProvider;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+import okio.GzipSink;
+import okio.GzipSource;
+import okio.Okio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Syncs the pets of {@link PetProvider} with a local stand-in for the headquarters server and
+ * checks what {@link PetSyncClient} sends, what it does with the answers, and how the provider
+ * applies the remote changes: by sync id, never over a pet changed here since the last push.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PetSyncClientTest {
+
+    private ContentResolver mResolver;
+    private MockWebServer mServer;
+    private PetSyncClient mClient;
+
+    @Before
+    public void setUp() throws IOException {
+        Robolectric.setupContentProvider(PetProvider.class);
+        mResolver = RuntimeEnvironment.application.getContentResolver();
+        mServer = new MockWebServer();
+        mServer.start();
+        mClient = new PetSyncClient(mResolver, mServer.url("/sync").toString());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.shutdown();
+    }
+
+    @Test
+    public void pushSendsGzippedChangesAndMovesThePushToken() throws Exception {
+        long totoId = insertPet("Toto", "Terrier", 7);
+        long rexId = insertPet("Rex", null, 12);
+        mResolver.delete(ContentUris.withAppendedId(PetEntry.CONTENT_URI, rexId), null, null);
+        String totoSyncId = readSyncId(totoId);
+
+        mServer.enqueue(new MockResponse().setBody("{\"ack\": 3}"));
+        mServer.enqueue(new MockResponse().setBody(
+                "{\"changes\": [], \"token\": \"t1\", \"more\": false}"));
+        PetSyncClient.Result result = mClient.sync();
+        assertEquals(2, result.pushed);
+        assertEquals(0, result.pulled);
+
+        RecordedRequest push = mServer.takeRequest();
+        assertEquals("POST", push.getMethod());
+        assertEquals("/sync/changes", push.getPath());
+        assertEquals("gzip", push.getHeader("Content-Encoding"));
+        JSONObject body = new JSONObject(gunzip(push.getBody()));
+        assertEquals(0, body.getLong("after"));
+        JSONArray changes = body.getJSONArray("changes");
+        assertEquals(2, changes.length());
+
+        JSONObject toto = changes.getJSONObject(0);
+        assertEquals(totoSyncId, toto.getString("sync_id"));
+        assertEquals(totoId, toto.getLong("id"));
+        assertEquals(1, toto.getLong("seq"));
+        assertFalse(toto.getBoolean("deleted"));
+        assertEquals("Toto", toto.getString("name"));
+        assertEquals("Terrier", toto.getString("breed"));
+        assertEquals(7, toto.getInt("weight"));
+
+        //Rex is gone, its tombstone keeps the sync id the pet was given
+        JSONObject rex = changes.getJSONObject(1);
+        assertEquals(rexId, rex.getLong("id"));
+        assertEquals(3, rex.getLong("seq"));
+        assertTrue(rex.getBoolean("deleted"));
+        assertEquals(32, rex.getString("sync_id").length());
+
+        //The first pull has no token yet
+        assertEquals("/sync/changes?limit=" + PetSyncClient.BATCH_SIZE,
+                mServer.takeRequest().getPath());
+        Bundle state = getSyncState();
+        assertEquals(3, state.getLong(PetContract.KEY_PUSH_TOKEN));
+        assertEquals("t1", state.getString(PetContract.KEY_PULL_TOKEN));
+
+        //Nothing is left to push, and the next pull starts from the stored token
+        mServer.enqueue(new MockResponse().setBody(
+                "{\"changes\": [], \"token\": \"t1\", \"more\": false}"));
+        assertEquals(0, mClient.sync().pushed);
+        assertEquals("/sync/changes?limit=" + PetSyncClient.BATCH_SIZE + "&after=t1",
+                mServer.takeRequest().getPath());
+        assertEquals(3, mServer.getRequestCount());
+    }
+
+    @Test
+    public void pushStopsWhenTheServerStoresLess() throws Exception {
+        insertPet("Toto", "Terrier", 7);
+        insertPet("Lady", null, null);
+
+        mServer.enqueue(new MockResponse().setBody("{\"ack\": 1}"));
+        try {
+            mClient.sync();
+            fail("Sync went on after a partial ack");
+        } catch (IOException e) {
+            //Expected, the acknowledged change is still recorded
+        }
+        assertEquals(1, getSyncState().getLong(PetContract.KEY_PUSH_TOKEN));
+        assertEquals(1, mServer.getRequestCount());
+
+        mServer.enqueue(new MockResponse().setResponseCode(500));
+        try {
+            mClient.sync();
+            fail("Sync went on after a server error");
+        } catch (IOException e) {
+            //Expected
+        }
+        assertEquals(1, getSyncState().getLong(PetContract.KEY_PUSH_TOKEN));
+    }
+
+    @Test
+    public void pullAppliesGzippedChangesBySyncId() throws Exception {
+        long totoId = insertPet("Toto", "Terrier", 7);
+        String totoSyncId = readSyncId(totoId);
+
+        //The new pet has the _id of Toto on the other device, which has to change nothing here
+        mServer.enqueue(new MockResponse().setBody("{\"ack\": 1}"));
+        mServer.enqueue(new MockResponse()
+                .setHeader("Content-Encoding", "gzip")
+                .setBody(gzip("{\"changes\": [" +
+                        "{\"sync_id\": \"" + totoSyncId + "\", \"id\": 9, \"deleted\": false, " +
+                        "\"name\": \"Toto II\", \"breed\": null, \"gender\": 1, " +
+                        "\"weight\": 8}, " +
+                        "{\"sync_id\": \"hq-1\", \"id\": " + totoId + ", \"deleted\": false, " +
+                        "\"name\": \"Garfield\", \"breed\": \"Tabby\", \"gender\": 1, " +
+                        "\"weight\": 14}, " +
+                        "{\"sync_id\": \"hq-gone\", \"deleted\": true}], " +
+                        "\"token\": \"t2\", \"more\": false}")));
+        PetSyncClient.Result result = mClient.sync();
+        assertEquals(1, result.pushed);
+        assertEquals(3, result.pulled);
+        assertEquals(0, result.skipped);
+
+        assertEquals("Toto II|null|8", readPet(totoId));
+        long garfieldId = readId("hq-1");
+        assertEquals(totoId + 1, garfieldId);
+        assertEquals("Garfield|Tabby|14", readPet(garfieldId));
+
+        //The remote changes are not local ones, so there is nothing to push back
+        Bundle state = getSyncState();
+        assertEquals(1, state.getLong(PetContract.KEY_LAST_CHANGE_SEQ));
+        assertEquals("t2", state.getString(PetContract.KEY_PULL_TOKEN));
+
+        //A remote delete finds the pet by its sync id too
+        mServer.enqueue(new MockResponse().setBody("{\"changes\": [" +
+                "{\"sync_id\": \"hq-1\", \"deleted\": true}], \"token\": \"t3\", " +
+                "\"more\": false}"));
+        assertEquals(1, mClient.sync().pulled);
+        assertNull(readPet(garfieldId));
+        assertEquals("Toto II|null|8", readPet(totoId));
+    }
+
+    @Test
+    public void remoteChangesSkipPetsChangedSinceThePush() {
+        long totoId = insertPet("Toto", "Terrier", 7);
+        long ladyId = insertPet("Lady", null, null);
+        mResolver.call(PetContract.BASE_CONTENT_URI, PetContract.METHOD_ACKNOWLEDGE_CHANGES,
+                "2", null);
+
+        //Toto changes here after the push, Lady does not
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_WEIGHT, 9);
+        mResolver.update(ContentUris.withAppendedId(PetEntry.CONTENT_URI, totoId), values,
+                null, null);
+
+        ArrayList<ContentValues> changes = new ArrayList<>();
+        changes.add(remoteChange(readSyncId(totoId), "Toto", 20));
+        changes.add(remoteChange(readSyncId(ladyId), "Lady", 3));
+        Bundle extras = new Bundle();
+        extras.putParcelableArrayList(PetContract.KEY_CHANGES, changes);
+        extras.putString(PetContract.KEY_PULL_TOKEN, "t1");
+        Bundle applied = mResolver.call(PetContract.BASE_CONTENT_URI,
+                PetContract.METHOD_APPLY_REMOTE_CHANGES, null, extras);
+        assertEquals(1, applied.getInt(PetContract.KEY_APPLIED_COUNT));
+        assertEquals(1, applied.getInt(PetContract.KEY_SKIPPED_COUNT));
+
+        assertEquals("Toto|Terrier|9", readPet(totoId));
+        assertEquals("Lady|null|3", readPet(ladyId));
+    }
+
+    @Test
+    public void remoteChangesSkipPetsDeletedSinceThePush() {
+        long totoId = insertPet("Toto", "Terrier", 7);
+        String totoSyncId = readSyncId(totoId);
+        mResolver.call(PetContract.BASE_CONTENT_URI, PetContract.METHOD_ACKNOWLEDGE_CHANGES,
+                "1", null);
+        mResolver.delete(ContentUris.withAppendedId(PetEntry.CONTENT_URI, totoId), null, null);
+
+        //The update must not bring Toto back, the tombstone deletes it at headquarters next
+        ArrayList<ContentValues> changes = new ArrayList<>();
+        changes.add(remoteChange(totoSyncId, "Toto", 20));
+        Bundle extras = new Bundle();
+        extras.putParcelableArrayList(PetContract.KEY_CHANGES, changes);
+        extras.putString(PetContract.KEY_PULL_TOKEN, "t1");
+        Bundle applied = mResolver.call(PetContract.BASE_CONTENT_URI,
+                PetContract.METHOD_APPLY_REMOTE_CHANGES, null, extras);
+        assertEquals(0, applied.getInt(PetContract.KEY_APPLIED_COUNT));
+        assertEquals(1, applied.getInt(PetContract.KEY_SKIPPED_COUNT));
+        assertNull(readString(PetEntry._ID, PetEntry.COLUMN_SYNC_ID + " = '" + totoSyncId + "'"));
+
+        //Once headquarters acknowledged the delete, the pet may come back from there
+        mResolver.call(PetContract.BASE_CONTENT_URI, PetContract.METHOD_ACKNOWLEDGE_CHANGES,
+                "2", null);
+        applied = mResolver.call(PetContract.BASE_CONTENT_URI,
+                PetContract.METHOD_APPLY_REMOTE_CHANGES, null, extras);
+        assertEquals(1, applied.getInt(PetContract.KEY_APPLIED_COUNT));
+        assertEquals("Toto|null|20", readPet(readId(totoSyncId)));
+    }
+
+    @Test
+    public void acknowledgeRejectsBadSequences() {
+        for (String arg : new String[]{null, "", "abc", "-1", "99999999999999999999"}) {
+            try {
+                mResolver.call(PetContract.BASE_CONTENT_URI,
+                        PetContract.METHOD_ACKNOWLEDGE_CHANGES, arg, null);
+                fail("Acknowledged " + arg);
+            } catch (IllegalArgumentException e) {
+                //Expected
+            }
+        }
+        assertEquals(0, getSyncState().getLong(PetContract.KEY_PUSH_TOKEN));
+    }
+
+    private long insertPet(String name, String breed, Integer weight) {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_NAME, name);
+        values.put(PetEntry.COLUMN_PET_BREED, breed);
+        values.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_MALE);
+        values.put(PetEntry.COLUMN_PET_WEIGHT, weight);
+        return ContentUris.parseId(mResolver.insert(PetEntry.CONTENT_URI, values));
+    }
+
+    private static ContentValues remoteChange(String syncId, String name, int weight) {
+        ContentValues change = new ContentValues();
+        change.put(ChangeEntry.COLUMN_SYNC_ID, syncId);
+        change.put(ChangeEntry.COLUMN_PET_NAME, name);
+        change.putNull(ChangeEntry.COLUMN_PET_BREED);
+        change.put(ChangeEntry.COLUMN_PET_GENDER, PetEntry.GENDER_FEMALE);
+        change.put(ChangeEntry.COLUMN_PET_WEIGHT, weight);
+        return change;
+    }
+
+    private Bundle getSyncState() {
+        return mResolver.call(PetContract.BASE_CONTENT_URI, PetContract.METHOD_GET_SYNC_STATE,
+                null, null);
+    }
+
+    private String readSyncId(long id) {
+        return readString(PetEntry.COLUMN_SYNC_ID, PetEntry._ID + " = " + id);
+    }
+
+    private long readId(String syncId) {
+        return Long.parseLong(readString(PetEntry._ID,
+                PetEntry.COLUMN_SYNC_ID + " = '" + syncId + "'"));
+    }
+
+    /**
+     * Return the name, breed and weight of the pet with the given _id, or null if it is gone.
+     */
+    private String readPet(long id) {
+        Cursor cursor = mResolver.query(ContentUris.withAppendedId(PetEntry.CONTENT_URI, id),
+                new String[]{PetEntry.COLUMN_PET_NAME, PetEntry.COLUMN_PET_BREED,
+                        PetEntry.COLUMN_PET_WEIGHT}, null, null, null);
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            return cursor.getString(0) + "|" + cursor.getString(1) + "|" + cursor.getString(2);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private String readString(String column, String selection) {
+        Cursor cursor = mResolver.query(PetEntry.CONTENT_URI, new String[]{column}, selection,
+                null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static Buffer gzip(String text) throws IOException {
+        Buffer gzipped = new Buffer();
+        GzipSink sink = new GzipSink(gzipped);
+        Buffer source = new Buffer().writeUtf8(text);
+        sink.write(source, source.size());
+        sink.close();
+        return gzipped;
+    }
+
+    private static String gunzip(Buffer body) throws IOException {
+        return Okio.buffer(new GzipSource(body)).readUtf8();
+    }
+}
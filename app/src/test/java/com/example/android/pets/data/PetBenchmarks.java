@@ -0,0 +1,155 @@
+package com.example.android.pets.data;
+
+import android.content.ContentProvider;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.util.JsonWriter;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.Assume;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.Arrays;
+
+/**
+ * What the benchmarks share. They are skipped unless the build runs them, with
+ * {@code ./gradlew testDebugUnitTest -Pbenchmarks}, and each one writes its results as a JSON
+ * file in app/build/benchmarks so runs can be compared by tools.
+ */
+public final class PetBenchmarks {
+
+    /** Table sizes the provider and adapter benchmarks run on */
+    public static final int[] TABLE_SIZES = {1000, 100000, 1000000};
+
+    /** Columns the catalog reads */
+    public static final String[] LIST_PROJECTION = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED
+    };
+
+    /** Breeds of the scratch pets */
+    static final String[] BREEDS = {"Terrier", "Labrador", "Siamese", "Beagle", "Tabby"};
+
+    //Rows inserted by each bulk insert of the fill
+    private static final int FILL_CHUNK = 1000;
+
+    private PetBenchmarks() {
+    }
+
+    /**
+     * Skip the calling test unless the build asked for the benchmarks.
+     */
+    public static void assumeEnabled() {
+        Assume.assumeTrue("Run with -Pbenchmarks", Boolean.getBoolean("shelter.benchmarks"));
+    }
+
+    /**
+     * Open the JSON results file of the benchmark with the given name, replacing the results
+     * of the last run.
+     */
+    public static JsonWriter openResults(String name) throws IOException {
+        File directory = new File(System.getProperty("shelter.benchmarks.dir", "benchmarks"));
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        JsonWriter json = new JsonWriter(new OutputStreamWriter(
+                new FileOutputStream(new File(directory, name + ".json")), "UTF-8"));
+        json.setIndent("  ");
+        return json;
+    }
+
+    /**
+     * Write the operations per second and microseconds per operation of a measurement, as
+     * the named object "operation": {"per_second": ..., "micros": ...}.
+     */
+    public static void writeRate(JsonWriter json, String operation, int count, long nanos)
+            throws IOException {
+        double perSecond = nanos == 0 ? 0 : count * 1e9 / nanos;
+        double micros = count == 0 ? 0 : nanos / 1e3 / count;
+        json.name(operation).beginObject()
+                .name("per_second").value(Math.round(perSecond))
+                .name("micros").value(Math.round(micros * 10) / 10.0)
+                .endObject();
+    }
+
+    /**
+     * Write the median, 99th percentile and maximum of the latencies in nanoseconds, as the
+     * named object "name": {"p50_ms": ..., "p99_ms": ..., "max_ms": ...}.
+     */
+    static void writeLatencies(JsonWriter json, String name, long[] latencies)
+            throws IOException {
+        json.name(name).beginObject()
+                .name("count").value(latencies.length)
+                .name("p50_ms").value(percentile(latencies, 50))
+                .name("p99_ms").value(percentile(latencies, 99))
+                .name("max_ms").value(percentile(latencies, 100))
+                .endObject();
+    }
+
+    /**
+     * Return the given percentile of the latencies in milliseconds.
+     */
+    static double percentile(long[] latencies, int percentile) {
+        if (latencies.length == 0) {
+            return 0;
+        }
+        long[] sorted = latencies.clone();
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return Math.round(sorted[Math.max(0, index)] / 1000.0) / 1000.0;
+    }
+
+    /**
+     * Fill the table of the provider with the given number of scratch pets through bulk
+     * inserts, like an import.
+     */
+    public static void fill(ContentProvider provider, int rowCount) {
+        ContentValues[] chunk = new ContentValues[FILL_CHUNK];
+        for (int done = 0; done < rowCount; done += FILL_CHUNK) {
+            int size = Math.min(FILL_CHUNK, rowCount - done);
+            if (size != chunk.length) {
+                chunk = new ContentValues[size];
+            }
+            for (int i = 0; i < size; i++) {
+                chunk[i] = pet(new ContentValues(), done + i);
+            }
+            provider.bulkInsert(PetEntry.CONTENT_URI, chunk);
+        }
+    }
+
+    /**
+     * Fill the values with the scratch pet number i and return them.
+     */
+    static ContentValues pet(ContentValues values, int i) {
+        values.clear();
+        values.put(PetEntry.COLUMN_PET_NAME, "Pet " + i);
+        values.put(PetEntry.COLUMN_PET_BREED, BREEDS[i % BREEDS.length]);
+        values.put(PetEntry.COLUMN_PET_GENDER, i % 3);
+        values.put(PetEntry.COLUMN_PET_WEIGHT, i % 60);
+        return values;
+    }
+
+    static Uri petUri(long id) {
+        return ContentUris.withAppendedId(PetEntry.CONTENT_URI, id);
+    }
+
+    /**
+     * Read every row of the cursor, like a list would, and close it.
+     */
+    static void readAll(Cursor cursor) {
+        try {
+            while (cursor.moveToNext()) {
+                cursor.getString(1);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.pets.data.PetContract.BreedEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+/**
+ * Checks when {@link PetBreeds} caches the breed_id of a name: right away outside a
+ * transaction, and inside one only once it commits.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PetBreedsTest {
+
+    private PetDbHelper mHelper;
+    private SQLiteDatabase mDb;
+    private PetBreeds mBreeds;
+
+    @Before
+    public void setUp() {
+        mHelper = new PetDbHelper(RuntimeEnvironment.application, PetStorageProfile.DEFAULT);
+        mDb = mHelper.getWritableDatabase();
+        mBreeds = new PetBreeds();
+    }
+
+    @After
+    public void tearDown() {
+        mHelper.close();
+    }
+
+    @Test
+    public void transactionReadsTheTableBeforeItBegins() {
+        long terrierId = addBreed("Terrier");
+
+        mBreeds.beginTransaction(mDb);
+        try {
+            assertEquals(1, mBreeds.size());
+            assertEquals(Long.valueOf(terrierId), mBreeds.getId(mDb, "Terrier"));
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    @Test
+    public void newBreedIsCachedOnceTheTransactionCommits() {
+        mBreeds.beginTransaction(mDb);
+        Long beagleId;
+        try {
+            beagleId = mBreeds.getId(mDb, "Beagle");
+            //The rows of a batch all get the id added by the first one
+            assertEquals(beagleId, mBreeds.getId(mDb, "Beagle"));
+            assertEquals(0, mBreeds.size());
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        assertEquals(1, mBreeds.size());
+        assertEquals(beagleId, mBreeds.getId(mDb, "Beagle"));
+        assertEquals(1, countBreeds());
+    }
+
+    @Test
+    public void newBreedIsForgottenWhenTheTransactionRollsBack() {
+        mBreeds.beginTransaction(mDb);
+        Long rolledBackId;
+        try {
+            rolledBackId = mBreeds.getId(mDb, "Beagle");
+        } finally {
+            mDb.endTransaction();
+        }
+        assertEquals(0, mBreeds.size());
+        assertEquals(0, countBreeds());
+
+        //The id of the rolled back breed goes to the next new one
+        long tabbyId = addBreed("Tabby");
+        assertEquals(rolledBackId, Long.valueOf(tabbyId));
+        Long beagleId = mBreeds.getId(mDb, "Beagle");
+        assertNotEquals(rolledBackId, beagleId);
+        assertEquals(2, countBreeds());
+    }
+
+    /**
+     * Add the breed straight to the table, behind the back of the breeds being tested.
+     */
+    private long addBreed(String name) {
+        ContentValues values = new ContentValues();
+        values.put(BreedEntry.COLUMN_BREED_NAME, name);
+        return mDb.insertOrThrow(BreedEntry.TABLE_NAME, null, values);
+    }
+
+    private long countBreeds() {
+        return DatabaseUtils.queryNumEntries(mDb, BreedEntry.TABLE_NAME);
+    }
+}
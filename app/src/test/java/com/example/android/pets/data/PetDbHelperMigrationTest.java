@@ -0,0 +1,306 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.pets.data.PetContract.BreedEntry;
+import com.example.android.pets.data.PetContract.BreedStatsEntry;
+import com.example.android.pets.data.PetContract.ChangeEntry;
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.StatsEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Builds the shelter database at every version that shipped, with pets in it, upgrades it to
+ * the current version through {@link PetDbHelper} and checks that it ends up with the same
+ * schema and the same data as a new install given the same pets.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PetDbHelperMigrationTest {
+
+    //The pets table as version 1 created it, before any migration
+    private static final String CREATE_VERSION_1 = "CREATE TABLE pets (" +
+            "_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+            "name TEXT, " +
+            "breed TEXT, " +
+            "gender INTEGER, " +
+            "weight INTEGER);";
+
+    //Pets stored before the upgrade: name, breed, gender and weight
+    private static final Object[][] PETS = {
+            {"Tommy", "Pomeranian", PetEntry.GENDER_MALE, 4},
+            {"Garfield", "Tabby", PetEntry.GENDER_MALE, 14},
+            {"Lady", null, PetEntry.GENDER_FEMALE, null},
+            {"Toto", "Terrier", PetEntry.GENDER_UNKNOWN, 7},
+            {"Binx", "Tabby", PetEntry.GENDER_FEMALE, 5},
+            {"Rex", "terrier", PetEntry.GENDER_MALE, 0}
+    };
+
+    //Indexes the catalog queries rely on
+    private static final String[] INDEXES = {
+            "pets_name_idx", "pets_breed_idx", "pets_gender_weight_idx", "pets_weight_idx",
+            "pets_gender_idx", "pets_gender_name_idx", "pets_change_seq_idx", "pets_sync_id_idx"
+    };
+
+    private Context mContext;
+    private final List<PetDbHelper> mHelpers = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        mContext = RuntimeEnvironment.application;
+    }
+
+    @After
+    public void tearDown() {
+        for (PetDbHelper helper : mHelpers) {
+            helper.close();
+        }
+    }
+
+    @Test
+    public void upgradeFromEveryVersionMatchesNewInstall() {
+        SQLiteDatabase fresh = open("fresh.db");
+        PetBreeds breeds = new PetBreeds();
+        for (Object[] pet : PETS) {
+            fresh.insert(PetEntry.TABLE_NAME, null, breeds.toTableValues(fresh, toValues(pet)));
+        }
+        List<String> schema = readSchema(fresh);
+        List<String> data = readData(fresh);
+        for (String index : INDEXES) {
+            assertTrue("Missing index " + index, schema.contains("index " + index));
+        }
+
+        for (int version = 1; version < PetDbHelper.DATABASE_VERSION; version++) {
+            String name = "version" + version + ".db";
+            createAtVersion(name, version);
+
+            SQLiteDatabase upgraded = open(name);
+            String message = " after the upgrade from version " + version;
+            assertEquals("Version" + message, PetDbHelper.DATABASE_VERSION,
+                    upgraded.getVersion());
+            assertEquals("Schema" + message, schema, readSchema(upgraded));
+            assertEquals("Data" + message, data, readData(upgraded));
+            assertEquals("Integrity" + message, "ok",
+                    readRows(upgraded, "PRAGMA integrity_check").get(0));
+            assertTrue("Foreign keys" + message,
+                    readRows(upgraded, "PRAGMA foreign_key_check").isEmpty());
+        }
+    }
+
+    @Test
+    public void upgradeKeepsWorkingTriggers() {
+        createAtVersion("triggers.db", 1);
+        SQLiteDatabase db = open("triggers.db");
+        PetBreeds breeds = new PetBreeds();
+
+        ContentValues values = toValues(new Object[]{"Milo", "Beagle", PetEntry.GENDER_MALE, 9});
+        long id = db.insert(PetEntry.TABLE_NAME, null, breeds.toTableValues(db, values));
+        assertEquals(PETS.length + 1, id);
+
+        //The new pet is searchable, counted and numbered as a change
+        assertEquals(String.valueOf(id), readRows(db, "SELECT docid FROM " +
+                PetEntry.FTS_TABLE_NAME + " WHERE " + PetEntry.FTS_TABLE_NAME +
+                " MATCH 'beagle'").get(0));
+        assertEquals("1", readRows(db, "SELECT " + BreedStatsEntry.COLUMN_PET_COUNT + " FROM " +
+                BreedStatsEntry.TABLE_NAME + " WHERE " + BreedStatsEntry.COLUMN_BREED +
+                " = 'Beagle'").get(0));
+        assertEquals(String.valueOf(PETS.length + 1), readRows(db, "SELECT " +
+                PetEntry.COLUMN_CHANGE_SEQ + " FROM " + PetEntry.TABLE_NAME + " WHERE " +
+                PetEntry._ID + " = " + id).get(0));
+
+        //Deleting it leaves a tombstone and takes it out of the statistics
+        db.delete(PetEntry.TABLE_NAME, PetEntry._ID + " = " + id, null);
+        assertEquals(String.valueOf(id), readRows(db, "SELECT " + ChangeEntry._ID + " FROM " +
+                ChangeEntry.TOMBSTONE_TABLE_NAME).get(0));
+        assertTrue(readRows(db, "SELECT * FROM " + BreedStatsEntry.TABLE_NAME + " WHERE " +
+                BreedStatsEntry.COLUMN_BREED + " = 'Beagle'").isEmpty());
+    }
+
+    @Test
+    public void upgradeStoresEveryBreedOnce() {
+        for (int version = 1; version < PetDbHelper.DATABASE_VERSION; version++) {
+            String name = "breeds" + version + ".db";
+            createAtVersion(name, version);
+            SQLiteDatabase db = open(name);
+            String message = " after the upgrade from version " + version;
+
+            //Every breed name is a row of its own, names differing in case too
+            assertEquals("Breeds" + message, "4", readRows(db, "SELECT COUNT(*) FROM " +
+                    BreedEntry.TABLE_NAME).get(0));
+            assertEquals("Pets with a breed" + message, "5", readRows(db, "SELECT COUNT(*) " +
+                    "FROM " + PetEntry.TABLE_NAME + " WHERE " + PetEntry.COLUMN_BREED_ID +
+                    " IN (SELECT " + BreedEntry._ID + " FROM " + BreedEntry.TABLE_NAME + ")")
+                    .get(0));
+
+            //The provider finds the migrated breeds, and a new pet reuses their breed_id
+            PetBreeds breeds = new PetBreeds();
+            Long tabbyId = breeds.getId(db, "Tabby");
+            assertEquals("Tabby" + message, String.valueOf(tabbyId), readRows(db, "SELECT " +
+                    PetEntry.COLUMN_BREED_ID + " FROM " + PetEntry.TABLE_NAME + " WHERE " +
+                    PetEntry.COLUMN_PET_NAME + " = 'Garfield'").get(0));
+            breeds.beginTransaction(db);
+            try {
+                db.insert(PetEntry.TABLE_NAME, null, breeds.toTableValues(db,
+                        toValues(new Object[]{"Tiger", "Tabby", PetEntry.GENDER_MALE, 6})));
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            assertEquals("Breeds after an insert" + message, "4", readRows(db,
+                    "SELECT COUNT(*) FROM " + BreedEntry.TABLE_NAME).get(0));
+
+            //The rebuilt pets table kept its _id counter
+            assertEquals("_id counter" + message, String.valueOf(PETS.length + 1),
+                    readRows(db, "SELECT seq FROM sqlite_sequence WHERE name = '" +
+                            PetEntry.TABLE_NAME + "'").get(0));
+        }
+    }
+
+    @Test
+    public void upgradeGivesEveryPetASyncId() {
+        for (int version = 1; version < PetDbHelper.DATABASE_VERSION; version++) {
+            String name = "sync" + version + ".db";
+            createAtVersion(name, version);
+            SQLiteDatabase db = open(name);
+            String message = " after the upgrade from version " + version;
+
+            //The pets headquarters may already know keep their _id as sync id
+            assertEquals("Sync ids" + message, String.valueOf(PETS.length), readRows(db,
+                    "SELECT COUNT(*) FROM " + PetEntry.TABLE_NAME + " WHERE " +
+                    PetEntry.COLUMN_SYNC_ID + " = CAST(" + PetEntry._ID + " AS TEXT)").get(0));
+
+            //A new pet gets a random one, and takes it to its tombstone
+            ContentValues values = toValues(new Object[]{"Milo", "Beagle",
+                    PetEntry.GENDER_MALE, 9});
+            long id = db.insert(PetEntry.TABLE_NAME, null,
+                    new PetBreeds().toTableValues(db, values));
+            String syncId = readRows(db, "SELECT " + PetEntry.COLUMN_SYNC_ID + " FROM " +
+                    PetEntry.VIEW_NAME + " WHERE " + PetEntry._ID + " = " + id).get(0);
+            assertEquals("New sync id" + message, 32, syncId.length());
+            db.delete(PetEntry.TABLE_NAME, PetEntry._ID + " = " + id, null);
+            assertEquals("Tombstone" + message, syncId, readRows(db, "SELECT " +
+                    ChangeEntry.COLUMN_SYNC_ID + " FROM " + ChangeEntry.TOMBSTONE_TABLE_NAME +
+                    " WHERE " + ChangeEntry._ID + " = " + id).get(0));
+        }
+    }
+
+    /**
+     * Create a database file with the given name at the given version, the way that version
+     * of the app left it, with {@link #PETS} stored through the triggers of that version.
+     */
+    private void createAtVersion(String name, int version) {
+        mContext.deleteDatabase(name);
+        SQLiteDatabase db = mContext.openOrCreateDatabase(name, Context.MODE_PRIVATE, null);
+        try {
+            db.execSQL(CREATE_VERSION_1);
+            PetDbHelper.migrate(db, 1, version);
+            //Since version 7 the pets table holds the breed_id instead of the breed name
+            PetBreeds breeds = new PetBreeds();
+            for (Object[] pet : PETS) {
+                ContentValues values = toValues(pet);
+                db.insertOrThrow(PetEntry.TABLE_NAME, null,
+                        version >= 7 ? breeds.toTableValues(db, values) : values);
+            }
+            db.setVersion(version);
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * Open the database file with the given name through the helper, which creates or
+     * upgrades it.
+     */
+    private SQLiteDatabase open(String name) {
+        PetDbHelper helper = new PetDbHelper(mContext, name, PetStorageProfile.DEFAULT);
+        mHelpers.add(helper);
+        return helper.getWritableDatabase();
+    }
+
+    private static ContentValues toValues(Object[] pet) {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_NAME, (String) pet[0]);
+        values.put(PetEntry.COLUMN_PET_BREED, (String) pet[1]);
+        values.put(PetEntry.COLUMN_PET_GENDER, (Integer) pet[2]);
+        values.put(PetEntry.COLUMN_PET_WEIGHT, (Integer) pet[3]);
+        return values;
+    }
+
+    /**
+     * Return every table, index, view and trigger of the database with its SQL, by name.
+     */
+    private static List<String> readSchema(SQLiteDatabase db) {
+        List<String> schema = new ArrayList<>();
+        Cursor cursor = db.rawQuery("SELECT type, name, sql FROM sqlite_master " +
+                "WHERE name NOT LIKE 'sqlite_autoindex_%' ORDER BY name", null);
+        try {
+            while (cursor.moveToNext()) {
+                schema.add(cursor.getString(0) + " " + cursor.getString(1));
+                schema.add(cursor.getString(2));
+            }
+        } finally {
+            cursor.close();
+        }
+        return schema;
+    }
+
+    /**
+     * Return the pets as the provider reads them, with everything kept in step with them: the
+     * breeds, the search index, the statistics, the sync state and the _id counter.
+     */
+    private static List<String> readData(SQLiteDatabase db) {
+        List<String> data = new ArrayList<>();
+        data.addAll(readRows(db, "SELECT " + PetEntry._ID + ", " + PetEntry.COLUMN_PET_NAME +
+                ", " + PetEntry.COLUMN_PET_BREED + ", " + PetEntry.COLUMN_PET_GENDER + ", " +
+                PetEntry.COLUMN_PET_WEIGHT + ", " + PetEntry.COLUMN_CHANGE_SEQ + " FROM " +
+                PetEntry.VIEW_NAME + " ORDER BY " + PetEntry._ID));
+        data.addAll(readRows(db, "SELECT " + BreedEntry.COLUMN_BREED_NAME + " FROM " +
+                BreedEntry.TABLE_NAME + " ORDER BY " + BreedEntry.COLUMN_BREED_NAME));
+        data.addAll(readRows(db, "SELECT docid, " + PetEntry.COLUMN_PET_NAME + ", " +
+                PetEntry.COLUMN_PET_BREED + " FROM " + PetEntry.FTS_TABLE_NAME +
+                " ORDER BY docid"));
+        data.addAll(readRows(db, "SELECT * FROM " + StatsEntry.VIEW_NAME));
+        data.addAll(readRows(db, "SELECT * FROM " + BreedStatsEntry.TABLE_NAME +
+                " ORDER BY " + BreedStatsEntry.COLUMN_BREED));
+        data.addAll(readRows(db, "SELECT * FROM " + ChangeEntry.STATE_TABLE_NAME +
+                " ORDER BY " + PetDbHelper.SYNC_STATE_KEY));
+        data.addAll(readRows(db, "SELECT * FROM " + ChangeEntry.TOMBSTONE_TABLE_NAME));
+        data.addAll(readRows(db, "SELECT seq FROM sqlite_sequence WHERE name = '" +
+                PetEntry.TABLE_NAME + "'"));
+        return data;
+    }
+
+    /**
+     * Run the query and return every row as one line of its values.
+     */
+    private static List<String> readRows(SQLiteDatabase db, String sql) {
+        List<String> rows = new ArrayList<>();
+        Cursor cursor = db.rawQuery(sql, null);
+        try {
+            while (cursor.moveToNext()) {
+                StringBuilder row = new StringBuilder();
+                for (int i = 0; i < cursor.getColumnCount(); i++) {
+                    row.append(i == 0 ? "" : "|").append(cursor.getString(i));
+                }
+                rows.add(row.toString());
+            }
+        } finally {
+            cursor.close();
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,40 @@
+package com.example.android.pets.data;
+
+import android.os.Bundle;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a maintenance run of {@link PetProvider} is stopped by a cancel with its token,
+ * also when the cancel gets to the provider before the run does.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PetDbMaintenanceTest {
+
+    private PetProvider mProvider;
+
+    @Before
+    public void setUp() {
+        mProvider = Robolectric.setupContentProvider(PetProvider.class);
+    }
+
+    @Test
+    public void cancelBeforeTheRunKeepsItFromStarting() {
+        mProvider.call(PetContract.METHOD_CANCEL_MAINTENANCE, "first", null);
+        Bundle result = mProvider.call(PetContract.METHOD_RUN_MAINTENANCE, "first", null);
+        assertTrue(result.getBoolean(PetContract.KEY_CANCELLED));
+        assertFalse(result.containsKey(PetContract.KEY_INTEGRITY_OK));
+
+        //The next run has a token of its own and goes ahead
+        result = mProvider.call(PetContract.METHOD_RUN_MAINTENANCE, "second", null);
+        assertFalse(result.getBoolean(PetContract.KEY_CANCELLED));
+        assertTrue(result.getBoolean(PetContract.KEY_INTEGRITY_OK));
+    }
+}
@@ -0,0 +1,214 @@
+package com.example.android.pets.data;
+
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Applies random edits to {@link PetListSnapshot} versions and checks every version against a
+ * sorted map of the same pets, through {@link PetSnapshotCursor}: the rows and all their
+ * columns, the positions found by _id and the chunks. The versions published before are
+ * checked again at the end, since every edit has to leave them as they were.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PetListSnapshotTest {
+
+    //Random edits applied after the first version
+    private static final int ROUNDS = 300;
+
+    //Pets of the first version
+    private static final int FIRST_ROWS = 3000;
+
+    //Highest _id edited at random, a bit more than the pets so some edits insert
+    private static final int MAX_ID = 4000;
+
+    private static final String[] PROJECTION = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_WEIGHT,
+            PetEntry.COLUMN_PET_GENDER
+    };
+
+    private final Random mRandom = new Random(7);
+
+    @Test
+    public void randomEditsMatchTheModel() {
+        PetListSnapshot snapshot = new PetListSnapshot(1000000);
+        TreeMap<Long, Pet> model = new TreeMap<>();
+        PetListSnapshot.Edit edit = snapshot.new Edit(0);
+        for (long id = 1; id <= FIRST_ROWS; id++) {
+            put(edit, model, id);
+        }
+        PetListSnapshot.Version version = edit.toVersion();
+        check(version, model);
+
+        List<PetListSnapshot.Version> versions = new ArrayList<>();
+        List<TreeMap<Long, Pet>> models = new ArrayList<>();
+        for (int round = 0; round < ROUNDS; round++) {
+            versions.add(version);
+            models.add(new TreeMap<>(model));
+
+            //Mostly a few edits like the editor makes, sometimes a large batch like an import
+            edit = snapshot.new Edit(version);
+            int edits = 1 + mRandom.nextInt(mRandom.nextInt(10) == 0 ? 2000 : 20);
+            for (int i = 0; i < edits; i++) {
+                int kind = mRandom.nextInt(10);
+                long id;
+                if (kind < 4) {
+                    //New pets get an _id after the last one, with the odd gap
+                    id = model.isEmpty() ? 1 : model.lastKey() + 1 + mRandom.nextInt(3);
+                } else {
+                    id = 1 + mRandom.nextInt(MAX_ID);
+                }
+                if (kind >= 8) {
+                    edit.remove(id);
+                    model.remove(id);
+                } else {
+                    put(edit, model, id);
+                }
+            }
+            version = edit.toVersion();
+            check(version, model);
+        }
+
+        for (int i = 0; i < versions.size(); i++) {
+            check(versions.get(i), models.get(i));
+        }
+    }
+
+    @Test
+    public void removingEveryPetLeavesNoChunks() {
+        PetListSnapshot snapshot = new PetListSnapshot(1000000);
+        TreeMap<Long, Pet> model = new TreeMap<>();
+        PetListSnapshot.Edit edit = snapshot.new Edit(0);
+        for (long id = 1; id <= PetListSnapshot.CHUNK_SIZE * 3; id++) {
+            put(edit, model, id);
+        }
+        PetListSnapshot.Version full = edit.toVersion();
+
+        edit = snapshot.new Edit(full);
+        for (long id = 1; id <= PetListSnapshot.CHUNK_SIZE * 3; id++) {
+            edit.remove(id);
+        }
+        PetListSnapshot.Version empty = edit.toVersion();
+        assertEquals(0, empty.count);
+        assertEquals(0, empty.chunks.length);
+        assertEquals(0, empty.positionAfter(1));
+        check(full, model);
+    }
+
+    /**
+     * Put a random pet with the given _id in the edit and in the model.
+     */
+    private void put(PetListSnapshot.Edit edit, TreeMap<Long, Pet> model, long id) {
+        Pet pet = new Pet(mRandom, id);
+        edit.put(id, pet.name, pet.breed, pet.gender, pet.weight);
+        model.put(id, pet);
+    }
+
+    /**
+     * Check that the version holds the pets of the model, in _id order.
+     */
+    private void check(PetListSnapshot.Version version, TreeMap<Long, Pet> model) {
+        assertEquals(model.size(), version.count);
+
+        int rows = 0;
+        for (PetListSnapshot.Chunk chunk : version.chunks) {
+            assertTrue("Empty chunk", chunk.count > 0);
+            assertTrue("Chunk not shared", chunk.shared);
+            rows += chunk.count;
+        }
+        assertEquals(version.count, rows);
+
+        Cursor cursor = new PetSnapshotCursor(version, PROJECTION, 0, version.count);
+        //Smaller than most names, so copying grows it
+        CharArrayBuffer buffer = new CharArrayBuffer(4);
+        int position = 0;
+        for (Map.Entry<Long, Pet> entry : model.entrySet()) {
+            String at = " at " + position;
+            Pet pet = entry.getValue();
+            assertTrue(cursor.moveToPosition(position));
+            assertEquals("_id" + at, (long) entry.getKey(), cursor.getLong(0));
+
+            assertEquals("Name" + at, pet.name, cursor.getString(1));
+            assertEquals("Null name" + at, pet.name == null, cursor.isNull(1));
+            cursor.copyStringToBuffer(1, buffer);
+            assertEquals("Copied name" + at, pet.name == null ? "" : pet.name,
+                    new String(buffer.data, 0, buffer.sizeCopied));
+
+            assertEquals("Breed" + at, pet.breed, cursor.getString(2));
+
+            boolean noWeight = pet.weight == PetListSnapshot.NO_WEIGHT;
+            assertEquals("Null weight" + at, noWeight, cursor.isNull(3));
+            if (!noWeight) {
+                assertEquals("Weight" + at, pet.weight, cursor.getInt(3));
+            }
+
+            boolean noGender = pet.gender == PetListSnapshot.NO_GENDER;
+            assertEquals("Null gender" + at, noGender, cursor.isNull(4));
+            assertEquals("Gender type" + at,
+                    noGender ? Cursor.FIELD_TYPE_NULL : Cursor.FIELD_TYPE_INTEGER,
+                    cursor.getType(4));
+            if (!noGender) {
+                assertEquals("Gender" + at, pet.gender, cursor.getInt(4));
+                assertEquals("Gender string" + at, String.valueOf(pet.gender),
+                        cursor.getString(4));
+            }
+            position++;
+        }
+        assertFalse(cursor.moveToPosition(position));
+        cursor.close();
+
+        for (int i = 0; i < 20; i++) {
+            long id = mRandom.nextInt(MAX_ID + 200) - 5;
+            assertEquals("Position after " + id, model.headMap(id, true).size(),
+                    version.positionAfter(id));
+        }
+    }
+
+    /**
+     * Random pet of the model, with some unknown and empty columns.
+     */
+    private static final class Pet {
+        final String name;
+        final String breed;
+        final int weight;
+        final byte gender;
+
+        Pet(Random random, long id) {
+            if (random.nextInt(20) == 0) {
+                name = null;
+            } else if (random.nextInt(10) == 0) {
+                name = "";
+            } else {
+                //Names of many lengths, so the chars of a chunk move around
+                StringBuilder builder = new StringBuilder("Pet ").append(id);
+                for (int i = random.nextInt(12); i > 0; i--) {
+                    builder.append('x');
+                }
+                name = builder.toString();
+            }
+            //A new String every time, the snapshot shares the equal ones
+            breed = random.nextInt(5) == 0 ? null : new String("Breed " + random.nextInt(6));
+            weight = random.nextInt(8) == 0 ? PetListSnapshot.NO_WEIGHT : random.nextInt(60);
+            gender = random.nextInt(9) == 0 ? PetListSnapshot.NO_GENDER :
+                    (byte) random.nextInt(3);
+        }
+    }
+}
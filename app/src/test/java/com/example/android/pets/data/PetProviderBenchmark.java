@@ -0,0 +1,144 @@
+package com.example.android.pets.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.os.Bundle;
+import android.util.JsonWriter;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.ParameterizedRobolectricTestRunner;
+import org.robolectric.Robolectric;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures the throughput of {@link PetProvider} at every size of
+ * {@link PetBenchmarks#TABLE_SIZES}. The table is filled and then run through the operations
+ * the app does: page and single pet queries, single pet inserts, updates and deletes, and page
+ * reloads after an edit, along with the memory the list snapshot takes. The results of each
+ * size go to provider_ROWS.json.
+ */
+@RunWith(ParameterizedRobolectricTestRunner.class)
+public class PetProviderBenchmark {
+
+    //Operations timed of each kind
+    private static final int PAGE_QUERIES = 200;
+    private static final int ITEM_OPERATIONS = 1000;
+
+    //Rows in each page query, like the catalog
+    private static final int PAGE_SIZE = 100;
+
+    @ParameterizedRobolectricTestRunner.Parameters(name = "rows={0}")
+    public static List<Object[]> tableSizes() {
+        List<Object[]> sizes = new ArrayList<>();
+        for (int rowCount : PetBenchmarks.TABLE_SIZES) {
+            sizes.add(new Object[]{rowCount});
+        }
+        return sizes;
+    }
+
+    private final int mRowCount;
+
+    public PetProviderBenchmark(int rowCount) {
+        mRowCount = rowCount;
+    }
+
+    @Before
+    public void setUp() {
+        PetBenchmarks.assumeEnabled();
+    }
+
+    @Test
+    public void run() throws IOException {
+        PetProvider provider = Robolectric.setupContentProvider(PetProvider.class);
+        Random random = new Random(mRowCount);
+        JsonWriter json = PetBenchmarks.openResults("provider_" + mRowCount);
+        try {
+            json.beginObject();
+            json.name("rows").value(mRowCount);
+
+            long start = System.nanoTime();
+            PetBenchmarks.fill(provider, mRowCount);
+            PetBenchmarks.writeRate(json, "fill", mRowCount, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (int i = 0; i < PAGE_QUERIES; i++) {
+                Uri pageUri = PetEntry.buildNextPageUri(PetEntry.buildFirstPageUri(
+                        PetEntry.CONTENT_URI, PetEntry._ID, PAGE_SIZE), null,
+                        random.nextInt(mRowCount));
+                PetBenchmarks.readAll(provider.query(pageUri, PetBenchmarks.LIST_PROJECTION,
+                        null, null, null));
+            }
+            PetBenchmarks.writeRate(json, "query_page", PAGE_QUERIES,
+                    System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (int i = 0; i < ITEM_OPERATIONS; i++) {
+                PetBenchmarks.readAll(provider.query(randomPetUri(random), null, null, null,
+                        null));
+            }
+            PetBenchmarks.writeRate(json, "query_item", ITEM_OPERATIONS,
+                    System.nanoTime() - start);
+
+            ContentValues values = new ContentValues();
+            start = System.nanoTime();
+            for (int i = 0; i < ITEM_OPERATIONS; i++) {
+                values.clear();
+                values.put(PetEntry.COLUMN_PET_WEIGHT, i % 60);
+                provider.update(randomPetUri(random), values, null, null);
+            }
+            PetBenchmarks.writeRate(json, "update_item", ITEM_OPERATIONS,
+                    System.nanoTime() - start);
+
+            long[] ids = new long[ITEM_OPERATIONS];
+            start = System.nanoTime();
+            for (int i = 0; i < ITEM_OPERATIONS; i++) {
+                ids[i] = ContentUris.parseId(provider.insert(PetEntry.CONTENT_URI,
+                        PetBenchmarks.pet(values, mRowCount + i)));
+            }
+            PetBenchmarks.writeRate(json, "insert_item", ITEM_OPERATIONS,
+                    System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (long id : ids) {
+                provider.delete(PetBenchmarks.petUri(id), null, null);
+            }
+            PetBenchmarks.writeRate(json, "delete_item", ITEM_OPERATIONS,
+                    System.nanoTime() - start);
+
+            //Reload the first page after every small edit, like the catalog after a save. Only
+            //the reloads are timed, which the list snapshot answers when the table fits in it
+            Uri firstPageUri = PetEntry.buildFirstPageUri(PetEntry.CONTENT_URI, PetEntry._ID,
+                    PAGE_SIZE);
+            long reloadNanos = 0;
+            for (int i = 0; i < ITEM_OPERATIONS; i++) {
+                values.clear();
+                values.put(PetEntry.COLUMN_PET_NAME, "Edited " + i);
+                provider.update(randomPetUri(random), values, null, null);
+                start = System.nanoTime();
+                PetBenchmarks.readAll(provider.query(firstPageUri,
+                        PetBenchmarks.LIST_PROJECTION, null, null, null));
+                reloadNanos += System.nanoTime() - start;
+            }
+            PetBenchmarks.writeRate(json, "reload_after_edit", ITEM_OPERATIONS, reloadNanos);
+            Bundle snapshot = provider.call(PetContract.METHOD_GET_SNAPSHOT_STATS, null, null);
+            json.name("snapshot_rows").value(snapshot.getInt(PetContract.KEY_SIZE));
+            json.name("snapshot_bytes").value(snapshot.getLong(PetContract.KEY_BYTES));
+            json.endObject();
+        } finally {
+            json.close();
+        }
+    }
+
+    private Uri randomPetUri(Random random) {
+        return PetBenchmarks.petUri(1 + random.nextInt(mRowCount));
+    }
+}
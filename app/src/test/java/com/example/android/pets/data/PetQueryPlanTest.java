@@ -0,0 +1,162 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.net.Uri;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that every sort and filter the catalog can ask for is answered from an index, for the
+ * list and for the search. The query of each shape, first page and next pages, is run through
+ * EXPLAIN QUERY PLAN, and a shape fails when SQLite would read the whole pets table or sort the
+ * matching pets itself. The one plain table scan allowed is the first page of the unfiltered
+ * _id order, which reads the table in its own order and stops after the page. A search has to
+ * find its pets through the full-text index, and may sort the pets it found.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PetQueryPlanTest {
+
+    //Rows in the table, enough for SQLite to prefer an index to a scan
+    private static final int ROWS = 1000;
+
+    private static final int PAGE_SIZE = 100;
+
+    private static final String[] SORTS = {
+            PetEntry._ID, PetEntry.COLUMN_PET_NAME, PetEntry.COLUMN_PET_WEIGHT
+    };
+
+    private static final String[] BREEDS = {"Terrier", "Labrador", "Siamese", "Beagle", "Tabby"};
+
+    private static final String[] LIST_PROJECTION = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_WEIGHT
+    };
+
+    private PetProvider mProvider;
+
+    @Before
+    public void setUp() {
+        mProvider = Robolectric.setupContentProvider(PetProvider.class);
+
+        //A spread of breeds, genders and weights, some of them unknown
+        ContentValues[] pets = new ContentValues[ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            ContentValues values = new ContentValues();
+            values.put(PetEntry.COLUMN_PET_NAME, "Pet " + i);
+            values.put(PetEntry.COLUMN_PET_BREED, BREEDS[i % BREEDS.length]);
+            values.put(PetEntry.COLUMN_PET_GENDER, i % 3);
+            if (i % 20 == 0) {
+                values.putNull(PetEntry.COLUMN_PET_WEIGHT);
+            } else {
+                values.put(PetEntry.COLUMN_PET_WEIGHT, i % 60);
+            }
+            pets[i] = values;
+        }
+        assertEquals(ROWS, mProvider.bulkInsert(PetEntry.CONTENT_URI, pets));
+    }
+
+    @Test
+    public void listQueriesUseAnIndex() {
+        List<String> failures = checkShapes(PetEntry.CONTENT_URI, false);
+        assertTrue("Queries that do not use an index:\n" + failures, failures.isEmpty());
+    }
+
+    @Test
+    public void searchQueriesUseTheFullTextIndex() {
+        List<String> failures = checkShapes(PetEntry.buildSearchUri("terr"), true);
+        assertTrue("Searches that do not use an index:\n" + failures, failures.isEmpty());
+    }
+
+    /**
+     * Check the pages of the given list Uri in every sort, with and without every filter, and
+     * return the Uri and plan of every shape that fails.
+     */
+    private List<String> checkShapes(Uri listUri, boolean search) {
+        List<String> failures = new ArrayList<>();
+        int shapes = 0;
+        for (String sort : SORTS) {
+            for (int filter = 0; filter < 4; filter++) {
+                boolean byGender = (filter & 1) != 0;
+                boolean byWeight = (filter & 2) != 0;
+                //Weight ranges are only allowed on the weight order
+                if (byWeight && !sort.equals(PetEntry.COLUMN_PET_WEIGHT)) {
+                    continue;
+                }
+                Uri filterUri = PetEntry.buildFilterUri(listUri,
+                        byGender ? PetEntry.GENDER_FEMALE : PetEntry.NO_FILTER,
+                        byWeight ? 5 : PetEntry.NO_FILTER,
+                        byWeight ? 20 : PetEntry.NO_FILTER);
+                Uri firstPageUri = PetEntry.buildFirstPageUri(filterUri, sort, PAGE_SIZE);
+                String afterKey = sort.equals(PetEntry._ID) ? null :
+                        sort.equals(PetEntry.COLUMN_PET_NAME) ? "Max" : "10";
+                List<Uri> pageUris = new ArrayList<>();
+                pageUris.add(firstPageUri);
+                pageUris.add(PetEntry.buildNextPageUri(firstPageUri, afterKey, ROWS / 2));
+                //The unknown weights continue without a sort key
+                if (sort.equals(PetEntry.COLUMN_PET_WEIGHT) && !byWeight) {
+                    pageUris.add(PetEntry.buildNextPageUri(firstPageUri, null, ROWS / 2));
+                }
+
+                for (Uri pageUri : pageUris) {
+                    List<String> plan = mProvider.explainQueryPlan(pageUri, LIST_PROJECTION);
+                    boolean allowScan = !search && !byGender && !byWeight &&
+                            sort.equals(PetEntry._ID) && pageUri == firstPageUri;
+                    shapes++;
+                    if (!usesIndex(plan, allowScan, search)) {
+                        failures.add(pageUri.getQuery() + " " + plan);
+                    }
+                }
+            }
+        }
+        //Three sorts, the weight one with a range too, each filtered by gender or not
+        assertEquals(2 * (2 + 2 + 3 + 2), shapes);
+        return failures;
+    }
+
+    /**
+     * Return whether the plan finds its pets through an index, and for the list in the order it
+     * returns them. Plans name a table read without an index "SCAN pets", or "SCAN TABLE pets"
+     * on the older versions of SQLite. A search also has to read the full-text index with a
+     * MATCH, which is any index of the virtual table but 0, the full scan, and 1, the docid
+     * lookup.
+     */
+    private static boolean usesIndex(List<String> plan, boolean allowScan, boolean search) {
+        boolean fullTextSearch = false;
+        for (String step : plan) {
+            if (step.contains("TEMP B-TREE") && !search) {
+                return false;
+            }
+            if (isScan(step, PetEntry.TABLE_NAME) && !step.contains(" USING ") && !allowScan) {
+                return false;
+            }
+            if (isScan(step, PetEntry.FTS_TABLE_NAME)) {
+                if (step.contains("VIRTUAL TABLE INDEX 0:") ||
+                        step.contains("VIRTUAL TABLE INDEX 1:")) {
+                    return false;
+                }
+                fullTextSearch = step.contains("VIRTUAL TABLE INDEX ");
+            }
+        }
+        return fullTextSearch == search;
+    }
+
+    private static boolean isScan(String step, String table) {
+        return step.startsWith("SCAN " + table + " ") || step.equals("SCAN " + table) ||
+                step.startsWith("SCAN TABLE " + table + " ") ||
+                step.equals("SCAN TABLE " + table);
+    }
+}
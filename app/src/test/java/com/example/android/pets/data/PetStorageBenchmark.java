@@ -0,0 +1,211 @@
+package com.example.android.pets.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.JsonWriter;
+
+import com.example.android.pets.data.PetContract.BreedEntry;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the {@link PetStorageProfile}s. Every profile gets its own scratch database filled
+ * with a large pets table, and is measured on single-row write latency, point read latency,
+ * and how fast readers get through while another thread keeps writing. The results go to
+ * storage.json, one object per profile.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PetStorageBenchmark {
+
+    //Rows in the table of every profile
+    private static final int ROW_COUNT = 100000;
+
+    //Number of timed writes and reads for each profile
+    private static final int SAMPLES = 500;
+
+    //How long readers and the writer run at the same time
+    private static final long CONCURRENCY_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    private static final String SQL_INSERT_BREED = "INSERT OR IGNORE INTO " +
+            BreedEntry.TABLE_NAME + " (" + BreedEntry.COLUMN_BREED_NAME + ") VALUES (?)";
+
+    //The breed is bound by name and stored as its breed_id
+    private static final String SQL_INSERT = "INSERT INTO " + PetEntry.TABLE_NAME + " (" +
+            PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_BREED_ID + ", " +
+            PetEntry.COLUMN_PET_GENDER + ", " + PetEntry.COLUMN_PET_WEIGHT +
+            ") VALUES (?, (SELECT " + BreedEntry._ID + " FROM " + BreedEntry.TABLE_NAME +
+            " WHERE " + BreedEntry.COLUMN_BREED_NAME + " = ?), ?, ?)";
+
+    private static final String SQL_READ = "SELECT " + PetEntry.COLUMN_PET_NAME + ", " +
+            PetEntry.COLUMN_PET_BREED + " FROM " + PetEntry.VIEW_NAME +
+            " WHERE " + PetEntry._ID + " = ?";
+
+    private Context mContext;
+
+    @Before
+    public void setUp() {
+        PetBenchmarks.assumeEnabled();
+        mContext = RuntimeEnvironment.application;
+    }
+
+    @Test
+    public void run() throws IOException {
+        JsonWriter json = PetBenchmarks.openResults("storage");
+        try {
+            json.beginArray();
+            for (PetStorageProfile profile : PetStorageProfile.values()) {
+                json.beginObject();
+                json.name("profile").value(profile.name());
+                runProfile(profile, json);
+                json.endObject();
+            }
+            json.endArray();
+        } finally {
+            json.close();
+        }
+    }
+
+    /**
+     * Measure one profile on its own scratch database.
+     */
+    private void runProfile(PetStorageProfile profile, JsonWriter json) throws IOException {
+        String name = "benchmark_" + profile.name().toLowerCase(Locale.US) + ".db";
+        PetDbHelper helper = new PetDbHelper(mContext, name, profile);
+        try {
+            SQLiteDatabase db = helper.getWritableDatabase();
+
+            long start = System.nanoTime();
+            fill(db);
+            PetBenchmarks.writeRate(json, "fill", ROW_COUNT, System.nanoTime() - start);
+
+            PetBenchmarks.writeLatencies(json, "write", measureWrites(db, SAMPLES));
+            PetBenchmarks.writeLatencies(json, "read", measureReads(db, new Random(1), SAMPLES));
+            PetBenchmarks.writeLatencies(json, "read_during_writes",
+                    measureConcurrentReads(db));
+        } finally {
+            helper.close();
+            mContext.deleteDatabase(name);
+        }
+    }
+
+    /**
+     * Fill the breeds and the pets table in one transaction.
+     */
+    private static void fill(SQLiteDatabase db) {
+        SQLiteStatement statement = db.compileStatement(SQL_INSERT);
+        db.beginTransaction();
+        try {
+            for (String breed : PetBenchmarks.BREEDS) {
+                db.execSQL(SQL_INSERT_BREED, new Object[]{breed});
+            }
+            for (int i = 0; i < ROW_COUNT; i++) {
+                bindRow(statement, i);
+                statement.executeInsert();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            statement.close();
+        }
+    }
+
+    /**
+     * Time the given number of single-row inserts, each one committed on its own.
+     * Return the latencies in nanoseconds.
+     */
+    private static long[] measureWrites(SQLiteDatabase db, int samples) {
+        long[] latencies = new long[samples];
+        SQLiteStatement statement = db.compileStatement(SQL_INSERT);
+        try {
+            for (int i = 0; i < samples; i++) {
+                long start = System.nanoTime();
+                bindRow(statement, i);
+                statement.executeInsert();
+                latencies[i] = System.nanoTime() - start;
+            }
+        } finally {
+            statement.close();
+        }
+        return latencies;
+    }
+
+    /**
+     * Time the given number of lookups of random pets by _id. Return the latencies in
+     * nanoseconds.
+     */
+    private static long[] measureReads(SQLiteDatabase db, Random random, int samples) {
+        long[] latencies = new long[samples];
+        String[] args = new String[1];
+        for (int i = 0; i < samples; i++) {
+            args[0] = String.valueOf(1 + random.nextInt(ROW_COUNT));
+            long start = System.nanoTime();
+            Cursor cursor = db.rawQuery(SQL_READ, args);
+            try {
+                cursor.moveToFirst();
+            } finally {
+                cursor.close();
+            }
+            latencies[i] = System.nanoTime() - start;
+        }
+        return latencies;
+    }
+
+    /**
+     * Keep a writer thread inserting pets while this thread reads random pets, and return the
+     * latencies of the reads in nanoseconds. With the rollback journal the reads wait for the
+     * writes, with the write-ahead log they do not.
+     */
+    private static long[] measureConcurrentReads(final SQLiteDatabase db) {
+        //The clock of Robolectric stands still, so the run is timed on the real one
+        final long end = System.nanoTime() + CONCURRENCY_NANOS;
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (System.nanoTime() < end) {
+                    measureWrites(db, 1);
+                }
+            }
+        }, "benchmark-writer");
+        writer.start();
+
+        Random random = new Random(2);
+        long[] latencies = new long[1024];
+        int count = 0;
+        while (System.nanoTime() < end) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = measureReads(db, random, 1)[0];
+        }
+
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return Arrays.copyOf(latencies, count);
+    }
+
+    /**
+     * Bind the values of the scratch pet number i to the insert statement.
+     */
+    private static void bindRow(SQLiteStatement statement, int i) {
+        statement.bindString(1, "Pet " + i);
+        statement.bindString(2, PetBenchmarks.BREEDS[i % PetBenchmarks.BREEDS.length]);
+        statement.bindLong(3, i % 3);
+        statement.bindLong(4, i % 60);
+    }
+}
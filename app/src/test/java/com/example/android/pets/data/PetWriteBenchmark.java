@@ -0,0 +1,130 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.JsonWriter;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.IOException;
+
+/**
+ * Compares the write throughput of the {@link PetStatements} pool with the ContentValues path
+ * of {@link SQLiteDatabase}, which builds and compiles the SQL of every write. Both run the same
+ * single-row inserts, updates by _id and deletes by _id, each write committed on its own like
+ * a write from the editor. The results go to writes.json.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class PetWriteBenchmark {
+
+    //Writes of every kind timed on each path
+    private static final int WRITE_COUNT = 1000;
+
+    //Writes of every kind run on each path before timing
+    private static final int WARM_UP_COUNT = 100;
+
+    private static final String[] KINDS = {"insert", "update", "delete"};
+
+    private Context mContext;
+
+    @Before
+    public void setUp() {
+        PetBenchmarks.assumeEnabled();
+        mContext = RuntimeEnvironment.application;
+    }
+
+    @Test
+    public void run() throws IOException {
+        PetDbHelper helper = new PetDbHelper(mContext, PetStorageProfile.DEFAULT);
+        JsonWriter json = PetBenchmarks.openResults("writes");
+        try {
+            SQLiteDatabase db = helper.getWritableDatabase();
+            PetBreeds breeds = new PetBreeds();
+            PetStatements statements = new PetStatements(db, breeds);
+            try {
+                //Warm up both paths so the first one timed does not pay for opening the file
+                runWrites(db, breeds, null, WARM_UP_COUNT);
+                runWrites(db, breeds, statements, WARM_UP_COUNT);
+
+                long[] contentValues = runWrites(db, breeds, null, WRITE_COUNT);
+                long[] compiled = runWrites(db, breeds, statements, WRITE_COUNT);
+
+                json.beginObject();
+                for (int i = 0; i < KINDS.length; i++) {
+                    PetBenchmarks.writeRate(json, KINDS[i] + "_content_values", WRITE_COUNT,
+                            contentValues[i]);
+                    PetBenchmarks.writeRate(json, KINDS[i] + "_compiled", WRITE_COUNT,
+                            compiled[i]);
+                }
+                json.endObject();
+            } finally {
+                statements.close();
+            }
+        } finally {
+            json.close();
+            helper.close();
+        }
+    }
+
+    /**
+     * Insert, then update, then delete the given number of pets, through the statement pool or
+     * through the ContentValues path when it is null, which stores the breed_id looked up in
+     * the given breeds like the provider does. Return the nanoseconds each step took.
+     */
+    private static long[] runWrites(SQLiteDatabase db, PetBreeds breeds,
+                                    PetStatements statements, int count) {
+        long[] ids = new long[count];
+        ContentValues values = new ContentValues();
+        long[] nanos = new long[KINDS.length];
+
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            String breed = PetBenchmarks.BREEDS[i % PetBenchmarks.BREEDS.length];
+            values.clear();
+            values.put(PetEntry.COLUMN_PET_NAME, "Pet " + i);
+            values.put(PetEntry.COLUMN_PET_GENDER, i % 3);
+            values.put(PetEntry.COLUMN_PET_WEIGHT, i % 60);
+            if (statements != null) {
+                values.put(PetEntry.COLUMN_PET_BREED, breed);
+                ids[i] = statements.insert(values);
+            } else {
+                values.put(PetEntry.COLUMN_BREED_ID, breeds.getId(db, breed));
+                ids[i] = db.insert(PetEntry.TABLE_NAME, null, values);
+            }
+        }
+        nanos[0] = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        String[] args = new String[1];
+        for (int i = 0; i < count; i++) {
+            values.clear();
+            values.put(PetEntry.COLUMN_PET_WEIGHT, (i + 1) % 60);
+            if (statements != null) {
+                statements.update(ids[i], values);
+            } else {
+                args[0] = String.valueOf(ids[i]);
+                db.update(PetEntry.TABLE_NAME, values, PetEntry._ID + "=?", args);
+            }
+        }
+        nanos[1] = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            if (statements != null) {
+                statements.delete(ids[i]);
+            } else {
+                args[0] = String.valueOf(ids[i]);
+                db.delete(PetEntry.TABLE_NAME, PetEntry._ID + "=?", args);
+            }
+        }
+        nanos[2] = System.nanoTime() - start;
+        return nanos;
+    }
+}